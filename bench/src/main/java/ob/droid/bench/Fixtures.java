@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.bench;
+
+import ob.droid.Connection;
+import ob.droid.ConnectionLoop;
+import ob.droid.LoopbackConnection;
+import ob.droid.RecordingConnection;
+import ob.droid.elm.Elm327Simulator;
+import ob.droid.elm.EngineModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark inputs, shipped as resources of this package.
+ *
+ * <dl>
+ * <dt>{@link #ASCII}</dt>
+ * <dd>Printable text in lines of up to eighty columns.</dd>
+ * <dt>{@link #ESCAPES}</dt>
+ * <dd>Short runs of text between cursor addressing, colors, erases
+ * and scroll regions, as from a full screen program.</dd>
+ * <dt>{@link #SESSION}</dt>
+ * <dd>A {@link RecordingConnection} capture of an adapter session
+ * with the {@link Elm327Simulator}: initialization with headers on,
+ * then polling four PIDs answered by the engine and transmission
+ * ECUs, and a multiple frame VIN.</dd>
+ * </dl>
+ *
+ * The text fixtures are seeded, so {@link #main} writes the same
+ * bytes each time.  The session has the simulator's timing.
+ */
+public class Fixtures
+    extends Object
+{
+    public final static String ASCII = "ascii.txt";
+
+    public final static String ESCAPES = "escapes.txt";
+
+    public final static String SESSION = "session.obdr";
+
+    public final static int SIZE = 0x10000;
+
+    public final static int POLLS = 400;
+
+    private final static long MS = 1000000L;
+
+    private final static String[] WORDS = {
+        "engine", "speed", "coolant", "intake", "throttle", "load", "fuel",
+        "trim", "timing", "advance", "oxygen", "sensor", "bank", "volts",
+        "rpm", "km/h", "kPa", "deg", "C", "%", "OK", "ready", "0.25",
+        "1726", "88", "-4.7", "12.6", "P0301", "7E8", "7E9", "SEARCHING..."
+    };
+
+
+    /**
+     * @return Fixture bytes
+     * @exception java.lang.IllegalArgumentException Missing fixture
+     */
+    public static byte[] load(String name)
+        throws IOException
+    {
+        InputStream in = Fixtures.class.getResourceAsStream(name);
+        if (null == in)
+            throw new IllegalArgumentException(name);
+        else {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[0x2000];
+                int read;
+                while (0 < (read = in.read(buf))){
+                    out.write(buf,0,read);
+                }
+                return out.toByteArray();
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+    /**
+     * @return Adapter output of a captured session, as it was read
+     */
+    public static byte[][] chunks(String name)
+        throws IOException
+    {
+        InputStream in = Fixtures.class.getResourceAsStream(name);
+        if (null == in)
+            throw new IllegalArgumentException(name);
+        else {
+            RecordingConnection.Reader reader = new RecordingConnection.Reader(in);
+            try {
+                List<byte[]> list = new ArrayList<byte[]>();
+                while (reader.next()){
+                    if (RecordingConnection.IN == reader.getDirection()){
+                        byte[] chunk = new byte[reader.getLength()];
+                        System.arraycopy(reader.getData(),0,chunk,0,chunk.length);
+                        list.add(chunk);
+                    }
+                }
+                return list.toArray(new byte[list.size()][]);
+            }
+            finally {
+                reader.close();
+            }
+        }
+    }
+
+    public static byte[] ascii(int size){
+        Random random = new Random(1L);
+        StringBuilder text = new StringBuilder(size+80);
+        StringBuilder line = new StringBuilder(80);
+        while (text.length() < size){
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (line.length()+1+word.length() > 80 || 0 == random.nextInt(12)){
+                text.append(line).append("\r\n");
+                line.setLength(0);
+            }
+            if (0 != line.length())
+                line.append(' ');
+            line.append(word);
+        }
+        text.setLength(size);
+        return ascii(text);
+    }
+    public static byte[] escapes(int size){
+        Random random = new Random(2L);
+        StringBuilder text = new StringBuilder(size+80);
+        while (text.length() < size){
+            switch (random.nextInt(8)){
+            case 0:
+                /*
+                 * Cursor address
+                 */
+                text.append("\033[").append(1+random.nextInt(24)).append(';').append(1+random.nextInt(80)).append('H');
+                break;
+            case 1:
+                /*
+                 * Colors and attributes
+                 */
+                text.append("\033[").append(random.nextInt(2)).append(';').append(30+random.nextInt(8)).append(';').append(40+random.nextInt(8)).append('m');
+                break;
+            case 2:
+                /*
+                 * Erase to end of line or screen
+                 */
+                text.append("\033[").append(random.nextInt(3)).append((0 == random.nextInt(8))?'J':'K');
+                break;
+            case 3:
+                /*
+                 * Scroll region, scrolled by line feeds at its foot
+                 */
+                text.append("\033[2;23r\033[23;1H\n\n\033[r");
+                break;
+            case 4:
+                /*
+                 * Save, move, restore
+                 */
+                text.append("\0337\033[").append(1+random.nextInt(8)).append('A').append("\033[").append(1+random.nextInt(8)).append('C').append("\0338");
+                break;
+            case 5:
+                text.append("\033[0m\r\n");
+                break;
+            default:
+                for (int cc = 1+random.nextInt(3); 0 < cc; cc--){
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                break;
+            }
+        }
+        text.setLength(size);
+        return ascii(text);
+    }
+    /**
+     * Record a simulator session.
+     */
+    public static void session(OutputStream out, int polls)
+        throws IOException, InterruptedException
+    {
+        ConnectionLoop loop = ConnectionLoop.getDefault();
+        LoopbackConnection near = new LoopbackConnection(0x1000);
+        Elm327Simulator simulator = new Elm327Simulator(new EngineModel());
+        simulator.setResetLatency(10*MS);
+        simulator.setSearchLatency(50*MS);
+        simulator.setEcuLatency(EngineModel.ENGINE,2*MS);
+        simulator.setEcuLatency(EngineModel.TRANSMISSION,4*MS);
+        simulator.attach(near.getPeer(),loop);
+
+        RecordingConnection recording = new RecordingConnection(near,out);
+        Prompt prompt = new Prompt(recording);
+        try {
+            String[] init = {
+                "ATZ", "ATE0", "ATL0", "ATS1", "ATH1", "ATSP0", "ATST0A", "ATAT1", "0100"
+            };
+            for (int cc = 0; cc < init.length; cc++){
+                prompt.command(init[cc]);
+            }
+            for (int cc = 0; cc < polls; cc++){
+                prompt.command("010C0D05110F");
+                if (0 == (cc % 100))
+                    prompt.command("0902");
+            }
+        }
+        finally {
+            recording.close();
+        }
+        if (null != recording.getError())
+            throw recording.getError();
+    }
+
+    /**
+     * Write the fixtures into a directory.
+     */
+    public static void main(String[] argv){
+        if (1 != argv.length){
+            System.err.println("Usage: Fixtures dir");
+            System.exit(1);
+        }
+        else {
+            try {
+                File dir = new File(argv[0]);
+                write(new File(dir,ASCII),ascii(SIZE));
+                write(new File(dir,ESCAPES),escapes(SIZE));
+                File file = new File(dir,SESSION);
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    session(out,POLLS);
+                }
+                finally {
+                    out.close();
+                }
+                System.out.println("Wrote "+file+" ("+file.length()+" bytes)");
+                System.exit(0);
+            }
+            catch (Exception exc){
+                exc.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    private static byte[] ascii(CharSequence text){
+        byte[] bytes = new byte[text.length()];
+        for (int cc = 0; cc < bytes.length; cc++){
+            bytes[cc] = (byte)text.charAt(cc);
+        }
+        return bytes;
+    }
+    private static void write(File file, byte[] bytes)
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+        System.out.println("Wrote "+file+" ("+bytes.length+" bytes)");
+    }
+
+    /**
+     * Sends a command and waits for the prompt.
+     */
+    private static class Prompt
+        extends Object
+        implements Connection.Listener
+    {
+        private final static long TIMEOUT = 5000L;
+
+        private final Connection connection;
+
+        private final ByteBuffer in = ByteBuffer.allocate(0x400);
+
+        private boolean seen;
+
+
+        Prompt(Connection connection){
+            super();
+            this.connection = connection;
+            connection.setListener(this);
+        }
+
+
+        synchronized void command(String command)
+            throws IOException, InterruptedException
+        {
+            this.seen = false;
+            ByteBuffer line = ByteBuffer.wrap(ascii(command+'\r'));
+            while (line.hasRemaining()){
+                this.connection.write(line);
+            }
+            long until = System.currentTimeMillis()+TIMEOUT;
+            while (!this.seen){
+                long wait = (until-System.currentTimeMillis());
+                if (0L >= wait)
+                    throw new IOException("No prompt after "+command);
+                else
+                    this.wait(wait);
+            }
+        }
+        public void readable(Connection connection){
+            try {
+                int read;
+                while (0 < (read = this.connection.read(this.in))){
+                    for (int cc = 0; cc < read; cc++){
+                        if ('>' == this.in.get(cc)){
+                            synchronized(this){
+                                this.seen = true;
+                                this.notifyAll();
+                            }
+                        }
+                    }
+                    this.in.clear();
+                }
+            }
+            catch (IOException exc){
+                exc.printStackTrace();
+            }
+        }
+        public void writable(Connection connection){
+        }
+        public void closed(Connection connection){
+        }
+    }
+}
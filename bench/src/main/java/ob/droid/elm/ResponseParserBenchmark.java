@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.bench.Fixtures;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The adapter output of the captured {@link Fixtures#SESSION}, fed
+ * in the chunks it was read in, through each stage of the response
+ * path: the tokenizer alone, mode 01 reassembly and splitting, and
+ * the demultiplexer decoding into its sample series.  Time is per
+ * session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParserBenchmark
+    extends Object
+{
+    /**
+     * Counts tokens.
+     */
+    public static class Counter
+        extends Object
+        implements ResponseTokenizer.Handler, Mode01Response.Sink
+    {
+        public int frames, samples, prompts;
+
+        public void frame(int header, int index, byte[] data, int len){
+            this.frames += 1;
+        }
+        public void length(int length){
+        }
+        public void text(byte[] line, int len){
+        }
+        public void prompt(){
+            this.prompts += 1;
+        }
+        public void sample(int pid, byte[] data, int ofs, int len){
+            this.samples += 1;
+        }
+    }
+
+
+    private byte[][] chunks;
+
+    private final Counter counter = new Counter();
+
+    private ResponseTokenizer tokenizer;
+
+    private Mode01Response response;
+
+    private EcuDemultiplexer demultiplexer;
+
+
+    public ResponseParserBenchmark(){
+        super();
+    }
+
+
+    @Setup
+    public void setup()
+        throws IOException
+    {
+        this.chunks = Fixtures.chunks(Fixtures.SESSION);
+        this.tokenizer = new ResponseTokenizer(this.counter);
+        this.tokenizer.setHeaderDigits(3);
+        this.response = new Mode01Response(this.counter);
+        this.response.getTokenizer().setHeaderDigits(3);
+        this.demultiplexer = new EcuDemultiplexer();
+        this.demultiplexer.getTokenizer().setHeaderDigits(3);
+    }
+    @Benchmark
+    public void tokenize(Blackhole hole){
+        final byte[][] chunks = this.chunks;
+        for (int cc = 0; cc < chunks.length; cc++){
+            this.tokenizer.feed(chunks[cc],0,chunks[cc].length);
+        }
+        hole.consume(this.counter.frames);
+    }
+    @Benchmark
+    public void mode01(Blackhole hole){
+        final byte[][] chunks = this.chunks;
+        for (int cc = 0; cc < chunks.length; cc++){
+            this.response.feed(chunks[cc],0,chunks[cc].length);
+        }
+        hole.consume(this.counter.samples);
+    }
+    @Benchmark
+    public void demultiplex(Blackhole hole){
+        final byte[][] chunks = this.chunks;
+        for (int cc = 0; cc < chunks.length; cc++){
+            this.demultiplexer.feed(chunks[cc],0,chunks[cc].length);
+        }
+        hole.consume(this.demultiplexer.size());
+    }
+}
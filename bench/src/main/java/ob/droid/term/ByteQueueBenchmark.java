@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.term;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ByteQueue} with one writer and one reader contending for
+ * its lock, as the reader thread and the view do.
+ *
+ * The queue blocks when full or empty, and a side blocked at the end
+ * of an iteration would never return, so each side only writes or
+ * reads what the queue can take or give without waiting.  The
+ * primary score counts attempts on each side, so the throughput is
+ * reported by the auxiliary counters: bytes written and read per
+ * microsecond, and separately the rate of attempts that found the
+ * queue full or empty, which shows the contention.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteQueueBenchmark
+    extends Object
+{
+    public final static int CAPACITY = 4096;
+
+    /**
+     * Writer side counters, rates per microsecond.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Written
+        extends Object
+    {
+        public long bytesWritten, full;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            this.bytesWritten = 0L;
+            this.full = 0L;
+        }
+    }
+    /**
+     * Reader side counters, rates per microsecond.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Read
+        extends Object
+    {
+        public long bytesRead, empty;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            this.bytesRead = 0L;
+            this.empty = 0L;
+        }
+    }
+
+
+    @Param({"16", "256"})
+    public int chunk;
+
+    private ByteQueue queue;
+
+    private byte[] in, out;
+
+
+    public ByteQueueBenchmark(){
+        super();
+    }
+
+
+    @Setup
+    public void setup(){
+        this.queue = new ByteQueue(CAPACITY);
+        this.in = new byte[this.chunk];
+        this.out = new byte[this.chunk];
+    }
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public int write(Written counters)
+        throws InterruptedException
+    {
+        final int room = (CAPACITY-this.queue.getBytesAvailable());
+        if (room >= this.chunk){
+            this.queue.write(this.in,0,this.chunk);
+            counters.bytesWritten += this.chunk;
+            return this.chunk;
+        }
+        else {
+            counters.full += 1;
+            return 0;
+        }
+    }
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public int read(Read counters)
+        throws InterruptedException
+    {
+        if (0 < this.queue.getBytesAvailable()){
+            int read = this.queue.read(this.out,0,this.chunk);
+            counters.bytesRead += read;
+            return read;
+        }
+        else {
+            counters.empty += 1;
+            return 0;
+        }
+    }
+}
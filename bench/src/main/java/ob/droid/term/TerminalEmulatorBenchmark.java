@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.term;
+
+import ob.droid.bench.Fixtures;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link TerminalEmulator#append} of printable text and of escape
+ * sequence heavy text, in nanoseconds per byte.  The screen is eighty
+ * by twenty four with a transcript, as on a phone in landscape.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TerminalEmulatorBenchmark
+    extends Object
+{
+    public final static int COLUMNS = 80, ROWS = 24, TRANSCRIPT = 1000;
+
+    /*
+     * Read from the adapter connection in chunks of up to this
+     */
+    private final static int CHUNK = 0x100;
+
+
+    @Param({Fixtures.ASCII, Fixtures.ESCAPES})
+    public String input;
+
+    private byte[] bytes;
+
+    private TerminalEmulator emulator;
+
+
+    public TerminalEmulatorBenchmark(){
+        super();
+    }
+
+
+    @Setup
+    public void setup()
+        throws IOException
+    {
+        this.bytes = Fixtures.load(this.input);
+        if (Fixtures.SIZE != this.bytes.length)
+            throw new IllegalStateException(this.input);
+        else {
+            TranscriptScreen screen = new TranscriptScreen(COLUMNS,TRANSCRIPT,ROWS,7,0);
+            this.emulator = new TerminalEmulator(screen,COLUMNS,ROWS);
+        }
+    }
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.SIZE)
+    public int append(){
+        final byte[] bytes = this.bytes;
+        for (int ofs = 0; ofs < bytes.length; ofs += CHUNK){
+            this.emulator.append(bytes,ofs,Math.min(CHUNK,bytes.length-ofs));
+        }
+        return this.emulator.getCursorRow();
+    }
+}
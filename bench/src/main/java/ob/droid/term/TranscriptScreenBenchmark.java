@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.term;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link TranscriptScreen#scroll} of the whole screen into a full
+ * transcript, and of a scroll region, and {@link
+ * TranscriptScreen#blockSet} of the whole screen, as for a clear.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranscriptScreenBenchmark
+    extends Object
+{
+    @Param({"80"})
+    public int columns;
+
+    @Param({"24", "60"})
+    public int rows;
+
+    @Param({"1000"})
+    public int transcript;
+
+    private TranscriptScreen screen;
+
+    private int color;
+
+
+    public TranscriptScreenBenchmark(){
+        super();
+    }
+
+
+    @Setup
+    public void setup(){
+        this.screen = new TranscriptScreen(this.columns,this.transcript,this.rows,7,0);
+        /*
+         * Fill the transcript, so every scroll recycles its oldest row
+         */
+        for (int cc = 0; cc < this.transcript; cc++){
+            this.screen.scroll(0,this.rows,7,0);
+        }
+    }
+    @Benchmark
+    public void scroll(){
+        this.screen.scroll(0,this.rows,7,0);
+    }
+    @Benchmark
+    public void scrollRegion(){
+        this.screen.scroll(1,this.rows-1,7,0);
+    }
+    @Benchmark
+    public void blockSet(){
+        this.color = ((this.color+1) & 7);
+        this.screen.blockSet(0,0,this.columns,this.rows,' ',7,this.color);
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import ob.droid.data.LatencyStats;
+
+/**
+ * Coalescing output over another connection.
+ *
+ * Writes are copied into one buffer and sent from the loop thread in
+ * frames: at a CR, when the buffer holds a frame's worth, or when no
+ * write has come for a moment.  A keypress that sends an escape
+ * sequence, or a command typed character by character, goes out as
+ * one write.
+ *
+ * The adapter reads one command at a time, and abandons a command in
+ * progress when more input arrives.  With the prompt gate on, nothing
+ * after a CR is sent until the adapter's '>' prompt has been read
+ * back through this connection, or until the prompt timeout.  When
+ * the buffer is full, write returns zero and the listener is told
+ * "writable" once there is room.
+ */
+public class BufferedConnection
+    extends Object
+    implements Connection,
+               Connection.Listener
+{
+    public final static int CAPACITY = 512;
+    /**
+     * Bytes buffered that are sent without waiting for a CR.
+     */
+    public final static int FRAME = 64;
+    /**
+     * Time since the last write before a partial line is sent, in
+     * nanoseconds.
+     */
+    public final static long IDLE = 10000000L;
+    /**
+     * Longest wait for a prompt, in nanoseconds, covering ATZ and
+     * protocol search.
+     */
+    public final static long PROMPT = 5000000000L;
+
+
+    private final Connection connection;
+
+    private final ConnectionLoop loop;
+
+    private final byte[] buffer;
+
+    private final ByteBuffer out;
+
+    private volatile Listener listener;
+
+    private volatile boolean gate = true;
+
+    private volatile LatencyStats stats;
+
+    /*
+     * Buffer state, under lock
+     */
+    private int count, release;
+
+    private long gatedAt, writtenAt;
+
+    private boolean gated, full, flushPosted, idlePosted;
+
+    private final Runnable flush = new Runnable(){
+            public void run(){
+                BufferedConnection.this.flush();
+            }
+        };
+
+    private final Runnable idle = new Runnable(){
+            public void run(){
+                BufferedConnection.this.idle();
+            }
+        };
+
+    private final Runnable timeout = new Runnable(){
+            public void run(){
+                BufferedConnection.this.timeout();
+            }
+        };
+
+
+    public BufferedConnection(Connection connection){
+        this(connection,ConnectionLoop.getDefault(),CAPACITY);
+    }
+    public BufferedConnection(Connection connection, ConnectionLoop loop, int capacity){
+        super();
+        if (null == connection || null == loop)
+            throw new IllegalArgumentException();
+        else if (1 > capacity)
+            throw new IllegalArgumentException(String.valueOf(capacity));
+        else {
+            this.connection = connection;
+            this.loop = loop;
+            this.buffer = new byte[capacity];
+            this.out = ByteBuffer.wrap(this.buffer);
+            connection.setListener(this);
+        }
+    }
+
+
+    public Connection getConnection(){
+        return this.connection;
+    }
+    /**
+     * @param gate Hold each line after a CR until the prompt, on by
+     * default
+     */
+    public void setPromptGate(boolean gate){
+        this.gate = gate;
+        if (!gate)
+            this.open();
+    }
+    public boolean isPromptGate(){
+        return this.gate;
+    }
+    /**
+     * @param stats Told of request lines written, answers and
+     * prompts read, or null
+     */
+    public void setStats(LatencyStats stats){
+        this.stats = stats;
+    }
+    /**
+     * @return Number of bytes waiting to be sent
+     */
+    public synchronized int pending(){
+        return this.count;
+    }
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+    /**
+     * Pass through, watching for the prompt.
+     */
+    public int read(ByteBuffer dst)
+        throws IOException
+    {
+        final int start = dst.position();
+        final int read = this.connection.read(dst);
+        if (0 < read){
+            final LatencyStats stats = this.stats;
+            if (null != stats)
+                stats.received(System.nanoTime());
+            for (int cc = start, end = start+read; cc < end; cc++){
+                if ('>' == dst.get(cc)){
+                    if (null != stats)
+                        stats.prompt(System.nanoTime());
+                    this.open();
+                    break;
+                }
+            }
+        }
+        return read;
+    }
+    /**
+     * Copy into the output buffer.
+     *
+     * @return Number of bytes taken, zero when the buffer is full
+     */
+    public int write(ByteBuffer src)
+        throws IOException
+    {
+        if (!this.connection.isOpen())
+            throw new ClosedChannelException();
+        else {
+            boolean post = false, schedule = false;
+            int n;
+            synchronized(this){
+                n = Math.min(src.remaining(),this.buffer.length-this.count);
+                if (0 == n){
+                    this.full = true;
+                    return 0;
+                }
+                else {
+                    final int start = this.count;
+                    src.get(this.buffer,start,n);
+                    this.count += n;
+                    this.writtenAt = System.nanoTime();
+                    for (int cc = this.count-1; cc >= start; cc--){
+                        if ('\r' == this.buffer[cc]){
+                            this.release = Math.max(this.release,cc+1);
+                            break;
+                        }
+                    }
+                    if (FRAME <= this.count)
+                        this.release = this.count;
+
+                    if (0 < this.release){
+                        if (!this.flushPosted){
+                            this.flushPosted = true;
+                            post = true;
+                        }
+                    }
+                    else if (!this.idlePosted){
+                        this.idlePosted = true;
+                        schedule = true;
+                    }
+                }
+            }
+            if (post)
+                this.loop.post(this.flush);
+            else if (schedule)
+                this.loop.schedule(this.idle,IDLE);
+            return n;
+        }
+    }
+    public boolean isOpen(){
+        return this.connection.isOpen();
+    }
+    public void close(){
+        this.connection.close();
+    }
+
+    public void readable(Connection connection){
+        Listener listener = this.listener;
+        if (null != listener)
+            listener.readable(this);
+    }
+    /**
+     * Inner connection open or drained.
+     */
+    public void writable(Connection connection){
+        this.flush();
+    }
+    public void closed(Connection connection){
+        Listener listener = this.listener;
+        if (null != listener)
+            listener.closed(this);
+    }
+
+    /**
+     * Send what is released, normally on the loop thread.
+     */
+    private void flush(){
+        boolean writable = false, timeout = false, written = false;
+        synchronized(this){
+            this.flushPosted = false;
+            if (0 < this.release && !this.gated){
+                int end = this.release;
+                if (this.gate){
+                    /*
+                     * One command line at a time
+                     */
+                    for (int cc = 0; cc < end; cc++){
+                        if ('\r' == this.buffer[cc]){
+                            end = cc+1;
+                            break;
+                        }
+                    }
+                }
+                this.out.limit(end);
+                this.out.position(0);
+                int wrote;
+                try {
+                    wrote = this.connection.write(this.out);
+                }
+                catch (IOException exc){
+                    wrote = -1;
+                }
+                if (0 > wrote){
+                    this.count = 0;
+                    this.release = 0;
+                }
+                else if (0 < wrote){
+                    written = ('\r' == this.buffer[wrote-1]);
+                    if (this.gate && written){
+                        this.gated = true;
+                        this.gatedAt = System.nanoTime();
+                        timeout = true;
+                    }
+                    this.count -= wrote;
+                    this.release -= wrote;
+                    System.arraycopy(this.buffer,wrote,this.buffer,0,this.count);
+                }
+                if (this.full && this.count < this.buffer.length){
+                    this.full = false;
+                    writable = true;
+                }
+            }
+            else if (0 == this.count)
+                writable = true;
+        }
+        if (written){
+            LatencyStats stats = this.stats;
+            if (null != stats)
+                stats.written(System.nanoTime());
+        }
+        if (timeout)
+            this.loop.schedule(this.timeout,PROMPT);
+        if (writable){
+            Listener listener = this.listener;
+            if (null != listener)
+                listener.writable(this);
+        }
+    }
+    /**
+     * Idle timeout: release a partial line, or wait again from the
+     * last write.
+     */
+    private void idle(){
+        long wait;
+        boolean again;
+        synchronized(this){
+            wait = IDLE-(System.nanoTime()-this.writtenAt);
+            again = (0L < wait && 0 == this.release && 0 < this.count);
+            if (!again){
+                this.idlePosted = false;
+                this.release = this.count;
+            }
+        }
+        if (again)
+            this.loop.schedule(this.idle,wait);
+        else
+            this.flush();
+    }
+    /**
+     * Prompt timeout, possibly for a line answered long ago.
+     */
+    private void timeout(){
+        boolean expired;
+        synchronized(this){
+            expired = (this.gated && PROMPT <= (System.nanoTime()-this.gatedAt));
+        }
+        if (expired)
+            this.open();
+    }
+    /**
+     * Prompt seen.
+     */
+    private void open(){
+        boolean post = false;
+        synchronized(this){
+            if (this.gated){
+                this.gated = false;
+                if (0 < this.release && !this.flushPosted){
+                    this.flushPosted = true;
+                    post = true;
+                }
+            }
+        }
+        if (post)
+            this.loop.post(this.flush);
+    }
+}
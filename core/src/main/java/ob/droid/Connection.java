@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface from GUI to ODB2.
+ *
+ * A connection is a non-blocking byte transport to an adapter.  Read
+ * and write never block: they transfer what they can and return the
+ * count, leaving the buffer positions advanced.  The caller learns
+ * when to try again from its {@link Connection.Listener listener}.
+ *
+ * Readiness is edge triggered.  The listener is told "readable" once,
+ * and is told again only after a read has returned zero.  Likewise
+ * "writable" follows a short write.  Callbacks may arrive on any
+ * thread, so a listener normally just posts a message to its own
+ * thread and returns.
+ */
+public interface Connection {
+
+    /**
+     * Readiness callbacks.
+     */
+    public interface Listener {
+
+        /**
+         * Input is available, or the end of input has been reached.
+         */
+        public void readable(Connection connection);
+        /**
+         * Output space is available following a short write, or an
+         * asynchronous open has completed.
+         */
+        public void writable(Connection connection);
+        /**
+         * The connection has been closed by either end.
+         */
+        public void closed(Connection connection);
+    }
+
+
+    /**
+     * Set the one listener, or null.
+     */
+    public void setListener(Listener listener);
+    /**
+     * @param dst Buffer to fill from its position up to its limit
+     * @return Number of bytes read, zero for none available, or
+     * negative one at the end of input.
+     */
+    public int read(ByteBuffer dst)
+        throws IOException;
+    /**
+     * @param src Buffer to drain from its position up to its limit
+     * @return Number of bytes written, possibly zero when the
+     * connection has no room.
+     */
+    public int write(ByteBuffer src)
+        throws IOException;
+
+    public boolean isOpen();
+    /**
+     * Release the transport and notify the listener.  Idempotent.
+     */
+    public void close();
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One selector thread shared by every channel based {@link
+ * Connection}, so that no session holds a thread blocked in read.
+ * The loop also runs posted and delayed tasks, which is where
+ * transports and decorators do their timed work.
+ *
+ * Selection keys and timers are only touched on the loop thread.
+ * Other threads hand work over with {@link #post} or {@link
+ * #schedule}, which wake the selector.
+ *
+ * A task or channel that throws is logged and the loop carries on.
+ * When the selector itself fails the loop closes every registered
+ * channel, so that their listeners are told, and ends; {@link
+ * #getDefault()} then starts a new loop.
+ */
+public class ConnectionLoop
+    extends Thread
+{
+    /**
+     * Selection key attachment.
+     */
+    public interface Channel {
+        /**
+         * Called on the loop thread with the ready set of the key.
+         */
+        public void ready(SelectionKey key);
+        /**
+         * Called on the loop thread when the loop fails.
+         */
+        public void close();
+    }
+
+    private final static class Timer
+        extends Object
+        implements Comparable<Timer>
+    {
+        final long when;
+        final long order;
+        final Runnable task;
+
+        Timer(long when, long order, Runnable task){
+            super();
+            this.when = when;
+            this.order = order;
+            this.task = task;
+        }
+
+        public int compareTo(Timer that){
+            if (this.when != that.when)
+                return (this.when < that.when)?(-1):(1);
+            else if (this.order != that.order)
+                return (this.order < that.order)?(-1):(1);
+            else
+                return 0;
+        }
+    }
+
+
+    private final static Logger LOG = Logger.getLogger("ConnectionLoop");
+
+    private static ConnectionLoop Default;
+
+    /**
+     * @return The process wide loop, started on first use.
+     */
+    public static synchronized ConnectionLoop getDefault(){
+        if (null == Default || (!Default.isAlive())){
+            try {
+                Default = new ConnectionLoop();
+                Default.start();
+            }
+            catch (IOException exc){
+                throw new IllegalStateException(exc);
+            }
+        }
+        return Default;
+    }
+
+
+    private final Selector selector;
+
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+    private ArrayList<Timer> pending = new ArrayList<Timer>();
+
+    private ArrayList<Timer> running = new ArrayList<Timer>();
+
+    private long order;
+
+    private volatile boolean shutdown;
+
+
+    public ConnectionLoop()
+        throws IOException
+    {
+        super("Connection loop");
+        this.setDaemon(true);
+        this.selector = Selector.open();
+    }
+
+
+    /**
+     * Run the task on the loop thread as soon as possible.
+     */
+    public void post(Runnable task){
+        this.schedule(task,0L);
+    }
+    /**
+     * Run the task on the loop thread after the delay.
+     */
+    public void schedule(Runnable task, long delayNanos){
+        long when = System.nanoTime()+Math.max(0L,delayNanos);
+        synchronized(this){
+            this.pending.add(new Timer(when,this.order++,task));
+        }
+        this.selector.wakeup();
+    }
+    /**
+     * @return True when called on the loop thread
+     */
+    public boolean inLoop(){
+        return (Thread.currentThread() == this);
+    }
+    /**
+     * Called on the loop thread.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Channel attachment)
+        throws ClosedChannelException
+    {
+        return channel.register(this.selector,ops,attachment);
+    }
+    /**
+     * Stop the loop and close its selector.  Registered channels are
+     * not closed.
+     */
+    public void shutdown(){
+        this.shutdown = true;
+        this.selector.wakeup();
+    }
+
+    public void run(){
+        final Selector selector = this.selector;
+        final PriorityQueue<Timer> timers = this.timers;
+        try {
+            while (!this.shutdown){
+                /*
+                 * Swap in posted work
+                 */
+                ArrayList<Timer> posted;
+                synchronized(this){
+                    posted = this.pending;
+                    this.pending = this.running;
+                    this.running = posted;
+                }
+                for (int cc = 0, count = posted.size(); cc < count; cc++){
+                    timers.add(posted.get(cc));
+                }
+                posted.clear();
+                /*
+                 * Run due timers
+                 */
+                long now = System.nanoTime();
+                Timer next;
+                while (null != (next = timers.peek()) && next.when <= now){
+                    timers.poll();
+                    try {
+                        next.task.run();
+                    }
+                    catch (RuntimeException exc){
+                        LOG.log(Level.SEVERE,"Task "+next.task,exc);
+                    }
+                }
+                /*
+                 * Wait for I/O or the next timer
+                 */
+                int selected;
+                if (null == next){
+                    selected = selector.select();
+                }
+                else {
+                    long waitMs = (next.when-now+999999L)/1000000L;
+                    if (0L < waitMs)
+                        selected = selector.select(waitMs);
+                    else
+                        selected = selector.selectNow();
+                }
+                if (0 < selected){
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid()){
+                            Channel channel = (Channel)key.attachment();
+                            try {
+                                channel.ready(key);
+                            }
+                            catch (RuntimeException exc){
+                                LOG.log(Level.SEVERE,"Channel "+channel,exc);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException exc){
+            LOG.log(Level.SEVERE,"Selector failed, closing its channels",exc);
+            this.close(selector);
+        }
+        finally {
+            try {
+                selector.close();
+            }
+            catch (IOException ignore){
+            }
+        }
+    }
+    private void close(Selector selector){
+        Object[] keys;
+        try {
+            keys = selector.keys().toArray();
+        }
+        catch (RuntimeException exc){
+            LOG.log(Level.SEVERE,"Selector keys",exc);
+            return;
+        }
+        for (int cc = 0; cc < keys.length; cc++){
+            Channel channel = (Channel)((SelectionKey)keys[cc]).attachment();
+            try {
+                channel.close();
+            }
+            catch (RuntimeException exc){
+                LOG.log(Level.SEVERE,"Channel "+channel,exc);
+            }
+        }
+    }
+}
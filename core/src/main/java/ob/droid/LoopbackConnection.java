@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * One end of an in-memory connection pair.  Each end owns a bounded
+ * ring of the bytes written to it by its peer, so a write is one
+ * copy into the ring and a read is one copy out of it.
+ *
+ * Listeners are called on the thread of the peer operation that made
+ * the end ready, after the pair's lock has been released.
+ *
+ * <pre>
+ * LoopbackConnection app = new LoopbackConnection(4096);
+ * LoopbackConnection adapter = app.getPeer();
+ * </pre>
+ */
+public class LoopbackConnection
+    extends Object
+    implements Connection
+{
+
+    private final Object lock;
+
+    private final LoopbackConnection peer;
+
+    private final byte[] ring;
+
+    private int head, count;
+
+    private boolean readArmed = true, writeArmed, closed;
+
+    private volatile Listener listener;
+
+
+    /**
+     * @param capacity Ring size of each end
+     */
+    public LoopbackConnection(int capacity){
+        super();
+        if (0 >= capacity)
+            throw new IllegalArgumentException(String.valueOf(capacity));
+        else {
+            this.lock = new Object();
+            this.ring = new byte[capacity];
+            this.peer = new LoopbackConnection(this,capacity);
+        }
+    }
+    private LoopbackConnection(LoopbackConnection peer, int capacity){
+        super();
+        this.lock = peer.lock;
+        this.ring = new byte[capacity];
+        this.peer = peer;
+    }
+
+
+    /**
+     * @return The other end
+     */
+    public LoopbackConnection getPeer(){
+        return this.peer;
+    }
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+    /**
+     * @return Bytes waiting to be read at this end
+     */
+    public int available(){
+        synchronized(this.lock){
+            return this.count;
+        }
+    }
+    public int read(ByteBuffer dst)
+        throws IOException
+    {
+        final LoopbackConnection peer = this.peer;
+        boolean notifyPeer = false;
+        int read = 0;
+        synchronized(this.lock){
+            if (0 == this.count){
+                this.readArmed = true;
+                if (this.closed)
+                    return -1;
+                else
+                    return 0;
+            }
+            else {
+                final byte[] ring = this.ring;
+                final int capacity = ring.length;
+                int want = Math.min(dst.remaining(),this.count);
+                while (0 < want){
+                    int run = Math.min(want,capacity-this.head);
+                    dst.put(ring,this.head,run);
+                    this.head = (this.head+run) % capacity;
+                    this.count -= run;
+                    want -= run;
+                    read += run;
+                }
+                if (0 < read && peer.writeArmed){
+                    peer.writeArmed = false;
+                    notifyPeer = true;
+                }
+            }
+        }
+        if (notifyPeer){
+            Listener listener = peer.listener;
+            if (null != listener){
+                listener.writable(peer);
+            }
+        }
+        return read;
+    }
+    public int write(ByteBuffer src)
+        throws IOException
+    {
+        final LoopbackConnection peer = this.peer;
+        boolean notifyPeer = false;
+        int wrote = 0;
+        synchronized(this.lock){
+            if (this.closed)
+                throw new ClosedChannelException();
+            else {
+                final byte[] ring = peer.ring;
+                final int capacity = ring.length;
+                int want = Math.min(src.remaining(),capacity-peer.count);
+                while (0 < want){
+                    int tail = (peer.head+peer.count) % capacity;
+                    int run = Math.min(want,capacity-tail);
+                    src.get(ring,tail,run);
+                    peer.count += run;
+                    want -= run;
+                    wrote += run;
+                }
+                if (src.hasRemaining()){
+                    this.writeArmed = true;
+                }
+                if (0 < wrote && peer.readArmed){
+                    peer.readArmed = false;
+                    notifyPeer = true;
+                }
+            }
+        }
+        if (notifyPeer){
+            Listener listener = peer.listener;
+            if (null != listener){
+                listener.readable(peer);
+            }
+        }
+        return wrote;
+    }
+    public boolean isOpen(){
+        synchronized(this.lock){
+            return (!this.closed);
+        }
+    }
+    /**
+     * Close both ends.  Bytes already written remain readable at the
+     * peer, after which it reads end of input.
+     */
+    public void close(){
+        final LoopbackConnection peer = this.peer;
+        synchronized(this.lock){
+            if (this.closed)
+                return;
+            else {
+                this.closed = true;
+                peer.closed = true;
+            }
+        }
+        Listener listener = this.listener;
+        if (null != listener){
+            listener.closed(this);
+        }
+        listener = peer.listener;
+        if (null != listener){
+            listener.closed(peer);
+        }
+    }
+}
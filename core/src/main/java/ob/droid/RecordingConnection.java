@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Records the bytes through another connection, in both directions,
+ * for {@link ReplayConnection}.
+ *
+ * The file starts with the magic "OBDR", a version byte and the wall
+ * clock time in milliseconds.  Each chunk read or written follows as
+ * a direction byte, the nanoseconds since the previous chunk and the
+ * chunk length, both as unsigned varints, and the chunk bytes.
+ *
+ * A recording error stops the recording, not the connection.
+ */
+public class RecordingConnection
+    extends Object
+    implements Connection,
+               Connection.Listener
+{
+    public final static int MAGIC = 0x4F424452;
+
+    public final static int VERSION = 1;
+    /**
+     * Direction of a chunk read from the adapter.
+     */
+    public final static int IN = 0;
+    /**
+     * Direction of a chunk written to the adapter.
+     */
+    public final static int OUT = 1;
+
+
+    /**
+     * Sequential reader of a recording.
+     */
+    public static class Reader
+        extends Object
+    {
+        private final DataInputStream in;
+
+        private final long start;
+
+        private int direction, length;
+
+        private long time;
+
+        private byte[] data = new byte[0x100];
+
+
+        /**
+         * @param in Recording, from a file or another stream whose
+         * available count is the number of bytes left
+         */
+        public Reader(InputStream in)
+            throws IOException
+        {
+            super();
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (MAGIC != this.in.readInt())
+                throw new IOException("Not a recording");
+            else if (VERSION != this.in.readUnsignedByte())
+                throw new IOException("Unknown recording version");
+            else
+                this.start = this.in.readLong();
+        }
+
+
+        /**
+         * @return Wall clock time of the recording start in
+         * milliseconds
+         */
+        public long getStart(){
+            return this.start;
+        }
+        /**
+         * @return False at the end of the recording
+         * @exception java.io.IOException A chunk direction or length
+         * that cannot be, from a truncated or corrupt recording
+         */
+        public boolean next()
+            throws IOException
+        {
+            int direction = this.in.read();
+            if (0 > direction)
+                return false;
+            else {
+                try {
+                    if (IN != direction && OUT != direction)
+                        throw new IOException("Corrupt recording");
+                    this.direction = direction;
+                    this.time += readVarint(this.in);
+                    long value = readVarint(this.in);
+                    if (0L > value || this.in.available() < value)
+                        throw new IOException("Corrupt recording");
+                    int length = (int)value;
+                    if (length > this.data.length)
+                        this.data = new byte[Math.max(length,2*this.data.length)];
+                    this.in.readFully(this.data,0,length);
+                    this.length = length;
+                    return true;
+                }
+                catch (EOFException exc){
+                    /*
+                     * Truncated by a crash
+                     */
+                    return false;
+                }
+            }
+        }
+        /**
+         * @return {@link RecordingConnection#IN} or {@link
+         * RecordingConnection#OUT}
+         */
+        public int getDirection(){
+            return this.direction;
+        }
+        /**
+         * @return Nanoseconds from the recording start
+         */
+        public long getTime(){
+            return this.time;
+        }
+        /**
+         * @return Chunk bytes, valid until the next chunk
+         */
+        public byte[] getData(){
+            return this.data;
+        }
+        public int getLength(){
+            return this.length;
+        }
+        public void close()
+            throws IOException
+        {
+            this.in.close();
+        }
+    }
+
+
+    private final Connection connection;
+
+    private DataOutputStream out;
+
+    private IOException error;
+
+    private long last;
+
+    private byte[] scratch = new byte[0x100];
+
+    private volatile Listener listener;
+
+
+    public RecordingConnection(Connection connection, File file)
+        throws IOException
+    {
+        this(connection,new FileOutputStream(file));
+    }
+    /**
+     * @param connection Connection to record
+     * @param out Recording destination, closed with the connection
+     */
+    public RecordingConnection(Connection connection, OutputStream out)
+        throws IOException
+    {
+        super();
+        if (null == connection)
+            throw new IllegalArgumentException();
+        else {
+            this.connection = connection;
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(System.currentTimeMillis());
+            this.last = System.nanoTime();
+            connection.setListener(this);
+        }
+    }
+
+
+    public Connection getConnection(){
+        return this.connection;
+    }
+    /**
+     * @return The error that stopped the recording, or null
+     */
+    public synchronized IOException getError(){
+        return this.error;
+    }
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+    public int read(ByteBuffer dst)
+        throws IOException
+    {
+        final int start = dst.position();
+        final int read = this.connection.read(dst);
+        if (0 < read)
+            this.record(IN,dst,start,read);
+        return read;
+    }
+    public int write(ByteBuffer src)
+        throws IOException
+    {
+        final int start = src.position();
+        final int wrote = this.connection.write(src);
+        if (0 < wrote)
+            this.record(OUT,src,start,wrote);
+        return wrote;
+    }
+    public boolean isOpen(){
+        return this.connection.isOpen();
+    }
+    /**
+     * Close the connection and finish the recording.
+     */
+    public void close(){
+        this.connection.close();
+        this.finish();
+    }
+
+    public void readable(Connection connection){
+        Listener listener = this.listener;
+        if (null != listener)
+            listener.readable(this);
+    }
+    public void writable(Connection connection){
+        Listener listener = this.listener;
+        if (null != listener)
+            listener.writable(this);
+    }
+    public void closed(Connection connection){
+        this.finish();
+        Listener listener = this.listener;
+        if (null != listener)
+            listener.closed(this);
+    }
+
+    private synchronized void record(int direction, ByteBuffer buffer, int start, int length){
+        if (null != this.out){
+            if (length > this.scratch.length)
+                this.scratch = new byte[Math.max(length,2*this.scratch.length)];
+            for (int cc = 0; cc < length; cc++){
+                this.scratch[cc] = buffer.get(start+cc);
+            }
+            long now = System.nanoTime();
+            try {
+                this.out.writeByte(direction);
+                writeVarint(this.out,now-this.last);
+                writeVarint(this.out,length);
+                this.out.write(this.scratch,0,length);
+                this.last = now;
+            }
+            catch (IOException exc){
+                this.error = exc;
+                this.finish();
+            }
+        }
+    }
+    private synchronized void finish(){
+        DataOutputStream out = this.out;
+        if (null != out){
+            this.out = null;
+            try {
+                out.close();
+            }
+            catch (IOException exc){
+                if (null == this.error)
+                    this.error = exc;
+            }
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long value)
+        throws IOException
+    {
+        while (0L != (value & ~0x7FL)){
+            out.writeByte((int)((value & 0x7F)|0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+    private static long readVarint(DataInputStream in)
+        throws IOException
+    {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= ((long)(b & 0x7F)) << shift;
+            if (0 == (b & 0x80))
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
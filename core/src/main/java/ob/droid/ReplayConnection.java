@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays the adapter side of a {@link RecordingConnection} file.
+ *
+ * The inbound chunks arrive through a {@link LoopbackConnection}, so
+ * a consumer sees the same chunking and readiness callbacks as from a
+ * live adapter.  Playback runs on the loop thread at the recorded
+ * times divided by the speed: one for real time, greater for faster,
+ * or {@link #MAX_SPEED} to deliver each chunk as soon as the consumer
+ * has made room for it.  Bytes written by the consumer are taken and
+ * discarded.  At the end of the recording the connection reads end of
+ * input.
+ */
+public class ReplayConnection
+    extends Object
+    implements Connection
+{
+    /**
+     * Speed for playback without delays.
+     */
+    public final static double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    public final static int CAPACITY = 0x4000;
+
+
+    private final RecordingConnection.Reader reader;
+
+    private final ConnectionLoop loop;
+
+    private final double speed;
+
+    private final LoopbackConnection near;
+
+    private final LoopbackConnection far;
+
+    private final ByteBuffer discard = ByteBuffer.allocate(0x100);
+
+    /*
+     * Player state, on the loop thread
+     */
+    private ByteBuffer chunk;
+
+    private long origin;
+
+    private boolean started, waiting;
+
+    private volatile long chunks, bytes;
+
+    private volatile Listener listener;
+
+    private final Runnable step = new Runnable(){
+            public void run(){
+                ReplayConnection.this.step();
+            }
+        };
+
+    private final Runnable timer = new Runnable(){
+            public void run(){
+                ReplayConnection.this.waiting = false;
+                ReplayConnection.this.step();
+            }
+        };
+
+
+    public ReplayConnection(File file, double speed)
+        throws IOException
+    {
+        this(new FileInputStream(file),speed,ConnectionLoop.getDefault());
+    }
+    /**
+     * @param in Recording, closed at its end
+     * @param speed Greater than zero
+     * @param loop Playback thread
+     */
+    public ReplayConnection(InputStream in, double speed, ConnectionLoop loop)
+        throws IOException
+    {
+        super();
+        if (!(0.0 < speed))
+            throw new IllegalArgumentException(String.valueOf(speed));
+        else if (null == loop)
+            throw new IllegalArgumentException();
+        else {
+            this.reader = new RecordingConnection.Reader(in);
+            this.speed = speed;
+            this.loop = loop;
+            this.near = new LoopbackConnection(CAPACITY);
+            this.far = this.near.getPeer();
+            this.far.setListener(new Connection.Listener(){
+                    public void readable(Connection connection){
+                        ReplayConnection.this.loop.post(ReplayConnection.this.step);
+                    }
+                    public void writable(Connection connection){
+                        ReplayConnection.this.loop.post(ReplayConnection.this.step);
+                    }
+                    public void closed(Connection connection){
+                    }
+                });
+        }
+    }
+
+
+    /**
+     * Begin playback, as for {@link TcpConnection#open()}.  The
+     * listener is told "writable" on the loop thread.
+     */
+    public void open(){
+        this.loop.post(new Runnable(){
+                public void run(){
+                    if (!ReplayConnection.this.started){
+                        ReplayConnection.this.started = true;
+                        ReplayConnection.this.origin = System.nanoTime();
+                        Listener listener = ReplayConnection.this.listener;
+                        if (null != listener)
+                            listener.writable(ReplayConnection.this);
+                        ReplayConnection.this.step();
+                    }
+                }
+            });
+    }
+    public double getSpeed(){
+        return this.speed;
+    }
+    /**
+     * @return Inbound chunks delivered
+     */
+    public long getChunks(){
+        return this.chunks;
+    }
+    /**
+     * @return Inbound bytes delivered
+     */
+    public long getBytes(){
+        return this.bytes;
+    }
+
+    public void setListener(final Listener listener){
+        this.listener = listener;
+        if (null == listener)
+            this.near.setListener(null);
+        else {
+            this.near.setListener(new Connection.Listener(){
+                    public void readable(Connection connection){
+                        listener.readable(ReplayConnection.this);
+                    }
+                    public void writable(Connection connection){
+                        listener.writable(ReplayConnection.this);
+                    }
+                    public void closed(Connection connection){
+                        listener.closed(ReplayConnection.this);
+                    }
+                });
+        }
+    }
+    public int read(ByteBuffer dst)
+        throws IOException
+    {
+        return this.near.read(dst);
+    }
+    public int write(ByteBuffer src)
+        throws IOException
+    {
+        return this.near.write(src);
+    }
+    public boolean isOpen(){
+        return this.near.isOpen();
+    }
+    public void close(){
+        this.near.close();
+        this.loop.post(new Runnable(){
+                public void run(){
+                    ReplayConnection.this.end();
+                }
+            });
+    }
+
+    /**
+     * Deliver due chunks, on the loop thread.
+     */
+    private void step(){
+        if (!this.started || !this.far.isOpen())
+            return;
+        else {
+            try {
+                /*
+                 * Take what the consumer has written
+                 */
+                this.discard.clear();
+                while (0 < this.far.read(this.discard)){
+                    this.discard.clear();
+                }
+                while (true){
+                    if (null == this.chunk || !this.chunk.hasRemaining()){
+                        if (!this.next()){
+                            this.end();
+                            return;
+                        }
+                        else {
+                            this.chunks += 1;
+                            this.bytes += this.chunk.remaining();
+                        }
+                    }
+                    if (MAX_SPEED != this.speed){
+                        long due = this.origin+(long)(this.reader.getTime()/this.speed);
+                        long delay = due-System.nanoTime();
+                        if (0L < delay){
+                            if (!this.waiting){
+                                this.waiting = true;
+                                this.loop.schedule(this.timer,delay);
+                            }
+                            return;
+                        }
+                    }
+                    this.far.write(this.chunk);
+                    if (this.chunk.hasRemaining()){
+                        /*
+                         * Consumer is behind: continue when it reads
+                         */
+                        return;
+                    }
+                }
+            }
+            catch (IOException exc){
+                this.end();
+            }
+        }
+    }
+    /**
+     * Advance to the next inbound chunk.
+     */
+    private boolean next()
+        throws IOException
+    {
+        while (this.reader.next()){
+            if (RecordingConnection.IN == this.reader.getDirection()){
+                this.chunk = ByteBuffer.wrap(this.reader.getData(),0,this.reader.getLength());
+                return true;
+            }
+        }
+        return false;
+    }
+    private void end(){
+        this.far.close();
+        try {
+            this.reader.close();
+        }
+        catch (IOException ignore){
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Wi-Fi adapter connection, as for the ELM327 clones that listen on
+ * 192.168.0.10:35000.  The socket channel is non-blocking and served
+ * by a shared {@link ConnectionLoop}.
+ *
+ * Read interest is dropped when "readable" is delivered and restored
+ * when a read comes up empty, so the selector never spins while the
+ * consumer is busy elsewhere.
+ */
+public class TcpConnection
+    extends Object
+    implements Connection,
+               ConnectionLoop.Channel
+{
+    public final static String DEFAULT_HOST = "192.168.0.10";
+    public final static int DEFAULT_PORT = 35000;
+
+
+    private final SocketAddress address;
+
+    private final ConnectionLoop loop;
+
+    private final SocketChannel channel;
+
+    private volatile Listener listener;
+
+    private volatile boolean connected, closed;
+
+    private SelectionKey key;
+
+    private int interest;
+
+    private final Runnable rearmRead = new Runnable(){
+            public void run(){
+                TcpConnection.this.interest(SelectionKey.OP_READ);
+            }
+        };
+
+    private final Runnable rearmWrite = new Runnable(){
+            public void run(){
+                TcpConnection.this.interest(SelectionKey.OP_WRITE);
+            }
+        };
+
+
+    public TcpConnection(String host, int port)
+        throws IOException
+    {
+        this(new InetSocketAddress(host,port),ConnectionLoop.getDefault());
+    }
+    public TcpConnection(SocketAddress address, ConnectionLoop loop)
+        throws IOException
+    {
+        super();
+        this.address = address;
+        this.loop = loop;
+        this.channel = SocketChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.socket().setTcpNoDelay(true);
+    }
+
+
+    public SocketAddress getAddress(){
+        return this.address;
+    }
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+    /**
+     * Begin connecting.  The listener is told "writable" when the
+     * connection is established, or "closed" when it fails.
+     */
+    public void open()
+        throws IOException
+    {
+        if (this.channel.connect(this.address))
+            this.connected = true;
+
+        this.loop.post(new Runnable(){
+                public void run(){
+                    TcpConnection.this.register();
+                }
+            });
+    }
+    public boolean isConnected(){
+        return this.connected;
+    }
+    public boolean isOpen(){
+        return (!this.closed);
+    }
+    public int read(ByteBuffer dst)
+        throws IOException
+    {
+        if (this.connected){
+            int read = this.channel.read(dst);
+            if (0 == read){
+                this.loop.post(this.rearmRead);
+            }
+            else if (0 > read){
+                this.close();
+            }
+            return read;
+        }
+        else if (this.closed)
+            return -1;
+        else
+            return 0;
+    }
+    public int write(ByteBuffer src)
+        throws IOException
+    {
+        if (this.connected){
+            int wrote = this.channel.write(src);
+            if (src.hasRemaining()){
+                this.loop.post(this.rearmWrite);
+            }
+            return wrote;
+        }
+        else if (this.closed)
+            throw new ClosedChannelException();
+        else
+            return 0;
+    }
+    public void close(){
+        if (!this.closed){
+            this.closed = true;
+            this.connected = false;
+            try {
+                this.channel.close();
+            }
+            catch (IOException ignore){
+            }
+            Listener listener = this.listener;
+            if (null != listener){
+                listener.closed(this);
+            }
+        }
+    }
+    /**
+     * Selection key readiness, on the loop thread.
+     */
+    public void ready(SelectionKey key){
+        int ready = key.readyOps();
+        try {
+            if (0 != (ready & SelectionKey.OP_CONNECT)){
+                if (this.channel.finishConnect()){
+                    this.connected = true;
+                    this.interest = 0;
+                    this.interest(SelectionKey.OP_READ);
+                    Listener listener = this.listener;
+                    if (null != listener){
+                        listener.writable(this);
+                    }
+                }
+                return;
+            }
+        }
+        catch (IOException exc){
+            this.close();
+            return;
+        }
+        Listener listener = this.listener;
+        if (0 != (ready & SelectionKey.OP_READ)){
+            this.interest &= ~SelectionKey.OP_READ;
+            key.interestOps(this.interest);
+            if (null != listener){
+                listener.readable(this);
+            }
+        }
+        if (0 != (ready & SelectionKey.OP_WRITE)){
+            this.interest &= ~SelectionKey.OP_WRITE;
+            key.interestOps(this.interest);
+            if (null != listener){
+                listener.writable(this);
+            }
+        }
+    }
+    /**
+     * On the loop thread.
+     */
+    private void register(){
+        if (!this.closed){
+            try {
+                if (this.connected){
+                    this.interest = SelectionKey.OP_READ;
+                    this.key = this.loop.register(this.channel,this.interest,this);
+                    Listener listener = this.listener;
+                    if (null != listener){
+                        listener.writable(this);
+                    }
+                }
+                else {
+                    this.interest = SelectionKey.OP_CONNECT;
+                    this.key = this.loop.register(this.channel,this.interest,this);
+                }
+            }
+            catch (ClosedChannelException exc){
+                this.close();
+            }
+        }
+    }
+    /**
+     * On the loop thread.  Restore read interest after an empty read,
+     * or add write interest after a short write.  A spurious restore
+     * only costs one empty read.
+     */
+    private void interest(int ops){
+        SelectionKey key = this.key;
+        if (null != key && key.isValid()){
+            this.interest |= ops;
+            key.interestOps(this.interest);
+        }
+    }
+}
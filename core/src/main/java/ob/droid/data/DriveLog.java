@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+import ob.droid.ConnectionLoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of samples in memory mapped segment files.
+ *
+ * A segment is a sequence of blocks.  The first block holds the
+ * segment header: the magic "OBDS", the version, the wall clock time
+ * in milliseconds and the {@link java.lang.System#nanoTime()} taken
+ * with it, the block size and the number of blocks.  Each following
+ * block holds a header of the magic "OBDB", the block index, the
+ * record count and the CRC32 of the records, followed by sixteen byte
+ * records of time, PID and value.
+ *
+ * Records are written into the mapping as they arrive, and the block
+ * header is written when the block is full, at {@link #flush()}, and
+ * at the force interval, when the mapping is also forced to storage.
+ * The force interval runs from the first record after a force on a
+ * loop timer, so records are forced in time also when no more arrive.
+ * The mapping outlives the process, so a process kill loses at most
+ * the records since the last block header, and a system crash those
+ * since the last force.  A new segment is started when one is full
+ * and at every open.
+ */
+public class DriveLog
+    extends Object
+{
+    public final static int SEGMENT_MAGIC = 0x4F424453;
+
+    public final static int BLOCK_MAGIC = 0x4F424442;
+
+    public final static int VERSION = 1;
+
+    public final static int BLOCK = 4096;
+
+    public final static int HEADER = 16;
+
+    public final static int RECORD = 16;
+
+    public final static int RECORDS = (BLOCK-HEADER)/RECORD;
+    /**
+     * Blocks per segment, including the segment header, for eight
+     * megabyte segments.
+     */
+    public final static int BLOCKS = 2048;
+    /**
+     * Longest time between forces, in nanoseconds.
+     */
+    public final static long FORCE = 1000000000L;
+
+    private final static String PREFIX = "drive-";
+
+    private final static String SUFFIX = ".log";
+
+
+    /**
+     * Sequential reader of the segments in a directory, or of given
+     * segments.  Each segment is read up to its first block that is
+     * missing or fails its CRC.
+     */
+    public static class Reader
+        extends Object
+    {
+        private final File[] segments;
+
+        private final byte[] block = new byte[BLOCK];
+
+        private final ByteBuffer data = ByteBuffer.wrap(this.block);
+
+        private final CRC32 crc = new CRC32();
+
+        private int segment = -1, blockIndex, blocks, record, records;
+
+        private FileChannel channel;
+
+        private MappedByteBuffer map;
+
+        private long wallOrigin, nanoOrigin, corrupt;
+
+        private int pid;
+
+        private long time;
+
+        private float value;
+
+
+        public Reader(File dir){
+            this(list(dir));
+        }
+        public Reader(File[] segments){
+            super();
+            this.segments = segments;
+        }
+
+
+        /**
+         * @return False after the last record
+         */
+        public boolean next()
+            throws IOException
+        {
+            while (this.record >= this.records){
+                if (!this.nextBlock())
+                    return false;
+            }
+            final int at = HEADER+(this.record++)*RECORD;
+            this.time = this.data.getLong(at);
+            this.pid = this.data.getInt(at+8);
+            this.value = this.data.getFloat(at+12);
+            return true;
+        }
+        public int getPid(){
+            return this.pid;
+        }
+        /**
+         * @return Time as appended
+         */
+        public long getTime(){
+            return this.time;
+        }
+        /**
+         * @return Wall clock time in milliseconds, from the segment
+         * header
+         */
+        public long getWallTime(){
+            return this.wallOrigin+(this.time-this.nanoOrigin)/1000000L;
+        }
+        public float getValue(){
+            return this.value;
+        }
+        /**
+         * @return Number of blocks that failed their CRC
+         */
+        public long getCorrupt(){
+            return this.corrupt;
+        }
+        public void close()
+            throws IOException
+        {
+            this.map = null;
+            if (null != this.channel){
+                this.channel.close();
+                this.channel = null;
+            }
+            this.segment = this.segments.length;
+        }
+
+        private boolean nextBlock()
+            throws IOException
+        {
+            while (null == this.map || this.blockIndex >= this.blocks){
+                if (!this.nextSegment())
+                    return false;
+            }
+            this.map.position(this.blockIndex*BLOCK);
+            this.map.get(this.block);
+            this.record = 0;
+            this.records = 0;
+            int count = this.data.getInt(8);
+            if (BLOCK_MAGIC != this.data.getInt(0) || this.blockIndex != this.data.getInt(4)
+                || 0 > count || RECORDS < count)
+            {
+                /*
+                 * End of the segment
+                 */
+                this.blockIndex = this.blocks;
+                return true;
+            }
+            else {
+                this.crc.reset();
+                this.crc.update(this.block,HEADER,count*RECORD);
+                if ((int)this.crc.getValue() != this.data.getInt(12)){
+                    this.corrupt += 1;
+                    this.blockIndex = this.blocks;
+                }
+                else {
+                    this.records = count;
+                    this.blockIndex += 1;
+                }
+                return true;
+            }
+        }
+        private boolean nextSegment()
+            throws IOException
+        {
+            this.map = null;
+            if (null != this.channel){
+                this.channel.close();
+                this.channel = null;
+            }
+            while (++this.segment < this.segments.length){
+                RandomAccessFile file = new RandomAccessFile(this.segments[this.segment],"r");
+                FileChannel channel = file.getChannel();
+                long size = channel.size();
+                if (BLOCK <= size){
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,0L,size);
+                    if (SEGMENT_MAGIC == map.getInt(0) && VERSION == map.getInt(4)
+                        && BLOCK == map.getInt(24))
+                    {
+                        this.channel = channel;
+                        this.map = map;
+                        this.wallOrigin = map.getLong(8);
+                        this.nanoOrigin = map.getLong(16);
+                        this.blocks = (int)Math.min(map.getInt(28),size/BLOCK);
+                        this.blockIndex = 1;
+                        return true;
+                    }
+                }
+                channel.close();
+            }
+            return false;
+        }
+    }
+
+
+    private final File dir;
+
+    private final int blocks;
+
+    private final long force;
+
+    private final ConnectionLoop loop;
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] scratch = new byte[BLOCK-HEADER];
+
+    private RandomAccessFile file;
+
+    private MappedByteBuffer map;
+
+    private int segment, blockIndex, count;
+
+    private long forcedAt, records, forces;
+
+    private boolean sealed, dirty, scheduled;
+
+    private final Runnable timer = new Runnable(){
+            public void run(){
+                DriveLog.this.timer();
+            }
+        };
+
+
+    public DriveLog(File dir)
+        throws IOException
+    {
+        this(dir,BLOCKS,FORCE,ConnectionLoop.getDefault());
+    }
+    public DriveLog(File dir, int blocks, long force)
+        throws IOException
+    {
+        this(dir,blocks,force,ConnectionLoop.getDefault());
+    }
+    /**
+     * @param dir Segment directory
+     * @param blocks Blocks per segment, at least two
+     * @param force Longest time between forces, in nanoseconds
+     * @param loop Loop for the force timer
+     */
+    public DriveLog(File dir, int blocks, long force, ConnectionLoop loop)
+        throws IOException
+    {
+        super();
+        if (null == dir || null == loop)
+            throw new IllegalArgumentException();
+        else if (2 > blocks)
+            throw new IllegalArgumentException(String.valueOf(blocks));
+        else if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException(dir.getPath());
+        else {
+            this.dir = dir;
+            this.blocks = blocks;
+            this.force = force;
+            this.loop = loop;
+            File[] list = list(dir);
+            if (0 < list.length)
+                this.segment = index(list[list.length-1])+1;
+            this.open();
+        }
+    }
+
+
+    public File getDir(){
+        return this.dir;
+    }
+    /**
+     * @return Number of the current segment
+     */
+    public int getSegment(){
+        return this.segment;
+    }
+    public long getRecords(){
+        return this.records;
+    }
+    public synchronized long getForces(){
+        return this.forces;
+    }
+    /**
+     * @param time Sample time from {@link java.lang.System#nanoTime()}
+     */
+    public synchronized void append(int pid, long time, float value)
+        throws IOException
+    {
+        if (null == this.map)
+            throw new IOException("Closed");
+        else {
+            final int at = this.blockIndex*BLOCK+HEADER+this.count*RECORD;
+            this.map.putLong(at,time);
+            this.map.putInt(at+8,pid);
+            this.map.putFloat(at+12,value);
+            this.count += 1;
+            this.records += 1;
+            this.sealed = false;
+            this.dirty = true;
+            if (RECORDS == this.count){
+                this.seal();
+                this.blockIndex += 1;
+                this.count = 0;
+                if (this.blockIndex == this.blocks){
+                    this.close();
+                    this.segment += 1;
+                    this.open();
+                }
+            }
+            if (this.force <= (time-this.forcedAt))
+                this.force(time);
+            else if (!this.scheduled){
+                this.scheduled = true;
+                this.loop.schedule(this.timer,this.force);
+            }
+        }
+    }
+    /**
+     * Write the current block header and force the segment.
+     */
+    public synchronized void flush()
+        throws IOException
+    {
+        if (null != this.map)
+            this.force(System.nanoTime());
+    }
+    public synchronized void close()
+        throws IOException
+    {
+        if (null != this.map){
+            this.force(System.nanoTime());
+            this.map = null;
+            this.file.close();
+            this.file = null;
+        }
+    }
+
+    private void open()
+        throws IOException
+    {
+        File file = new File(this.dir,name(this.segment));
+        this.file = new RandomAccessFile(file,"rw");
+        this.file.setLength(0L);
+        this.file.setLength((long)this.blocks*BLOCK);
+        this.map = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE,0L,(long)this.blocks*BLOCK);
+        this.forcedAt = System.nanoTime();
+        this.map.putInt(0,SEGMENT_MAGIC);
+        this.map.putInt(4,VERSION);
+        this.map.putLong(8,System.currentTimeMillis());
+        this.map.putLong(16,this.forcedAt);
+        this.map.putInt(24,BLOCK);
+        this.map.putInt(28,this.blocks);
+        this.blockIndex = 1;
+        this.count = 0;
+        this.sealed = true;
+        this.map.force();
+    }
+    /**
+     * Write the header of the current block.
+     */
+    private void seal(){
+        if (!this.sealed){
+            final int at = this.blockIndex*BLOCK;
+            final int len = this.count*RECORD;
+            this.map.position(at+HEADER);
+            this.map.get(this.scratch,0,len);
+            this.crc.reset();
+            this.crc.update(this.scratch,0,len);
+            this.map.putInt(at,BLOCK_MAGIC);
+            this.map.putInt(at+4,this.blockIndex);
+            this.map.putInt(at+8,this.count);
+            this.map.putInt(at+12,(int)this.crc.getValue());
+            this.sealed = true;
+        }
+    }
+    private void force(long now){
+        if (0 < this.count)
+            this.seal();
+        this.map.force();
+        this.forcedAt = now;
+        this.forces += 1;
+        this.dirty = false;
+    }
+    /**
+     * Force timer: force records appended since the last force, once
+     * they have waited the force interval.
+     */
+    private void timer(){
+        long wait = 0L;
+        synchronized(this){
+            this.scheduled = false;
+            if (null != this.map && this.dirty){
+                final long now = System.nanoTime();
+                wait = this.force-(now-this.forcedAt);
+                if (0L >= wait)
+                    this.force(now);
+                else
+                    this.scheduled = true;
+            }
+        }
+        if (0L < wait)
+            this.loop.schedule(this.timer,wait);
+    }
+
+    /**
+     * @return Segment files in order
+     */
+    public static File[] list(File dir){
+        File[] list = dir.listFiles();
+        if (null == list)
+            return new File[0];
+        else {
+            int count = 0;
+            for (int cc = 0; cc < list.length; cc++){
+                if (-1 < index(list[cc]))
+                    list[count++] = list[cc];
+            }
+            File[] segments = new File[count];
+            System.arraycopy(list,0,segments,0,count);
+            Arrays.sort(segments);
+            return segments;
+        }
+    }
+    private static String name(int segment){
+        String digits = Integer.toString(segment);
+        StringBuilder name = new StringBuilder(PREFIX);
+        for (int cc = digits.length(); cc < 8; cc++){
+            name.append('0');
+        }
+        return name.append(digits).append(SUFFIX).toString();
+    }
+    /**
+     * @return Segment number, or negative one when not a segment
+     */
+    private static int index(File file){
+        String name = file.getName();
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)
+            && (PREFIX.length()+8+SUFFIX.length()) == name.length())
+        {
+            try {
+                return Integer.parseInt(name.substring(PREFIX.length(),PREFIX.length()+8));
+            }
+            catch (NumberFormatException exc){
+                return -1;
+            }
+        }
+        else
+            return -1;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+/**
+ * Latency histogram of fixed size, after HdrHistogram (Tene).
+ *
+ * Values are counted in microseconds, in buckets that double in
+ * width, each split into 32 sub-buckets, so any value is counted
+ * within about three percent of itself from one microsecond to the
+ * maximum of about a minute, in under three kilobytes.  Recording is
+ * a few arithmetic operations and one increment.
+ *
+ * One thread records.  Other threads may read for display, and see
+ * counts that are at worst a few records behind.
+ */
+public class LatencyHistogram
+    extends Object
+{
+    private final static int SUB_BITS = 6;
+
+    private final static int SUB_COUNT = (1 << SUB_BITS);
+
+    private final static int SUB_HALF = (SUB_COUNT >> 1);
+
+    /**
+     * Largest value counted in its own bucket, in microseconds.
+     */
+    private final static long MAX_MICROS = (1L << 26)-1;
+
+    private final static int LENGTH = index(MAX_MICROS)+1;
+
+
+    private final int[] counts = new int[LENGTH];
+
+    private volatile long count, max, total;
+
+    private volatile long min = Long.MAX_VALUE;
+
+
+    public LatencyHistogram(){
+        super();
+    }
+
+
+    /**
+     * @param nanos Latency in nanoseconds
+     */
+    public void record(long nanos){
+        if (0L > nanos)
+            nanos = 0L;
+        long micros = (nanos/1000L);
+        this.counts[index(Math.min(micros,MAX_MICROS))] += 1;
+        this.count += 1;
+        this.total += nanos;
+        if (nanos > this.max)
+            this.max = nanos;
+        if (nanos < this.min)
+            this.min = nanos;
+    }
+    public void reset(){
+        for (int cc = 0; cc < LENGTH; cc++){
+            this.counts[cc] = 0;
+        }
+        this.count = 0L;
+        this.total = 0L;
+        this.max = 0L;
+        this.min = Long.MAX_VALUE;
+    }
+    public long getCount(){
+        return this.count;
+    }
+    /**
+     * @return Largest latency in nanoseconds, exact
+     */
+    public long getMax(){
+        return this.max;
+    }
+    /**
+     * @return Smallest latency in nanoseconds, exact, or zero
+     */
+    public long getMin(){
+        long min = this.min;
+        if (Long.MAX_VALUE == min)
+            return 0L;
+        else
+            return min;
+    }
+    /**
+     * @return Mean latency in nanoseconds, or zero
+     */
+    public double getMean(){
+        long count = this.count;
+        if (0L == count)
+            return 0.0;
+        else
+            return ((double)this.total)/count;
+    }
+    /**
+     * @param percentile From zero to one hundred
+     * @return Latency in nanoseconds at or below which the percentile
+     * of values fall, as the top of its bucket but not more than the
+     * maximum, or zero when empty
+     */
+    public long getPercentile(double percentile){
+        long total = 0L;
+        for (int cc = 0; cc < LENGTH; cc++){
+            total += this.counts[cc];
+        }
+        if (0L == total)
+            return 0L;
+        else {
+            long rank = (long)Math.ceil(Math.min(100.0,Math.max(0.0,percentile))*total/100.0);
+            rank = Math.max(1L,rank);
+            long seen = 0L;
+            for (int cc = 0; cc < LENGTH; cc++){
+                seen += this.counts[cc];
+                if (seen >= rank)
+                    return Math.min(this.max,(top(cc)+1L)*1000L-1L);
+            }
+            return this.max;
+        }
+    }
+    /**
+     * @param into Histogram to add these counts to
+     */
+    public void addTo(LatencyHistogram into){
+        for (int cc = 0; cc < LENGTH; cc++){
+            into.counts[cc] += this.counts[cc];
+        }
+        into.count += this.count;
+        into.total += this.total;
+        if (this.max > into.max)
+            into.max = this.max;
+        if (this.min < into.min)
+            into.min = this.min;
+    }
+
+    /**
+     * Values below the sub-bucket count have buckets of their own.
+     * Above, each doubling of the value is split into the upper half
+     * of the sub-buckets.
+     */
+    private static int index(long micros){
+        if (SUB_COUNT > micros)
+            return (int)micros;
+        else {
+            int exponent = (63-Long.numberOfLeadingZeros(micros))-(SUB_BITS-1);
+            int sub = (int)(micros >>> exponent);
+            return (exponent*SUB_HALF)+sub;
+        }
+    }
+    /**
+     * @return Largest value in microseconds counted at the index
+     */
+    private static long top(int index){
+        if (SUB_COUNT > index)
+            return index;
+        else {
+            int exponent = (index/SUB_HALF)-1;
+            int sub = (index-exponent*SUB_HALF);
+            return (((long)sub+1L) << exponent)-1L;
+        }
+    }
+}
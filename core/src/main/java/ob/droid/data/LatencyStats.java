@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency of mode 01 requests per PID and stage, from the request
+ * being issued to the request written, the first byte of the answer,
+ * the prompt, the value decoded, and the value drawn.
+ *
+ * The poll scheduler calls {@link #begin} when it issues a request,
+ * and the connection, decoder and view report their stages as they
+ * pass them.  The adapter takes one request at a time, so there is
+ * one request open.  Stages reported with no request open, as while
+ * typing at the terminal, are not counted.
+ *
+ * Histograms are created as PIDs are first requested, five per PID.
+ */
+public class LatencyStats
+    extends Object
+{
+    public final static int WRITE = 0, FIRST_BYTE = 1, PROMPT = 2, DECODED = 3, RENDERED = 4;
+
+    public final static int STAGES = 5;
+
+    public final static String[] STAGE_NAMES = {
+        "write", "first byte", "prompt", "decoded", "rendered"
+    };
+
+    private final static double MS = 1e6;
+
+    private final static char[] HEX = {
+        '0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'
+    };
+
+
+    private static LatencyStats Default;
+
+    /**
+     * @return The process wide statistics
+     */
+    public static synchronized LatencyStats getDefault(){
+        if (null == Default)
+            Default = new LatencyStats();
+        return Default;
+    }
+
+
+    private final AtomicReferenceArray<LatencyHistogram[]> histograms = new AtomicReferenceArray<LatencyHistogram[]>(0x100);
+
+    /*
+     * Issue time of the request for each PID, read by the render
+     * thread
+     */
+    private final long[] issued = new long[0x100];
+
+    private final long[] rendered = new long[0x100];
+
+    /*
+     * The open request, on the connection thread
+     */
+    private final int[] pids = new int[0x10];
+
+    private int count;
+
+    private long start;
+
+    private boolean open, written, received;
+
+
+    public LatencyStats(){
+        super();
+    }
+
+
+    /**
+     * A request is issued, closing any open one.
+     *
+     * @param now Time from {@link java.lang.System#nanoTime()}
+     * @param pids Requested PIDs
+     * @param count Number of PIDs
+     */
+    public void begin(long now, int[] pids, int count){
+        count = Math.min(count,this.pids.length);
+        for (int cc = 0; cc < count; cc++){
+            int pid = (pids[cc] & 0xFF);
+            this.pids[cc] = pid;
+            this.issued[pid] = now;
+            this.histograms(pid);
+        }
+        this.count = count;
+        this.start = now;
+        this.open = true;
+        this.written = false;
+        this.received = false;
+    }
+    /**
+     * The request line has been written.
+     */
+    public void written(long now){
+        if (this.open && !this.written){
+            this.written = true;
+            this.recordAll(WRITE,now);
+        }
+    }
+    /**
+     * Answer bytes have been read.
+     */
+    public void received(long now){
+        if (this.open && !this.received){
+            this.received = true;
+            this.recordAll(FIRST_BYTE,now);
+        }
+    }
+    /**
+     * The prompt has been read, closing the request.
+     */
+    public void prompt(long now){
+        if (this.open){
+            this.open = false;
+            this.recordAll(PROMPT,now);
+        }
+    }
+    /**
+     * A value of the open request, or of the request just closed, has
+     * been decoded.
+     */
+    public void decoded(int pid, long now){
+        pid &= 0xFF;
+        if (this.start == this.issued[pid] && 0L != this.start)
+            this.record(pid,DECODED,now-this.start);
+    }
+    /**
+     * A value has been drawn, on the render thread.  Each request is
+     * counted once per PID.
+     */
+    public void rendered(int pid, long now){
+        pid &= 0xFF;
+        long issued = this.issued[pid];
+        if (0L != issued && issued != this.rendered[pid]){
+            this.rendered[pid] = issued;
+            this.record(pid,RENDERED,now-issued);
+        }
+    }
+    /**
+     * @return Histogram, or null when the PID has not been requested
+     */
+    public LatencyHistogram get(int pid, int stage){
+        LatencyHistogram[] list = this.histograms.get(pid & 0xFF);
+        if (null == list)
+            return null;
+        else
+            return list[stage];
+    }
+    /**
+     * @param list Filled with the PIDs requested
+     * @return Number of PIDs
+     */
+    public int list(int[] list){
+        int count = 0;
+        for (int pid = 0; pid < 0x100 && count < list.length; pid++){
+            if (null != this.histograms.get(pid))
+                list[count++] = pid;
+        }
+        return count;
+    }
+    public void reset(){
+        for (int pid = 0; pid < 0x100; pid++){
+            LatencyHistogram[] list = this.histograms.get(pid);
+            if (null != list){
+                for (int stage = 0; stage < STAGES; stage++){
+                    list[stage].reset();
+                }
+            }
+        }
+    }
+    /**
+     * Write a table of count, p50, p99 and max in milliseconds per PID
+     * and stage.
+     */
+    public void export(Writer out)
+        throws IOException
+    {
+        StringBuilder head = new StringBuilder("PID");
+        pad(head,5);
+        head.append("stage");
+        pad(head,18);
+        column(head,"count",6);
+        column(head,"p50",9);
+        column(head,"p99",9);
+        column(head,"max",9);
+        out.write(head.append('\n').toString());
+        for (int pid = 0; pid < 0x100; pid++){
+            LatencyHistogram[] list = this.histograms.get(pid);
+            if (null != list){
+                for (int stage = 0; stage < STAGES; stage++){
+                    LatencyHistogram histogram = list[stage];
+                    StringBuilder line = new StringBuilder();
+                    line.append(HEX[pid >>> 4]).append(HEX[pid & 0xF]);
+                    pad(line,5);
+                    line.append(STAGE_NAMES[stage]);
+                    pad(line,18);
+                    column(line,Long.toString(histogram.getCount()),6);
+                    column(line,ms(histogram.getPercentile(50.0)),9);
+                    column(line,ms(histogram.getPercentile(99.0)),9);
+                    column(line,ms(histogram.getMax()),9);
+                    out.write(line.append('\n').toString());
+                }
+            }
+        }
+    }
+    public String toString(){
+        StringWriter out = new StringWriter();
+        try {
+            this.export(out);
+        }
+        catch (IOException exc){
+        }
+        return out.toString();
+    }
+
+    private LatencyHistogram[] histograms(int pid){
+        LatencyHistogram[] list = this.histograms.get(pid);
+        if (null == list){
+            list = new LatencyHistogram[STAGES];
+            for (int stage = 0; stage < STAGES; stage++){
+                list[stage] = new LatencyHistogram();
+            }
+            if (!this.histograms.compareAndSet(pid,null,list))
+                list = this.histograms.get(pid);
+        }
+        return list;
+    }
+    private void record(int pid, int stage, long nanos){
+        LatencyHistogram[] list = this.histograms.get(pid);
+        if (null != list)
+            list[stage].record(nanos);
+    }
+    private void recordAll(int stage, long now){
+        final long nanos = (now-this.start);
+        for (int cc = 0; cc < this.count; cc++){
+            this.record(this.pids[cc],stage,nanos);
+        }
+    }
+
+    private static String ms(long nanos){
+        long hundredths = Math.round(nanos/(MS/100.0));
+        String digits = Long.toString(hundredths/100L)+'.';
+        long frac = (hundredths % 100L);
+        return (10L > frac)?(digits+'0'+frac):(digits+frac);
+    }
+    private static void pad(StringBuilder line, int column){
+        while (line.length() < column){
+            line.append(' ');
+        }
+    }
+    private static void column(StringBuilder line, String value, int width){
+        for (int cc = value.length(); cc < width; cc++){
+            line.append(' ');
+        }
+        line.append(value);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+/**
+ * Largest Triangle Three Buckets downsampling (Steinarsson, 2013),
+ * which keeps the points that shape a line chart.
+ *
+ * The first and last points are kept.  The points between are split
+ * into buckets, one per point wanted, and each bucket contributes the
+ * point forming the largest triangle with the point kept from the
+ * previous bucket and the average of the next bucket.
+ *
+ * The input is raw samples from a {@link SeriesView}, or for long
+ * spans the bucket averages from a {@link SeriesSummary} level with a
+ * few times more buckets than wanted, so the work is bounded by the
+ * display rather than by the drive.
+ */
+public final class Lttb
+    extends Object
+{
+    /**
+     * @param time Input times, nondecreasing
+     * @param value Input values
+     * @param ofs Offset of the input
+     * @param len Number of input points
+     * @param threshold Number of points wanted, at least three
+     * @param outTime Output times, may not be the input
+     * @param outValue Output values
+     * @param outOfs Offset of the output
+     * @return Number of points output, which is len when len is not
+     * more than the threshold
+     */
+    public static int downsample(long[] time, float[] value, int ofs, int len, int threshold,
+                                 long[] outTime, float[] outValue, int outOfs)
+    {
+        if (3 > threshold)
+            throw new IllegalArgumentException(String.valueOf(threshold));
+        else if (len <= threshold){
+            System.arraycopy(time,ofs,outTime,outOfs,len);
+            System.arraycopy(value,ofs,outValue,outOfs,len);
+            return len;
+        }
+        else {
+            /*
+             * Times relative to the first, as doubles, keep the areas
+             * exact enough for nanosecond clocks
+             */
+            final long origin = time[ofs];
+            final double every = (double)(len-2)/(threshold-2);
+            int out = outOfs;
+            int a = ofs;
+            outTime[out] = time[a];
+            outValue[out++] = value[a];
+
+            for (int bucket = 0; bucket < threshold-2; bucket++){
+                /*
+                 * Average of the next bucket, or the last point
+                 */
+                int nextStart = ofs+1+(int)((bucket+1)*every);
+                int nextEnd = Math.min(ofs+1+(int)((bucket+2)*every),ofs+len);
+                if (bucket == threshold-3){
+                    nextStart = ofs+len-1;
+                    nextEnd = ofs+len;
+                }
+                double avgX = 0.0, avgY = 0.0;
+                for (int cc = nextStart; cc < nextEnd; cc++){
+                    avgX += (time[cc]-origin);
+                    avgY += value[cc];
+                }
+                int n = (nextEnd-nextStart);
+                avgX /= n;
+                avgY /= n;
+                /*
+                 * Largest triangle in this bucket
+                 */
+                final int start = ofs+1+(int)(bucket*every);
+                final int end = ofs+1+(int)((bucket+1)*every);
+                final double ax = (time[a]-origin), ay = value[a];
+                double area = -1.0;
+                int pick = start;
+                for (int cc = start; cc < end; cc++){
+                    double t = Math.abs((ax-avgX)*(value[cc]-ay)-(ax-(time[cc]-origin))*(avgY-ay));
+                    if (t > area){
+                        area = t;
+                        pick = cc;
+                    }
+                }
+                outTime[out] = time[pick];
+                outValue[out++] = value[pick];
+                a = pick;
+            }
+            outTime[out] = time[ofs+len-1];
+            outValue[out++] = value[ofs+len-1];
+            return (out-outOfs);
+        }
+    }
+
+    private Lttb(){
+        super();
+    }
+}
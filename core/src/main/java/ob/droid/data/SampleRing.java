@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+/**
+ * Time series of one PID in parallel primitive arrays, holding the
+ * most recent samples up to the capacity.
+ *
+ * Samples are numbered in order of {@link #append}, from zero.  One
+ * thread appends, any number read without locks through a {@link
+ * SeriesView}, which reads samples in place and then checks that the
+ * oldest one it read has not since been overwritten.
+ *
+ * The arrays are one power of two, larger than the capacity, so that
+ * the slot the writer is filling is never among the valid samples.
+ * Times are expected to be nondecreasing, as from {@link
+ * java.lang.System#nanoTime()}, for the range search.
+ */
+public class SampleRing
+    extends Object
+{
+    public final static int CAPACITY = 1024;
+
+
+    private final int pid;
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final long[] time;
+
+    private final float[] value;
+
+    private volatile long head, floor;
+
+
+    public SampleRing(int pid){
+        this(pid,CAPACITY);
+    }
+    /**
+     * @param pid Mode 01 PID
+     * @param capacity Samples retained
+     */
+    public SampleRing(int pid, int capacity){
+        super();
+        if (1 > capacity || 0x40000000 <= capacity)
+            throw new IllegalArgumentException(String.valueOf(capacity));
+        else {
+            int length = Integer.highestOneBit(capacity) << 1;
+            this.pid = (pid & 0xFF);
+            this.capacity = capacity;
+            this.mask = (length-1);
+            this.time = new long[length];
+            this.value = new float[length];
+        }
+    }
+
+
+    public int getPid(){
+        return this.pid;
+    }
+    public int getCapacity(){
+        return this.capacity;
+    }
+    /**
+     * Writer only.
+     */
+    public void append(long time, float value){
+        final long head = this.head;
+        final int slot = (int)(head & this.mask);
+        this.time[slot] = time;
+        this.value[slot] = value;
+        this.head = (head+1);
+    }
+    /**
+     * Writer only: drop all samples, leaving no view valid.
+     */
+    public void clear(){
+        this.floor = this.head;
+    }
+    /**
+     * @return Number of the next sample to be appended
+     */
+    public long head(){
+        return this.head;
+    }
+    /**
+     * @return Number of the oldest sample retained
+     */
+    public long tail(){
+        return this.tail(this.head);
+    }
+    /**
+     * @param head Value of {@link #head()} read by the caller
+     */
+    public long tail(long head){
+        return Math.max(this.floor,head-this.capacity);
+    }
+    public int size(){
+        return (int)(this.head-this.tail());
+    }
+    public boolean isEmpty(){
+        return (this.floor == this.head);
+    }
+    /**
+     * @param seq Sample number from {@link #tail()} to {@link #head()}
+     */
+    public long getTime(long seq){
+        return this.time[(int)(seq & this.mask)];
+    }
+    /**
+     * @param seq Sample number from {@link #tail()} to {@link #head()}
+     */
+    public float getValue(long seq){
+        return this.value[(int)(seq & this.mask)];
+    }
+    /**
+     * @return Time of the latest sample, or zero when empty
+     */
+    public long getLatestTime(){
+        final long head = this.head;
+        if (this.floor == head)
+            return 0L;
+        else
+            return this.getTime(head-1);
+    }
+    /**
+     * @return Value of the latest sample, or NaN when empty
+     */
+    public float getLatestValue(){
+        final long head = this.head;
+        if (this.floor == head)
+            return Float.NaN;
+        else
+            return this.getValue(head-1);
+    }
+    /**
+     * @return The sample numbered seq has not been overwritten
+     */
+    public boolean isValid(long seq){
+        return (seq >= this.tail(this.head));
+    }
+    /**
+     * Binary search of the samples numbered from tail to head.
+     *
+     * @return Number of the first sample at or after the time, or
+     * head when there is none
+     */
+    public long search(long tail, long head, long time){
+        long lo = tail, hi = head;
+        while (lo < hi){
+            long mid = (lo+hi) >>> 1;
+            if (this.getTime(mid) < time)
+                lo = (mid+1);
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
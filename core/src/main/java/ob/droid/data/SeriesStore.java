@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * One {@link SampleRing} per mode 01 PID, created on the first sample,
+ * and optionally a {@link SeriesSummary} with it.
+ *
+ * The decoding thread appends, and charts, alerts and export read
+ * the rings through {@link SeriesView} without copying or locking.
+ * Charts of long spans read the summaries.
+ */
+public class SeriesStore
+    extends Object
+{
+    private final int capacity;
+
+    private final boolean summarize;
+
+    private final AtomicReferenceArray<SampleRing> rings = new AtomicReferenceArray<SampleRing>(0x100);
+
+    private final AtomicReferenceArray<SeriesSummary> summaries = new AtomicReferenceArray<SeriesSummary>(0x100);
+
+
+    public SeriesStore(){
+        this(SampleRing.CAPACITY,true);
+    }
+    /**
+     * @param capacity Samples retained per PID
+     * @param summarize Maintain a summary per PID
+     */
+    public SeriesStore(int capacity, boolean summarize){
+        super();
+        if (1 > capacity)
+            throw new IllegalArgumentException(String.valueOf(capacity));
+        else {
+            this.capacity = capacity;
+            this.summarize = summarize;
+        }
+    }
+
+
+    public int getCapacity(){
+        return this.capacity;
+    }
+    /**
+     * Writer only.
+     */
+    public void append(int pid, long time, float value){
+        this.ring(pid).append(time,value);
+        if (this.summarize)
+            this.summaries.get(pid & 0xFF).add(time,value);
+    }
+    /**
+     * @return Ring for the PID, or null before its first sample
+     */
+    public SampleRing get(int pid){
+        return this.rings.get(pid & 0xFF);
+    }
+    /**
+     * @return Summary for the PID, or null before its first sample or
+     * when not summarizing
+     */
+    public SeriesSummary getSummary(int pid){
+        return this.summaries.get(pid & 0xFF);
+    }
+    /**
+     * @return Ring for the PID, created when missing
+     */
+    public SampleRing ring(int pid){
+        pid &= 0xFF;
+        SampleRing ring = this.rings.get(pid);
+        if (null == ring){
+            if (this.summarize)
+                this.summaries.compareAndSet(pid,null,new SeriesSummary());
+            ring = new SampleRing(pid,this.capacity);
+            if (!this.rings.compareAndSet(pid,null,ring))
+                ring = this.rings.get(pid);
+        }
+        return ring;
+    }
+    /**
+     * @param list Filled with the PIDs that have rings
+     * @return Number of PIDs
+     */
+    public int list(int[] list){
+        int count = 0;
+        for (int pid = 0; pid < 0x100 && count < list.length; pid++){
+            if (null != this.rings.get(pid))
+                list[count++] = pid;
+        }
+        return count;
+    }
+    /**
+     * Writer only.
+     */
+    public void clear(){
+        for (int pid = 0; pid < 0x100; pid++){
+            SampleRing ring = this.rings.get(pid);
+            if (null != ring)
+                ring.clear();
+            SeriesSummary summary = this.summaries.get(pid);
+            if (null != summary)
+                summary.clear();
+        }
+    }
+}
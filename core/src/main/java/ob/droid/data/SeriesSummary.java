@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+/**
+ * Multiple resolution min, max and average of a time series,
+ * maintained as samples arrive.
+ *
+ * Level zero has buckets of the base width, and each level after it
+ * buckets the factor times wider.  Each sample updates the latest
+ * bucket of every level, so a chart zoomed out to any span reads a
+ * few hundred buckets from the level that fits instead of scanning
+ * the raw samples.  Each level retains the capacity in buckets, so
+ * the coarser levels reach further back.
+ *
+ * One thread adds, any number read.  Readers copy buckets out and
+ * retry when a sample was added meanwhile.
+ */
+public class SeriesSummary
+    extends Object
+{
+    /**
+     * Level zero bucket width, in nanoseconds.
+     */
+    public final static long WIDTH = 100000000L;
+
+    public final static int FACTOR = 4;
+
+    public final static int LEVELS = 6;
+    /**
+     * Buckets retained per level.
+     */
+    public final static int CAPACITY = 512;
+
+
+    private final int levels, capacity, mask;
+
+    private final long[] width;
+
+    private final long[][] start;
+
+    private final float[][] min, max;
+
+    private final double[][] sum;
+
+    private final int[][] count;
+    /*
+     * Number of buckets per level, the latest still filling
+     */
+    private final long[] head;
+    /*
+     * Odd while the writer is updating
+     */
+    private volatile long stamp;
+
+    private volatile long fence;
+
+
+    public SeriesSummary(){
+        this(WIDTH,FACTOR,LEVELS,CAPACITY);
+    }
+    /**
+     * @param width Level zero bucket width, in nanoseconds
+     * @param factor Width ratio of consecutive levels
+     * @param levels Number of levels
+     * @param capacity Buckets retained per level
+     */
+    public SeriesSummary(long width, int factor, int levels, int capacity){
+        super();
+        if (1L > width)
+            throw new IllegalArgumentException(String.valueOf(width));
+        else if (2 > factor)
+            throw new IllegalArgumentException(String.valueOf(factor));
+        else if (1 > levels || 16 < levels)
+            throw new IllegalArgumentException(String.valueOf(levels));
+        else if (1 > capacity || 0x100000 < capacity)
+            throw new IllegalArgumentException(String.valueOf(capacity));
+        else {
+            int length = Integer.highestOneBit(capacity);
+            if (length < capacity)
+                length <<= 1;
+            this.levels = levels;
+            this.capacity = capacity;
+            this.mask = (length-1);
+            this.width = new long[levels];
+            this.start = new long[levels][length];
+            this.min = new float[levels][length];
+            this.max = new float[levels][length];
+            this.sum = new double[levels][length];
+            this.count = new int[levels][length];
+            this.head = new long[levels];
+            for (int level = 0; level < levels; level++){
+                this.width[level] = width;
+                width *= factor;
+            }
+        }
+    }
+
+
+    public int getLevels(){
+        return this.levels;
+    }
+    public int getCapacity(){
+        return this.capacity;
+    }
+    /**
+     * @return Bucket width of the level, in nanoseconds
+     */
+    public long getWidth(int level){
+        return this.width[level];
+    }
+    /**
+     * Writer only.
+     */
+    public void add(long time, float value){
+        if (value != value)
+            return;
+        else {
+            this.begin();
+            for (int level = 0; level < this.levels; level++){
+                final long width = this.width[level];
+                final long bucket = time-floorMod(time,width);
+                final long head = this.head[level];
+                int slot = (int)((head-1) & this.mask);
+                if (0L == head || bucket > this.start[level][slot]){
+                    slot = (int)(head & this.mask);
+                    this.start[level][slot] = bucket;
+                    this.min[level][slot] = value;
+                    this.max[level][slot] = value;
+                    this.sum[level][slot] = value;
+                    this.count[level][slot] = 1;
+                    this.head[level] = (head+1);
+                }
+                else {
+                    /*
+                     * Latest bucket, or a time out of order
+                     */
+                    if (value < this.min[level][slot])
+                        this.min[level][slot] = value;
+                    if (value > this.max[level][slot])
+                        this.max[level][slot] = value;
+                    this.sum[level][slot] += value;
+                    this.count[level][slot] += 1;
+                }
+            }
+            this.end();
+        }
+    }
+    /**
+     * Writer only.
+     */
+    public void clear(){
+        this.begin();
+        for (int level = 0; level < this.levels; level++){
+            this.head[level] = 0L;
+        }
+        this.end();
+    }
+    /**
+     * @param from Start of the span, in nanoseconds
+     * @param to End of the span
+     * @param buckets Most buckets wanted
+     * @return The finest level covering the span in at most that many
+     * buckets and still holding its start, otherwise the coarsest
+     */
+    public int level(long from, long to, int buckets){
+        final long span = Math.max(0L,to-from);
+        final int last = (this.levels-1);
+        for (int level = 0; level < last; level++){
+            if (span/this.width[level] < buckets && this.holds(level,from))
+                return level;
+        }
+        return last;
+    }
+    /**
+     * Copy the buckets of a level overlapping a time range.
+     *
+     * @param level Level from {@link #level}
+     * @param from First time included
+     * @param to First time excluded
+     * @param time Bucket start times
+     * @param min Bucket minima
+     * @param max Bucket maxima
+     * @param avg Bucket averages
+     * @param ofs Offset into the arrays
+     * @return Number of buckets copied, the latest when there are
+     * more than fit
+     */
+    public int read(int level, long from, long to,
+                    long[] time, float[] min, float[] max, float[] avg, int ofs)
+    {
+        final int room = Math.min(Math.min(time.length,min.length),Math.min(max.length,avg.length))-ofs;
+        final long width = this.width[level];
+        final long[] start = this.start[level];
+        while (true){
+            final long stamp = this.stamp;
+            if (0L != (stamp & 1L)){
+                Thread.yield();
+                continue;
+            }
+            else {
+                final long head = this.head[level];
+                final long tail = Math.max(0L,head-this.capacity);
+                long end = this.search(start,tail,head,to);
+                long first = this.search(start,tail,end,(from-width+1));
+                first = Math.max(first,end-room);
+                int count = (int)(end-first);
+                for (int cc = 0; cc < count; cc++){
+                    int slot = (int)((first+cc) & this.mask);
+                    int n = this.count[level][slot];
+                    time[ofs+cc] = start[slot];
+                    min[ofs+cc] = this.min[level][slot];
+                    max[ofs+cc] = this.max[level][slot];
+                    avg[ofs+cc] = (0 < n)?((float)(this.sum[level][slot]/n)):(Float.NaN);
+                }
+                /*
+                 * The volatile write keeps the reads before it from
+                 * moving past the check
+                 */
+                this.fence = stamp;
+                if (stamp == this.stamp)
+                    return count;
+            }
+        }
+    }
+
+    private void begin(){
+        this.stamp += 1L;
+        /*
+         * Reading it back keeps the updates after it from moving
+         * ahead of the odd stamp, and catches a second writer
+         */
+        if (0L == (this.stamp & 1L))
+            throw new IllegalStateException("Concurrent writers");
+    }
+    private void end(){
+        this.stamp += 1L;
+    }
+    /**
+     * Racy, for choosing a level.
+     */
+    private boolean holds(int level, long time){
+        final long head = this.head[level];
+        if (head <= this.capacity)
+            return true;
+        else {
+            int slot = (int)((head-this.capacity) & this.mask);
+            return (this.start[level][slot] <= time);
+        }
+    }
+    /**
+     * @return Number of the first bucket from tail to head starting
+     * at or after the time, or head
+     */
+    private long search(long[] start, long tail, long head, long time){
+        long lo = tail, hi = head;
+        while (lo < hi){
+            long mid = (lo+hi) >>> 1;
+            if (start[(int)(mid & this.mask)] < time)
+                lo = (mid+1);
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static long floorMod(long time, long width){
+        long mod = (time % width);
+        if (0L > mod)
+            return (mod+width);
+        else
+            return mod;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+/**
+ * Reader's window onto a time range of a {@link SampleRing}, read in
+ * place.  A view is reused by one reader thread, as
+ *
+ * <pre>
+ * do {
+ *     view.select(ring,from,to);
+ *     for (int cc = 0, n = view.size(); cc < n; cc++)
+ *         draw(view.getTime(cc),view.getValue(cc));
+ * }
+ * while (!view.isValid());
+ * </pre>
+ *
+ * The writer only overwrites the oldest samples, so a view of recent
+ * samples normally reads once.
+ */
+public class SeriesView
+    extends Object
+{
+    private SampleRing ring;
+
+    private long start, end;
+
+    private volatile long fence;
+
+
+    public SeriesView(){
+        super();
+    }
+
+
+    /**
+     * @param from First time included
+     * @param to First time excluded
+     * @return Number of samples in the range
+     */
+    public int select(SampleRing ring, long from, long to){
+        final long head = ring.head();
+        final long tail = ring.tail(head);
+        this.ring = ring;
+        this.end = ring.search(tail,head,to);
+        this.start = ring.search(tail,this.end,from);
+        return this.size();
+    }
+    /**
+     * @return Number of samples, the latest count of them
+     */
+    public int select(SampleRing ring, int count){
+        final long head = ring.head();
+        this.ring = ring;
+        this.end = head;
+        this.start = Math.max(ring.tail(head),head-Math.max(0,count));
+        return this.size();
+    }
+    public SampleRing getRing(){
+        return this.ring;
+    }
+    public int size(){
+        return (int)(this.end-this.start);
+    }
+    /**
+     * @return Number of the first sample in the ring
+     */
+    public long getStart(){
+        return this.start;
+    }
+    public long getTime(int index){
+        return this.ring.getTime(this.start+index);
+    }
+    public float getValue(int index){
+        return this.ring.getValue(this.start+index);
+    }
+    /**
+     * Copy the samples selected, for callers that keep them.
+     *
+     * @return Number of samples copied, the latest that fit in the
+     * arrays from ofs, or negative one when they were overwritten
+     * and should be selected again
+     */
+    public int copy(long[] times, float[] values, int ofs){
+        final int room = Math.min(times.length,values.length)-ofs;
+        final long from = Math.max(this.start,this.end-room);
+        final int count = (int)(this.end-from);
+        for (int cc = 0; cc < count; cc++){
+            times[ofs+cc] = this.ring.getTime(from+cc);
+            values[ofs+cc] = this.ring.getValue(from+cc);
+        }
+        if (this.isValid())
+            return count;
+        else
+            return -1;
+    }
+    /**
+     * @return True when nothing read since the last select was
+     * overwritten
+     */
+    public boolean isValid(){
+        /*
+         * The volatile write keeps the reads before it from moving
+         * past the check
+         */
+        this.fence = this.start;
+        return (null == this.ring || this.ring.isValid(this.start));
+    }
+}
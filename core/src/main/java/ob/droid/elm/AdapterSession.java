@@ -0,0 +1,822 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.BufferedConnection;
+import ob.droid.Connection;
+import ob.droid.ConnectionLoop;
+import ob.droid.data.LatencyStats;
+import ob.droid.data.SeriesStore;
+import ob.droid.obd.Pids;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One adapter link shared by the terminal and a {@link
+ * PollScheduler}.
+ *
+ * The session is the listener of the adapter connection, normally a
+ * {@link ob.droid.BufferedConnection} with its prompt gate on, and is
+ * itself the connection of the terminal.  Lines typed at the terminal
+ * pass through, and their answers are read back by the terminal.
+ * When the link is free and no line is being typed, the session sends
+ * the scheduler's next request from the loop thread, and keeps its
+ * answer from the terminal.
+ *
+ * The adapter answers one command at a time, in order, so answers are
+ * attributed by counting: a poll is only sent with nothing else
+ * outstanding, and every prompt closes the poll or else the oldest
+ * typed line.  Every answer, polled or typed, is decoded by the
+ * session's {@link EcuDemultiplexer}.
+ *
+ * A session started with a {@link SessionInit} first negotiates the
+ * response format and, given a {@link ProfileCache}, runs a {@link
+ * Discovery} warm from the last vehicle profile stored, so that a
+ * reconnect to the same vehicle skips the protocol search.  Terminal
+ * input is held until then, and its {@link StartListener} is told.
+ *
+ * Polled requests are timed by a {@link TimingTuner}.  Its ST and AT
+ * commands are sent between polls, like polls, and its response count
+ * is appended to each request.  Once tuned, the settings are stored
+ * with the vehicle profile, and a warm start restores them instead of
+ * measuring again.
+ *
+ * A command line of the session's own goes out whole: when the
+ * adapter connection takes only part of it, the rest is written from
+ * the "writable" callback, terminal input is refused meanwhile, and
+ * the command is only outstanding once its CR has been taken.
+ */
+public class AdapterSession
+    extends Object
+    implements Connection,
+               Connection.Listener,
+               EcuDemultiplexer.Listener,
+               Mode01Response.Sink
+{
+    /**
+     * Bytes held for the terminal.  When the terminal falls this far
+     * behind, the session stops reading the adapter until it catches
+     * up.
+     */
+    public final static int CAPACITY = 0x1000;
+
+    private final static Logger LOG = Logger.getLogger("AdapterSession");
+
+    /**
+     * Told on the loop thread when the session is ready for the
+     * terminal, with the format negotiated.
+     */
+    public interface StartListener {
+
+        public void started(AdapterSession session);
+    }
+
+
+    private final Connection connection;
+
+    private final ConnectionLoop loop;
+
+    private final PollScheduler scheduler = new PollScheduler();
+
+    private final Mode01Request request = new Mode01Request();
+
+    private final boolean[] answered = new boolean[Pids.MAX_PER_REQUEST];
+
+    private final int[] answers = new int[Pids.MAX_PER_REQUEST];
+
+    private final TimingTuner tuner = new TimingTuner();
+
+    private final EcuDemultiplexer demultiplexer = new EcuDemultiplexer();
+
+    /*
+     * Format of the answers, followed through typed format commands
+     */
+    private final ResponseFormat format;
+
+    private final byte[] typed = new byte[ResponseTokenizer.MAX_LINE];
+
+    private final ByteBuffer send;
+
+    private final byte[] command = new byte[8];
+
+    private final ByteBuffer commandBuffer = ByteBuffer.wrap(this.command);
+
+    /*
+     * Poll, tuner or start command partly written, under lock
+     */
+    private ByteBuffer sending;
+
+    /*
+     * Input, under the reading lock
+     */
+    private final Object reading = new Object();
+
+    private final byte[] input = new byte[0x400];
+
+    private final ByteBuffer in = ByteBuffer.wrap(this.input);
+
+    /*
+     * Terminal input ring and link state, under lock
+     */
+    private final byte[] ring = new byte[CAPACITY];
+
+    private int head, count, typedLength, lines;
+
+    private boolean readArmed = true, stalled, eof, closed, polling, tuning, typing, formatChanged, refused;
+
+    private long pollAt;
+
+    /*
+     * Session start, under lock
+     */
+    private Exchange stage;
+
+    private SessionInit init;
+
+    private ProfileCache cache;
+
+    private Discovery discovery;
+
+    private VehicleProfile profile;
+
+    private long stageAt;
+
+    private boolean abandoned;
+
+    private volatile Connection.Listener listener;
+
+    private volatile StartListener startListener;
+
+    private final Runnable drain = new Runnable(){
+            public void run(){
+                AdapterSession.this.drain();
+            }
+        };
+
+    private final Runnable poll = new Runnable(){
+            public void run(){
+                AdapterSession.this.poll(true);
+            }
+        };
+
+    private final Runnable begin = new Runnable(){
+            public void run(){
+                AdapterSession.this.prompt(System.nanoTime());
+            }
+        };
+
+    private final Runnable expire = new Runnable(){
+            public void run(){
+                AdapterSession.this.expire();
+            }
+        };
+
+
+    /**
+     * @param connection Adapter connection
+     */
+    public AdapterSession(Connection connection){
+        this(connection,ConnectionLoop.getDefault(),new ResponseFormat());
+    }
+    /**
+     * @param connection Adapter connection
+     * @param loop Loop for polling
+     * @param format Format in effect
+     */
+    public AdapterSession(Connection connection, ConnectionLoop loop, ResponseFormat format){
+        super();
+        if (null == connection || null == loop || null == format)
+            throw new IllegalArgumentException();
+        else {
+            this.connection = connection;
+            this.loop = loop;
+            this.format = new ResponseFormat(format);
+            this.send = ByteBuffer.wrap(this.request.getLine());
+            this.format.apply(this.demultiplexer.getTokenizer());
+            this.demultiplexer.setListener(this);
+            connection.setListener(this);
+        }
+    }
+
+
+    /**
+     * Negotiate the format before any other use.  Terminal input is
+     * refused until the session has started.
+     *
+     * @param init Format wanted
+     */
+    public void start(SessionInit init){
+        this.start(init,null);
+    }
+    /**
+     * Negotiate the format and discover the vehicle before any other
+     * use.  Terminal input is refused until the session has started.
+     *
+     * @param init Format wanted
+     * @param cache Vehicle profiles, or null to skip discovery
+     */
+    public void start(SessionInit init, ProfileCache cache){
+        if (null == init)
+            throw new IllegalArgumentException();
+        else {
+            synchronized(this){
+                if (null != this.stage)
+                    throw new IllegalStateException("Starting");
+                else {
+                    this.stage = init;
+                    this.init = init;
+                    this.cache = cache;
+                }
+            }
+            this.loop.post(this.begin);
+        }
+    }
+    public boolean isStarted(){
+        synchronized(this){
+            return (null == this.stage);
+        }
+    }
+    /**
+     * @return Vehicle discovered on start, or null
+     */
+    public VehicleProfile getProfile(){
+        synchronized(this){
+            return this.profile;
+        }
+    }
+    /**
+     * @return Discovery run on start, or null
+     */
+    public Discovery getDiscovery(){
+        synchronized(this){
+            return this.discovery;
+        }
+    }
+    /**
+     * @param listener Told when the session has started, or null
+     */
+    public void setStartListener(StartListener listener){
+        this.startListener = listener;
+    }
+    /**
+     * @return A copy of the format in effect
+     */
+    public ResponseFormat getFormat(){
+        synchronized(this){
+            return new ResponseFormat(this.format);
+        }
+    }
+    public Connection getConnection(){
+        return this.connection;
+    }
+    public EcuDemultiplexer getDemultiplexer(){
+        return this.demultiplexer;
+    }
+    /**
+     * @return Samples answered with headers off, the one ECU or the
+     * first to answer a functional request
+     */
+    public SeriesStore getStore(){
+        return this.demultiplexer.channel(-1).getStore();
+    }
+    /**
+     * @param stats Told of each request issued and each sample
+     * decoded, or null
+     */
+    public void setStats(LatencyStats stats){
+        synchronized(this){
+            this.scheduler.setStats(stats);
+        }
+        this.demultiplexer.setStats(stats);
+    }
+    /**
+     * Poll a PID, see {@link PollScheduler#subscribe}.
+     */
+    public void subscribe(int pid, double hz, int priority){
+        synchronized(this){
+            this.scheduler.subscribe(pid,hz,priority);
+        }
+        this.loop.post(this.poll);
+    }
+    public void unsubscribe(int pid){
+        synchronized(this){
+            this.scheduler.unsubscribe(pid);
+        }
+    }
+    /**
+     * @return Achieved against requested rates, see {@link
+     * PollScheduler#report}
+     */
+    public String report(){
+        synchronized(this){
+            return this.scheduler.report(System.nanoTime());
+        }
+    }
+    /**
+     * @return Adapter timing before and after tuning, see {@link
+     * TimingTuner#report}
+     */
+    public String reportTiming(){
+        synchronized(this){
+            return this.tuner.report();
+        }
+    }
+    /**
+     * @return Adapter timing has been tuned from polled requests
+     */
+    public boolean isTuned(){
+        synchronized(this){
+            return this.tuner.isTuned();
+        }
+    }
+    /**
+     * @return Response count suffix of polled requests, or zero
+     */
+    public int getResponses(){
+        synchronized(this){
+            return this.tuner.getResponses();
+        }
+    }
+    /**
+     * @return Requests polled
+     */
+    public long getRequests(){
+        synchronized(this){
+            return this.scheduler.getRequests();
+        }
+    }
+
+    public void setListener(Connection.Listener listener){
+        this.listener = listener;
+    }
+    /**
+     * Answers to the terminal's lines, and anything the adapter sends
+     * unasked.
+     */
+    public int read(ByteBuffer dst)
+        throws IOException
+    {
+        boolean resume = false;
+        int read = 0;
+        synchronized(this){
+            if (0 == this.count){
+                this.readArmed = true;
+                if (this.eof)
+                    return -1;
+                else
+                    return 0;
+            }
+            else {
+                final byte[] ring = this.ring;
+                int want = Math.min(dst.remaining(),this.count);
+                while (0 < want){
+                    int run = Math.min(want,CAPACITY-this.head);
+                    dst.put(ring,this.head,run);
+                    this.head = (this.head+run) % CAPACITY;
+                    this.count -= run;
+                    want -= run;
+                    read += run;
+                }
+                if (this.stalled){
+                    this.stalled = false;
+                    resume = true;
+                }
+            }
+        }
+        if (resume)
+            this.loop.post(this.drain);
+        return read;
+    }
+    /**
+     * A line typed at the terminal.  Polling waits for its CR, and
+     * the format follows the format commands among typed lines.
+     *
+     * @return Number of bytes taken, zero while starting or when the
+     * adapter connection is full
+     */
+    public int write(ByteBuffer src)
+        throws IOException
+    {
+        synchronized(this){
+            if (this.closed)
+                throw new ClosedChannelException();
+            else if (null != this.stage || null != this.sending){
+                this.refused = true;
+                return 0;
+            }
+            else {
+                final int start = src.position();
+                final int wrote = this.connection.write(src);
+                for (int cc = start, end = start+wrote; cc < end; cc++){
+                    byte b = src.get(cc);
+                    if ('\r' == b){
+                        if (this.format.observe(this.typed,0,this.typedLength))
+                            this.formatChanged = true;
+                        this.typedLength = 0;
+                        this.typing = false;
+                        this.lines += 1;
+                    }
+                    else {
+                        if (this.typedLength < this.typed.length)
+                            this.typed[this.typedLength++] = b;
+                        this.typing = true;
+                    }
+                }
+                return wrote;
+            }
+        }
+    }
+    public boolean isOpen(){
+        return this.connection.isOpen();
+    }
+    public void close(){
+        this.connection.close();
+    }
+
+    public void readable(Connection connection){
+        this.drain();
+    }
+    public void writable(Connection connection){
+        boolean notify;
+        synchronized(this){
+            if (null != this.sending)
+                this.send(System.nanoTime());
+            notify = (null == this.sending && null == this.stage);
+            if (notify)
+                this.refused = false;
+        }
+        if (notify){
+            Connection.Listener listener = this.listener;
+            if (null != listener)
+                listener.writable(this);
+        }
+    }
+    public void closed(Connection connection){
+        synchronized(this){
+            this.closed = true;
+        }
+        this.drain();
+        Connection.Listener listener = this.listener;
+        if (null != listener)
+            listener.closed(this);
+    }
+
+    public void channel(EcuChannel channel){
+        channel.subscribe(this);
+    }
+    /**
+     * A sample decoded on the reading thread.
+     */
+    public void sample(int pid, byte[] data, int ofs, int len){
+        synchronized(this){
+            if (this.polling){
+                this.tuner.received(System.nanoTime());
+                for (int cc = 0, size = this.request.size(); cc < size; cc++){
+                    if (pid == this.request.getPid(cc)){
+                        this.answered[cc] = true;
+                        this.answers[cc] += 1;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the adapter until it comes up empty, splitting its output
+     * at each prompt between the poll and the terminal.
+     */
+    private void drain(){
+        boolean notify = false;
+        synchronized(this.reading){
+            try {
+                while (true){
+                    int room;
+                    synchronized(this){
+                        room = Math.min(this.input.length,CAPACITY-this.count);
+                        if (0 == room){
+                            this.stalled = true;
+                            break;
+                        }
+                    }
+                    this.in.clear();
+                    this.in.limit(room);
+                    int read = this.connection.read(this.in);
+                    if (0 > read){
+                        synchronized(this){
+                            this.eof = true;
+                            notify = this.readArmed;
+                            this.readArmed = false;
+                        }
+                        break;
+                    }
+                    else if (0 == read)
+                        break;
+                    else {
+                        final byte[] input = this.input;
+                        int ofs = 0;
+                        while (ofs < read){
+                            int end = ofs;
+                            while (end < read && '>' != input[end]){
+                                end += 1;
+                            }
+                            boolean prompt = (end < read);
+                            if (prompt)
+                                end += 1;
+                            boolean polled, starting;
+                            synchronized(this){
+                                polled = (this.polling || this.tuning);
+                                starting = (null != this.stage);
+                                if (starting)
+                                    this.stage.feed(input,ofs,end-ofs);
+                            }
+                            if (!starting){
+                                this.demultiplexer.feed(input,ofs,end-ofs);
+                                if (!polled)
+                                    notify |= this.queue(input,ofs,end-ofs);
+                            }
+                            if (prompt)
+                                this.prompt(System.nanoTime());
+                            ofs = end;
+                        }
+                    }
+                }
+            }
+            catch (IOException exc){
+                LOG.log(Level.WARNING,"Reading adapter",exc);
+                this.connection.close();
+            }
+        }
+        if (notify){
+            Connection.Listener listener = this.listener;
+            if (null != listener)
+                listener.readable(this);
+        }
+    }
+    /**
+     * Hold bytes for the terminal, on the reading thread.
+     *
+     * @return Notify the terminal
+     */
+    private boolean queue(byte[] buf, int ofs, int len){
+        synchronized(this){
+            final byte[] ring = this.ring;
+            while (0 < len){
+                int tail = (this.head+this.count) % CAPACITY;
+                int run = Math.min(len,CAPACITY-tail);
+                System.arraycopy(buf,ofs,ring,tail,run);
+                this.count += run;
+                ofs += run;
+                len -= run;
+            }
+            if (this.readArmed){
+                this.readArmed = false;
+                return true;
+            }
+            else
+                return false;
+        }
+    }
+    /**
+     * The adapter is ready: send the next start command, or close the
+     * poll or the oldest typed line and poll when the link is free.
+     */
+    private void prompt(long now){
+        VehicleProfile store = null;
+        ProfileCache cache = null;
+        synchronized(this){
+            if (this.polling){
+                this.polling = false;
+                /*
+                 * Each ECU answering is one sample of some PID
+                 */
+                int payloads = 0;
+                for (int cc = 0, size = this.request.size(); cc < size; cc++){
+                    payloads = Math.max(payloads,this.answers[cc]);
+                }
+                boolean tuned = this.tuner.isTuned();
+                this.tuner.answered(now,payloads);
+                this.scheduler.complete(now,this.request,this.answered);
+                if (!tuned && this.tuner.isTuned() && null != this.cache
+                    && null != this.profile && null != this.profile.getVin())
+                {
+                    this.profile.setTimings(this.tuner);
+                    store = this.profile;
+                    cache = this.cache;
+                }
+            }
+            else if (this.tuning)
+                this.tuning = false;
+            else if (0 < this.lines){
+                this.lines -= 1;
+                if (this.formatChanged){
+                    this.formatChanged = false;
+                    this.format.apply(this.demultiplexer.getTokenizer());
+                }
+            }
+        }
+        if (null != store)
+            store(cache,store);
+        if (!this.starting(now))
+            this.poll(false);
+    }
+    /**
+     * Send the next command of the start, moving on from each stage
+     * as it completes or is abandoned.
+     *
+     * @return Still starting
+     */
+    private boolean starting(long now){
+        VehicleProfile store = null;
+        ProfileCache cache;
+        boolean refused;
+        synchronized(this){
+            if (null == this.stage)
+                return false;
+            else {
+                while (null != this.stage){
+                    if (!this.abandoned && !this.stage.isComplete()){
+                        if (null == this.sending){
+                            int len = this.stage.command(this.command,0);
+                            if (0 < len){
+                                this.commandBuffer.limit(len);
+                                this.commandBuffer.position(0);
+                                this.sending = this.commandBuffer;
+                                this.stageAt = now;
+                                this.send(now);
+                                this.loop.schedule(this.expire,BufferedConnection.PROMPT);
+                            }
+                        }
+                        return true;
+                    }
+                    else if (this.stage == this.init){
+                        if (0 < this.init.getRejected())
+                            LOG.info("Adapter rejected "+this.init.getRejected()+" format commands");
+                        this.format.copy(this.init.getFormat());
+                        this.format.apply(this.demultiplexer.getTokenizer());
+                        this.init = null;
+                        this.abandoned = false;
+                        if (null != this.cache){
+                            this.discovery = new Discovery(new ResponseFormat(this.format),this.cache.last());
+                            this.stage = this.discovery;
+                        }
+                        else
+                            this.stage = null;
+                    }
+                    else {
+                        Discovery discovery = this.discovery;
+                        if (discovery.isComplete() && !discovery.isFailed()){
+                            this.profile = discovery.getProfile();
+                            if (discovery.isWarm())
+                                this.profile.restore(this.tuner);
+                            else if (null != this.profile.getVin())
+                                store = this.profile;
+                            LOG.info("Vehicle "+this.profile.getVin()+((discovery.isWarm())?(" warm"):(" cold"))
+                                     +" in "+discovery.getCommands()+" commands");
+                        }
+                        else
+                            LOG.warning("Vehicle not discovered");
+                        this.abandoned = false;
+                        this.stage = null;
+                    }
+                }
+                cache = this.cache;
+                refused = this.refused;
+                this.refused = false;
+            }
+        }
+        if (null != store)
+            store(cache,store);
+        StartListener startListener = this.startListener;
+        if (null != startListener)
+            startListener.started(this);
+        if (refused){
+            Connection.Listener listener = this.listener;
+            if (null != listener)
+                listener.writable(this);
+        }
+        return false;
+    }
+    private static void store(ProfileCache cache, VehicleProfile profile){
+        try {
+            cache.store(profile);
+        }
+        catch (IOException exc){
+            LOG.log(Level.WARNING,"Storing vehicle profile",exc);
+        }
+    }
+    /**
+     * Prompt timeout while starting: move on with what has been
+     * confirmed so far.
+     */
+    private void expire(){
+        boolean expired;
+        long now = System.nanoTime();
+        synchronized(this){
+            expired = (null != this.stage && BufferedConnection.PROMPT <= (now-this.stageAt));
+            if (expired){
+                LOG.warning("Adapter did not answer while starting");
+                this.abandoned = true;
+            }
+        }
+        if (expired && !this.starting(now))
+            this.poll(false);
+    }
+    /**
+     * Write what the adapter connection will take of the command line
+     * being sent, under lock.  Once the CR of a request or a tuner
+     * command has been taken it is outstanding.
+     */
+    private void send(long now){
+        final ByteBuffer sending = this.sending;
+        try {
+            while (sending.hasRemaining()){
+                if (0 == this.connection.write(sending))
+                    return;
+            }
+        }
+        catch (IOException exc){
+            LOG.log(Level.WARNING,"Writing adapter",exc);
+            this.sending = null;
+            if (sending == this.send)
+                this.scheduler.complete(now,this.request,this.answered);
+            return;
+        }
+        this.sending = null;
+        if (sending == this.send){
+            this.polling = true;
+            this.tuner.sent(now);
+        }
+        else if (null == this.stage)
+            this.tuning = true;
+    }
+    /**
+     * Send the tuner's next command, or the next request when the
+     * link is free and one is due, otherwise wake up for the next
+     * deadline.
+     *
+     * @param timer Called from the poll task
+     */
+    private void poll(boolean timer){
+        long wait = PollScheduler.IDLE;
+        synchronized(this){
+            if (timer)
+                this.pollAt = 0L;
+            if (this.closed || null != this.stage || this.polling || this.tuning
+                || this.typing || 0 < this.lines || null != this.sending)
+            {
+                return;
+            }
+            else if (this.tuner.hasCommand()){
+                this.commandBuffer.limit(this.tuner.command(this.command,0));
+                this.commandBuffer.position(0);
+                this.sending = this.commandBuffer;
+                this.send(System.nanoTime());
+                return;
+            }
+            else {
+                final long now = System.nanoTime();
+                wait = this.scheduler.next(now,this.request);
+                if (0L == wait){
+                    this.tuner.configure(this.request);
+                    for (int cc = 0; cc < this.answered.length; cc++){
+                        this.answered[cc] = false;
+                        this.answers[cc] = 0;
+                    }
+                    ByteBuffer send = this.send;
+                    send.limit(this.request.getLength());
+                    send.position(0);
+                    this.sending = send;
+                    this.send(now);
+                    return;
+                }
+                else if (PollScheduler.IDLE != wait){
+                    long at = now+wait;
+                    if (0L == this.pollAt || at < this.pollAt)
+                        this.pollAt = at;
+                    else
+                        return;
+                }
+            }
+        }
+        if (0L < wait && PollScheduler.IDLE != wait)
+            this.loop.schedule(this.poll,wait);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * Vehicle discovery, warm from a cached profile or cold.
+ *
+ * A cold start searches for the protocol (ATSP0), turns headers on to
+ * learn the ECU addresses, reads the support bitmaps 0100, 0120, ...
+ * for as long as some ECU reports another range, reads the VIN (0902)
+ * and the protocol found (ATDPN), and restores the headers setting.
+ *
+ * A warm start selects the recorded protocol (ATSPn), which skips the
+ * search, and probes 0100.  When the answers match the profile,
+ * discovery is complete in two commands.  Otherwise it continues as a
+ * cold start.
+ *
+ * Like {@link SessionInit}, the caller sends {@link #command} and
+ * feeds the answer to {@link #feed} until {@link #isComplete()}.
+ */
+public class Discovery
+    extends Object
+    implements Exchange,
+               ResponseTokenizer.Handler,
+               IsoTpReassembler.Sink
+{
+    private final static int WARM_PROTOCOL = 0, WARM_PROBE = 1, COLD_PROTOCOL = 2,
+        HEADERS_ON = 3, BITMAP = 4, VIN = 5, PROTOCOL = 6, HEADERS_OFF = 7, COMPLETE = 8;
+
+
+    private final ResponseFormat format;
+
+    private final ResponseTokenizer tokenizer = new ResponseTokenizer(this);
+
+    private final IsoTpReassembler reassembler = new IsoTpReassembler(this);
+
+    private final VehicleProfile cached;
+
+    private VehicleProfile profile;
+
+    private int state, range, commands;
+
+    private boolean sent, ok, failed, warm;
+
+    private final int[] probeHeaders = new int[VehicleProfile.MAX_ECUS];
+
+    private final int[] probeBitmaps = new int[VehicleProfile.MAX_ECUS];
+
+    private int probes;
+
+
+    /**
+     * @param format Format in effect, from {@link SessionInit}
+     * @param cached Profile to warm start from, or null for a cold
+     * start
+     */
+    public Discovery(ResponseFormat format, VehicleProfile cached){
+        super();
+        if (null == format)
+            throw new IllegalArgumentException();
+        else {
+            this.format = format;
+            this.cached = cached;
+            format.apply(this.tokenizer);
+            if (null != cached && 0 != cached.getProtocol() && 0 < cached.countEcus())
+                this.state = WARM_PROTOCOL;
+            else
+                this.state = COLD_PROTOCOL;
+        }
+    }
+
+
+    public boolean isComplete(){
+        return (COMPLETE == this.state);
+    }
+    /**
+     * @return The adapter found no vehicle
+     */
+    public boolean isFailed(){
+        return this.failed;
+    }
+    /**
+     * @return Completed from the cached profile
+     */
+    public boolean isWarm(){
+        return this.warm;
+    }
+    /**
+     * @return Number of commands sent
+     */
+    public int getCommands(){
+        return this.commands;
+    }
+    /**
+     * @return The cached profile after a warm start, a new profile
+     * after a cold start, or null before completion
+     */
+    public VehicleProfile getProfile(){
+        if (this.isComplete())
+            return this.profile;
+        else
+            return null;
+    }
+    /**
+     * Format the next command.
+     *
+     * @param out Destination with room for eight bytes
+     * @param ofs Offset into out
+     * @return Number of bytes written through the CR, or zero when
+     * complete or waiting for an answer
+     */
+    public int command(byte[] out, int ofs){
+        if (this.sent || this.isComplete())
+            return 0;
+        else {
+            int end = ofs;
+            switch(this.state){
+            case WARM_PROTOCOL:
+                end = at(out,end,'S','P');
+                out[end++] = Hex.Upper[this.cached.getProtocol()];
+                break;
+            case WARM_PROBE:
+                end = mode01(out,end,0x00);
+                break;
+            case COLD_PROTOCOL:
+                end = at(out,end,'S','P');
+                out[end++] = '0';
+                break;
+            case HEADERS_ON:
+                end = at(out,end,'H','1');
+                break;
+            case BITMAP:
+                end = mode01(out,end,this.range);
+                break;
+            case VIN:
+                out[end++] = '0';
+                out[end++] = '9';
+                out[end++] = '0';
+                out[end++] = '2';
+                break;
+            case PROTOCOL:
+                end = at(out,end,'D','P');
+                out[end++] = 'N';
+                break;
+            case HEADERS_OFF:
+                end = at(out,end,'H','0');
+                break;
+            }
+            out[end++] = '\r';
+            this.sent = true;
+            this.ok = false;
+            this.probes = 0;
+            this.commands += 1;
+            return (end-ofs);
+        }
+    }
+    /**
+     * Scan the answer to the last command.
+     */
+    public void feed(byte[] buf, int ofs, int len){
+        this.tokenizer.feed(buf,ofs,len);
+    }
+
+    public void frame(int header, int index, byte[] data, int len){
+        if (PROTOCOL == this.state && 0 > header && 0 > index && 1 == len){
+            /*
+             * "A6" for automatic, protocol six
+             */
+            this.protocol(data[0] & 0xF);
+        }
+        else
+            this.reassembler.frame(header,index,data,len);
+    }
+    public void length(int length){
+        this.reassembler.length(length);
+    }
+    public void text(byte[] line, int len){
+        if (2 == len && 'O' == line[0] && 'K' == line[1])
+            this.ok = true;
+        else if (PROTOCOL == this.state && 0 < len){
+            int p = Hex.value(line[len-1]);
+            if (-1 < p)
+                this.protocol(p);
+        }
+        else if (startsWith(line,len,"UNABLE TO CONNECT"))
+            this.failed = true;
+    }
+    public void payload(int header, byte[] data, int ofs, int len){
+        switch(this.state){
+        case WARM_PROBE:
+            if (6 <= len && 0x41 == data[ofs] && 0x00 == data[ofs+1]
+                && this.probes < VehicleProfile.MAX_ECUS)
+            {
+                this.probeHeaders[this.probes] = header;
+                this.probeBitmaps[this.probes] = bitmap(data,ofs+2);
+                this.probes += 1;
+            }
+            break;
+        case BITMAP:
+            if (6 <= len && 0x41 == data[ofs] && this.range == (data[ofs+1] & 0xFF)){
+                int index = this.profile.addEcu(header);
+                if (-1 < index)
+                    this.profile.setBitmap(index,this.range,bitmap(data,ofs+2));
+            }
+            break;
+        case VIN:
+            if (20 <= len && 0x49 == data[ofs] && 0x02 == data[ofs+1]){
+                StringBuilder vin = new StringBuilder();
+                for (int cc = ofs+len-17, end = ofs+len; cc < end; cc++){
+                    char ch = (char)(data[cc] & 0xFF);
+                    if (('0' <= ch && '9' >= ch) || ('A' <= ch && 'Z' >= ch))
+                        vin.append(ch);
+                }
+                if (17 == vin.length())
+                    this.profile.setVin(vin.toString());
+            }
+            break;
+        }
+    }
+    public void prompt(){
+        this.reassembler.prompt();
+        if (this.sent){
+            this.sent = false;
+            switch(this.state){
+            case WARM_PROTOCOL:
+                this.state = (this.ok)?(WARM_PROBE):(COLD_PROTOCOL);
+                break;
+            case WARM_PROBE:
+                if (this.cached.matches(this.probeHeaders,this.probeBitmaps,this.probes)){
+                    this.profile = this.cached;
+                    this.warm = true;
+                    this.state = COMPLETE;
+                }
+                else
+                    this.state = COLD_PROTOCOL;
+                break;
+            case COLD_PROTOCOL:
+                this.profile = new VehicleProfile();
+                this.range = 0x00;
+                if (this.format.isHeaders())
+                    this.state = BITMAP;
+                else
+                    this.state = HEADERS_ON;
+                break;
+            case HEADERS_ON:
+                if (this.ok)
+                    this.tokenizer.setHeaderDigits(this.format.getHeaderDigits());
+                this.state = BITMAP;
+                break;
+            case BITMAP:
+                if (this.failed || 0 == this.profile.countEcus())
+                    this.state = this.restore();
+                else if (this.profile.hasNextRange(this.range))
+                    this.range += 0x20;
+                else
+                    this.state = VIN;
+                break;
+            case VIN:
+                this.state = PROTOCOL;
+                break;
+            case PROTOCOL:
+                this.state = this.restore();
+                break;
+            case HEADERS_OFF:
+                this.format.apply(this.tokenizer);
+                this.state = COMPLETE;
+                break;
+            }
+        }
+    }
+    private int restore(){
+        if (this.format.isHeaders())
+            return COMPLETE;
+        else
+            return HEADERS_OFF;
+    }
+    private void protocol(int protocol){
+        if (0 < protocol && 0xC >= protocol)
+            this.profile.setProtocol(protocol);
+    }
+
+    private static int at(byte[] out, int ofs, char a, char b){
+        out[ofs++] = 'A';
+        out[ofs++] = 'T';
+        out[ofs++] = (byte)a;
+        out[ofs++] = (byte)b;
+        return ofs;
+    }
+    private static int mode01(byte[] out, int ofs, int pid){
+        out[ofs++] = '0';
+        out[ofs++] = '1';
+        out[ofs++] = Hex.Upper[pid >>> 4];
+        out[ofs++] = Hex.Upper[pid & 0xF];
+        return ofs;
+    }
+    private static int bitmap(byte[] data, int ofs){
+        return (((data[ofs] & 0xFF) << 24)|((data[ofs+1] & 0xFF) << 16)
+                |((data[ofs+2] & 0xFF) << 8)|(data[ofs+3] & 0xFF));
+    }
+    private static boolean startsWith(byte[] line, int len, String prefix){
+        int plen = prefix.length();
+        if (len < plen)
+            return false;
+        else {
+            for (int cc = 0; cc < plen; cc++){
+                if (prefix.charAt(cc) != line[cc])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * Renders compact adapter output for the terminal as the adapter
+ * defaults would have printed it.
+ *
+ * Lines of hex digits are held until their end and then printed in
+ * spaced pairs, after the header when headers are on or the line
+ * number of a multi-frame answer.  Every other line passes through as
+ * it arrives.  Line ends become CR LF.  With echo off, bytes typed by
+ * the user are echoed locally.
+ *
+ * Typed command lines are followed with {@link
+ * ResponseFormat#observe}, so that a format changed by hand is
+ * rendered correctly.
+ */
+public class DisplayFormatter
+    extends Object
+{
+
+    private final ResponseFormat format;
+
+    private final byte[] out;
+
+    private final int chunk;
+
+    private final byte[] held = new byte[ResponseTokenizer.MAX_LINE];
+
+    private final byte[] typed = new byte[ResponseTokenizer.MAX_LINE];
+
+    private int heldLength, typedLength;
+
+    private boolean holding = true, indexed;
+
+
+    /**
+     * @param format Format in effect, shared with whatever else follows
+     * it
+     * @param chunk Largest input to {@link #format}
+     */
+    public DisplayFormatter(ResponseFormat format, int chunk){
+        super();
+        if (null == format)
+            throw new IllegalArgumentException();
+        else if (1 > chunk)
+            throw new IllegalArgumentException(String.valueOf(chunk));
+        else {
+            this.format = format;
+            this.chunk = chunk;
+            /*
+             * Each byte may become two, and a held line is released
+             * with a space per pair
+             */
+            this.out = new byte[2*chunk+2*ResponseTokenizer.MAX_LINE+2];
+        }
+    }
+
+
+    public ResponseFormat getFormat(){
+        return this.format;
+    }
+    /**
+     * @return Output of the last call to {@link #format} or {@link
+     * #typed}
+     */
+    public byte[] getBuffer(){
+        return this.out;
+    }
+    /**
+     * @return Number of bytes in the buffer
+     */
+    public int format(byte[] in, int ofs, int len){
+        if (len > this.chunk)
+            throw new IllegalArgumentException(String.valueOf(len));
+        else {
+            final byte[] out = this.out;
+            final int end = ofs+len;
+            int o = 0;
+            for (int cc = ofs; cc < end; cc++){
+                final byte b = in[cc];
+                switch(b){
+                case '\r':
+                    o = this.release(o);
+                    out[o++] = '\r';
+                    out[o++] = '\n';
+                    break;
+                case '\n':
+                    break;
+                case '>':
+                    o = this.release(o);
+                    out[o++] = b;
+                    break;
+                default:
+                    if (this.holding){
+                        if (0 <= Hex.value(b) && this.heldLength < this.held.length){
+                            this.held[this.heldLength++] = b;
+                            break;
+                        }
+                        else if (':' == b && 1 == this.heldLength && !this.indexed){
+                            /*
+                             * Numbered line of a multi-frame answer
+                             */
+                            this.held[this.heldLength++] = b;
+                            this.indexed = true;
+                            break;
+                        }
+                        else {
+                            System.arraycopy(this.held,0,out,o,this.heldLength);
+                            o += this.heldLength;
+                            this.heldLength = 0;
+                            this.holding = false;
+                            this.indexed = false;
+                        }
+                    }
+                    out[o++] = b;
+                    break;
+                }
+            }
+            return o;
+        }
+    }
+    /**
+     * A byte typed by the user and sent to the adapter.
+     *
+     * @return Number of bytes in the buffer for local echo, zero with
+     * echo on
+     */
+    public int typed(int b){
+        final ResponseFormat format = this.format;
+        final boolean echo = format.isEcho();
+        if ('\r' == b){
+            format.observe(this.typed,0,this.typedLength);
+            this.typedLength = 0;
+        }
+        else if (this.typedLength < this.typed.length)
+            this.typed[this.typedLength++] = (byte)b;
+
+        if (echo)
+            return 0;
+        else if ('\r' == b){
+            this.out[0] = '\r';
+            this.out[1] = '\n';
+            return 2;
+        }
+        else {
+            this.out[0] = (byte)b;
+            return 1;
+        }
+    }
+    /**
+     * End of line: print a held line of hex.
+     */
+    private int release(int o){
+        final byte[] out = this.out;
+        final byte[] held = this.held;
+        final int count = this.heldLength;
+        int header;
+        if (this.indexed)
+            header = 2;
+        else if (this.format.isHeaders())
+            header = this.format.getHeaderDigits();
+        else
+            header = 0;
+        if (this.format.isSpaces() || header > count || 1 == ((count-header) & 1)){
+            /*
+             * Already spaced, or not a frame
+             */
+            System.arraycopy(held,0,out,o,count);
+            o += count;
+        }
+        else {
+            int cc = 0;
+            if (0 < header){
+                System.arraycopy(held,0,out,o,header);
+                o += header;
+                cc = header;
+            }
+            for (; cc < count; cc += 2){
+                if (0 < cc)
+                    out[o++] = ' ';
+                out[o++] = held[cc];
+                out[o++] = held[cc+1];
+            }
+        }
+        this.heldLength = 0;
+        this.holding = true;
+        this.indexed = false;
+        return o;
+    }
+}
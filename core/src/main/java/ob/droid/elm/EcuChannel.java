@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.data.LatencyStats;
+import ob.droid.data.SeriesStore;
+import ob.droid.obd.PidDecoders;
+
+/**
+ * The answers of one ECU, from an {@link EcuDemultiplexer}.
+ *
+ * The channel assembles the ECU's payloads in a reassembler of its
+ * own, splits mode 01 payloads into samples, decodes them into its
+ * {@link SeriesStore}, and passes the raw samples to its subscribers.
+ * Subscribers are called on the thread feeding the demultiplexer.
+ */
+public class EcuChannel
+    extends Object
+    implements IsoTpReassembler.Sink, Mode01Response.Sink
+{
+    private final static Mode01Response.Sink[] NONE = new Mode01Response.Sink[0];
+
+
+    private final int header;
+
+    private final IsoTpReassembler reassembler;
+
+    private final SeriesStore store;
+
+    private volatile Mode01Response.Sink[] subscribers = NONE;
+
+    private volatile LatencyStats stats;
+
+    private volatile long payloads, samples, time;
+
+    private long now;
+
+
+    /**
+     * @param header CAN identifier, or negative one with headers off
+     * @param store Sample series
+     */
+    public EcuChannel(int header, SeriesStore store){
+        super();
+        if (null == store)
+            throw new IllegalArgumentException();
+        else {
+            this.header = header;
+            this.store = store;
+            /*
+             * One ECU sends one payload at a time
+             */
+            this.reassembler = new IsoTpReassembler(this,1);
+        }
+    }
+
+
+    /**
+     * @return CAN identifier, or negative one with headers off
+     */
+    public int getHeader(){
+        return this.header;
+    }
+    /**
+     * @param stats Told of samples decoded, or null
+     */
+    public void setStats(LatencyStats stats){
+        this.stats = stats;
+    }
+    public IsoTpReassembler getReassembler(){
+        return this.reassembler;
+    }
+    public SeriesStore getStore(){
+        return this.store;
+    }
+    /**
+     * @return Number of payloads received
+     */
+    public long getPayloads(){
+        return this.payloads;
+    }
+    /**
+     * @return Number of mode 01 samples received
+     */
+    public long getSamples(){
+        return this.samples;
+    }
+    /**
+     * @return Time of the latest payload, from {@link
+     * java.lang.System#nanoTime()}, or zero
+     */
+    public long getTime(){
+        return this.time;
+    }
+    public synchronized void subscribe(Mode01Response.Sink sink){
+        if (null == sink)
+            throw new IllegalArgumentException();
+        else {
+            Mode01Response.Sink[] list = this.subscribers;
+            for (int cc = 0; cc < list.length; cc++){
+                if (sink == list[cc])
+                    return;
+            }
+            Mode01Response.Sink[] copy = new Mode01Response.Sink[list.length+1];
+            System.arraycopy(list,0,copy,0,list.length);
+            copy[list.length] = sink;
+            this.subscribers = copy;
+        }
+    }
+    public synchronized void unsubscribe(Mode01Response.Sink sink){
+        Mode01Response.Sink[] list = this.subscribers;
+        for (int cc = 0; cc < list.length; cc++){
+            if (sink == list[cc]){
+                Mode01Response.Sink[] copy = new Mode01Response.Sink[list.length-1];
+                System.arraycopy(list,0,copy,0,cc);
+                System.arraycopy(list,cc+1,copy,cc,copy.length-cc);
+                this.subscribers = copy;
+                return;
+            }
+        }
+    }
+
+    public void payload(int header, byte[] data, int ofs, int len){
+        this.now = System.nanoTime();
+        this.payloads += 1;
+        this.time = this.now;
+        Mode01Response.split(data,ofs,len,this);
+    }
+    public void sample(int pid, byte[] data, int ofs, int len){
+        this.samples += 1;
+        float value = PidDecoders.decode(pid,data,ofs,len);
+        if (value == value){
+            this.store.append(pid,this.now,value);
+            LatencyStats stats = this.stats;
+            if (null != stats)
+                stats.decoded(pid,System.nanoTime());
+        }
+
+        final Mode01Response.Sink[] list = this.subscribers;
+        for (int cc = 0; cc < list.length; cc++){
+            list[cc].sample(pid,data,ofs,len);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.data.LatencyStats;
+import ob.droid.data.SampleRing;
+import ob.droid.data.SeriesStore;
+
+/**
+ * Routes the answers to functional requests, like 7DF, into one
+ * {@link EcuChannel} per responding ECU, like 7E8 and 7E9.
+ *
+ * Frames are routed by header as each line ends.  Every channel
+ * assembles its own payloads, so a single frame answer from a fast
+ * ECU is decoded at once while a slow ECU's multiple frame answer is
+ * still arriving, and a slow or broken answer is only dropped from
+ * its own channel.  With headers off there is one channel, with
+ * header negative one.
+ *
+ * Channels are created as ECUs answer, up to {@link #MAX_ECUS}, or
+ * beforehand by {@link #channel} to subscribe to one ECU.
+ */
+public class EcuDemultiplexer
+    extends Object
+    implements ResponseTokenizer.Handler
+{
+    /**
+     * Told of each new channel, on the feeding thread.
+     */
+    public interface Listener {
+        public void channel(EcuChannel channel);
+    }
+
+    public final static int MAX_ECUS = VehicleProfile.MAX_ECUS;
+
+
+    private final ResponseTokenizer tokenizer = new ResponseTokenizer(this);
+
+    private final EcuChannel[] channels = new EcuChannel[MAX_ECUS];
+
+    private final int capacity;
+
+    private final boolean summarize;
+
+    private volatile int count;
+
+    private volatile Listener listener;
+
+    private volatile LatencyStats stats;
+
+    private long dropped;
+
+
+    public EcuDemultiplexer(){
+        this(SampleRing.CAPACITY,true);
+    }
+    /**
+     * @param capacity Samples retained per PID per ECU
+     * @param summarize Maintain summaries per PID per ECU
+     */
+    public EcuDemultiplexer(int capacity, boolean summarize){
+        super();
+        if (1 > capacity)
+            throw new IllegalArgumentException(String.valueOf(capacity));
+        else {
+            this.capacity = capacity;
+            this.summarize = summarize;
+        }
+    }
+
+
+    public ResponseTokenizer getTokenizer(){
+        return this.tokenizer;
+    }
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+    /**
+     * @param stats Told of samples decoded on every channel, or null
+     */
+    public void setStats(LatencyStats stats){
+        this.stats = stats;
+        synchronized(this){
+            for (int cc = 0; cc < this.count; cc++){
+                this.channels[cc].setStats(stats);
+            }
+        }
+    }
+    /**
+     * @return Number of channels
+     */
+    public int size(){
+        return this.count;
+    }
+    public EcuChannel getChannel(int index){
+        if (0 > index || index >= this.count)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        else
+            return this.channels[index];
+    }
+    /**
+     * @param header CAN identifier, or negative one with headers off
+     * @return Channel, or null when the ECU has not answered
+     */
+    public EcuChannel get(int header){
+        for (int cc = 0, count = this.count; cc < count; cc++){
+            EcuChannel channel = this.channels[cc];
+            if (header == channel.getHeader())
+                return channel;
+        }
+        return null;
+    }
+    /**
+     * @param header CAN identifier, or negative one with headers off
+     * @return Channel, created when missing, or null when all
+     * channels are taken
+     */
+    public EcuChannel channel(int header){
+        EcuChannel channel = this.get(header);
+        if (null != channel)
+            return channel;
+        synchronized(this){
+            channel = this.get(header);
+            if (null != channel)
+                return channel;
+            else if (MAX_ECUS == this.count)
+                return null;
+            else {
+                channel = new EcuChannel(header,new SeriesStore(this.capacity,this.summarize));
+                channel.setStats(this.stats);
+                this.channels[this.count] = channel;
+                this.count += 1;
+            }
+        }
+        Listener listener = this.listener;
+        if (null != listener)
+            listener.channel(channel);
+        return channel;
+    }
+    /**
+     * @return Frames from ECUs beyond {@link #MAX_ECUS}
+     */
+    public long getDropped(){
+        return this.dropped;
+    }
+    /**
+     * Scan adapter output as it arrives.
+     */
+    public void feed(byte[] buf, int ofs, int len){
+        this.tokenizer.feed(buf,ofs,len);
+    }
+    /**
+     * Forget answers in progress.
+     */
+    public void reset(){
+        this.tokenizer.reset();
+        for (int cc = 0, count = this.count; cc < count; cc++){
+            this.channels[cc].getReassembler().reset();
+        }
+    }
+    /**
+     * Drop partial payloads idle for longer than their timeout, when
+     * monitoring without prompts.
+     */
+    public void expire(long now){
+        for (int cc = 0, count = this.count; cc < count; cc++){
+            this.channels[cc].getReassembler().expire(now);
+        }
+    }
+
+    public void frame(int header, int index, byte[] data, int len){
+        EcuChannel channel = this.channel(header);
+        if (null == channel)
+            this.dropped += 1;
+        else
+            channel.getReassembler().frame(header,index,data,len);
+    }
+    public void length(int length){
+        EcuChannel channel = this.channel(-1);
+        if (null == channel)
+            this.dropped += 1;
+        else
+            channel.getReassembler().length(length);
+    }
+    public void text(byte[] line, int len){
+    }
+    public void prompt(){
+        for (int cc = 0, count = this.count; cc < count; cc++){
+            this.channels[cc].getReassembler().prompt();
+        }
+    }
+}
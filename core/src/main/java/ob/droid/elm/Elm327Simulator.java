@@ -0,0 +1,768 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.Connection;
+import ob.droid.ConnectionLoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java stand-in for an ELM327 adapter on an ISO 15765-4 (CAN
+ * 11/500) vehicle described by an {@link EngineModel}.
+ *
+ * The AT subset is Z, I, D, WS, E, S, H, L, CAF, SP, TP, DP, DPN, ST,
+ * AT and RV.  OBD requests in modes 01, 03, 04 and 09 are answered by
+ * the engine (7E8) and transmission (7E9) ECUs, with ISO-TP framing
+ * printed as the adapter prints it: PCI bytes with headers on, or a
+ * length line and numbered lines with headers off.
+ *
+ * Timing follows the adapter: each ECU answers after its own latency,
+ * and the prompt follows the last answer after the ST timeout, which
+ * adaptive timing (AT1, AT2) shortens.  A response count suffix
+ * ("010C1") returns as soon as that many ECUs have answered.  Bytes
+ * received while a request is pending stop it, as on the chip.
+ *
+ * Serve it over a {@link Connection} with {@link #attach}, or over a
+ * loopback socket with {@link #listen}.
+ */
+public class Elm327Simulator
+    extends Object
+{
+    public final static String ID = "ELM327 v1.5";
+
+    public final static int PROTOCOL = 6;
+
+    private final static long MS = 1000000L;
+
+    private final static char[] HEX = "0123456789ABCDEF".toCharArray();
+
+
+    private final EngineModel engine;
+
+    private final byte[] data = new byte[0x100];
+
+    private volatile long adapterLatency = 2*MS;
+
+    private volatile long searchLatency = 1500*MS;
+
+    private volatile long resetLatency = 500*MS;
+
+    private volatile long engineLatency = 25*MS;
+
+    private volatile long transmissionLatency = 45*MS;
+
+    private boolean echo, spaces, headers, linefeeds, caf;
+
+    private int protocol, timeout, adaptive;
+
+    private boolean detected;
+
+    private String last;
+
+
+    public Elm327Simulator(EngineModel engine){
+        super();
+        if (null == engine)
+            throw new IllegalArgumentException();
+        else {
+            this.engine = engine;
+            this.reset();
+        }
+    }
+
+
+    public EngineModel getEngine(){
+        return this.engine;
+    }
+    /**
+     * @param header Response header, 7E8 or 7E9
+     * @param nanos Time from request to that ECU's answer
+     */
+    public void setEcuLatency(int header, long nanos){
+        if (EngineModel.ENGINE == header)
+            this.engineLatency = nanos;
+        else
+            this.transmissionLatency = nanos;
+    }
+    public long getEcuLatency(int header){
+        if (EngineModel.ENGINE == header)
+            return this.engineLatency;
+        else
+            return this.transmissionLatency;
+    }
+    /**
+     * @param nanos Command processing time added to every response
+     */
+    public void setAdapterLatency(long nanos){
+        this.adapterLatency = nanos;
+    }
+    /**
+     * @param nanos Protocol search time on the first request after
+     * ATSP0
+     */
+    public void setSearchLatency(long nanos){
+        this.searchLatency = nanos;
+    }
+    public void setResetLatency(long nanos){
+        this.resetLatency = nanos;
+    }
+    /**
+     * Power on defaults.
+     */
+    public synchronized void reset(){
+        this.echo = true;
+        this.spaces = true;
+        this.headers = false;
+        this.linefeeds = true;
+        this.caf = true;
+        this.protocol = 0;
+        this.timeout = 0x32;
+        this.adaptive = 1;
+        this.detected = false;
+        this.last = null;
+    }
+    /**
+     * @param command One command line without its CR
+     * @param out Receives the echo when echo is on
+     */
+    public synchronized void echo(String command, StringBuilder out){
+        if (this.echo){
+            out.append(command);
+            this.eol(out);
+        }
+    }
+    /**
+     * Interpret one command line.
+     *
+     * @param command One command line without its CR
+     * @param out Receives the response through the prompt
+     * @return Nanoseconds before the response is due
+     */
+    public synchronized long process(String command, StringBuilder out){
+        String cmd = normalize(command);
+        if (0 == cmd.length()){
+            if (null == this.last){
+                out.append('>');
+                return this.adapterLatency;
+            }
+            else
+                cmd = this.last;
+        }
+        this.last = cmd;
+        long delay;
+        if (cmd.startsWith("AT"))
+            delay = this.at(cmd.substring(2),out);
+        else
+            delay = this.obd(cmd,out);
+        out.append('>');
+        return this.adapterLatency+delay;
+    }
+    /**
+     * Interrupted request.
+     */
+    public void stopped(StringBuilder out){
+        out.append("STOPPED");
+        this.eol(out);
+        this.eol(out);
+        out.append('>');
+    }
+    /**
+     * Serve an adapter end of a connection pair on the loop.
+     */
+    public void attach(Connection connection, ConnectionLoop loop){
+        new Driver(connection,loop);
+    }
+    /**
+     * Serve loopback TCP clients, one thread each, until the server
+     * socket is closed.
+     *
+     * @param port Local port, or zero for any
+     * @return The bound server socket
+     */
+    public ServerSocket listen(int port)
+        throws IOException
+    {
+        final ServerSocket server = new ServerSocket(port,4,InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("ELM327 simulator "+server.getLocalPort()){
+                public void run(){
+                    try {
+                        while (true){
+                            final Socket client = server.accept();
+                            client.setTcpNoDelay(true);
+                            Thread session = new Thread(this.getName()+" client"){
+                                    public void run(){
+                                        Elm327Simulator.this.serve(client);
+                                    }
+                                };
+                            session.setDaemon(true);
+                            session.start();
+                        }
+                    }
+                    catch (IOException closed){
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    private void serve(Socket client){
+        try {
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+            StringBuilder line = new StringBuilder();
+            StringBuilder response = new StringBuilder();
+            int ch;
+            while (0 <= (ch = in.read())){
+                if ('\r' == ch){
+                    String command = line.toString();
+                    line.setLength(0);
+                    response.setLength(0);
+                    this.echo(command,response);
+                    if (0 < response.length()){
+                        out.write(ascii(response));
+                        out.flush();
+                    }
+                    response.setLength(0);
+                    long delay = this.process(command,response);
+                    if (0L < delay){
+                        Thread.sleep(delay/MS,(int)(delay%MS));
+                    }
+                    out.write(ascii(response));
+                    out.flush();
+                }
+                else if ('\n' != ch && ' ' <= ch){
+                    line.append((char)ch);
+                }
+            }
+        }
+        catch (InterruptedException exc){
+        }
+        catch (IOException exc){
+        }
+        finally {
+            try {
+                client.close();
+            }
+            catch (IOException ignore){
+            }
+        }
+    }
+    /*
+     * AT commands
+     */
+    private long at(String cmd, StringBuilder out){
+        if ("Z".equals(cmd)){
+            this.reset();
+            out.append('\r').append('\r').append(ID);
+            this.eol(out);
+            this.eol(out);
+            return this.resetLatency;
+        }
+        else if ("I".equals(cmd)){
+            this.line(out,ID);
+        }
+        else if ("WS".equals(cmd)){
+            this.reset();
+            out.append('\r').append('\r').append(ID);
+            this.eol(out);
+            this.eol(out);
+        }
+        else if ("D".equals(cmd)){
+            this.reset();
+            this.line(out,"OK");
+        }
+        else if ("RV".equals(cmd)){
+            this.line(out,"14.1V");
+        }
+        else if ("DP".equals(cmd)){
+            String name = "ISO 15765-4 (CAN 11/500)";
+            if (0 == this.protocol)
+                this.line(out,this.detected?("AUTO, "+name):("AUTO"));
+            else
+                this.line(out,name);
+        }
+        else if ("DPN".equals(cmd)){
+            if (0 == this.protocol)
+                this.line(out,this.detected?("A"+PROTOCOL):("0"));
+            else
+                this.line(out,Integer.toHexString(this.protocol).toUpperCase());
+        }
+        else if (this.flag(cmd,out)){
+        }
+        else if (cmd.startsWith("SP") || cmd.startsWith("TP")){
+            String arg = cmd.substring(2);
+            if (arg.startsWith("A"))
+                arg = arg.substring(1);
+            int p = parseHex(arg);
+            if (0 > p || 0xC < p)
+                this.line(out,"?");
+            else {
+                this.protocol = p;
+                this.detected = false;
+                this.line(out,"OK");
+            }
+        }
+        else if (cmd.startsWith("ST")){
+            int t = parseHex(cmd.substring(2));
+            if (0 > t || 0xFF < t)
+                this.line(out,"?");
+            else {
+                this.timeout = (0 == t)?(0x32):(t);
+                this.line(out,"OK");
+            }
+        }
+        else if (cmd.startsWith("AT")){
+            int a = parseHex(cmd.substring(2));
+            if (0 > a || 2 < a)
+                this.line(out,"?");
+            else {
+                this.adaptive = a;
+                this.line(out,"OK");
+            }
+        }
+        else {
+            this.line(out,"?");
+        }
+        this.eol(out);
+        return 0L;
+    }
+    /**
+     * Boolean settings E, S, H, L and CAF.
+     */
+    private boolean flag(String cmd, StringBuilder out){
+        int len = cmd.length();
+        if (2 <= len){
+            char value = cmd.charAt(len-1);
+            if ('0' == value || '1' == value){
+                boolean on = ('1' == value);
+                String name = cmd.substring(0,len-1);
+                if ("E".equals(name))
+                    this.echo = on;
+                else if ("S".equals(name))
+                    this.spaces = on;
+                else if ("H".equals(name))
+                    this.headers = on;
+                else if ("L".equals(name))
+                    this.linefeeds = on;
+                else if ("CAF".equals(name))
+                    this.caf = on;
+                else
+                    return false;
+
+                this.line(out,"OK");
+                return true;
+            }
+        }
+        return false;
+    }
+    /*
+     * OBD requests
+     */
+    private long obd(String cmd, StringBuilder out){
+        final int len = cmd.length();
+        for (int cc = 0; cc < len; cc++){
+            if (0 > Character.digit(cmd.charAt(cc),16)){
+                this.line(out,"?");
+                this.eol(out);
+                return 0L;
+            }
+        }
+        if (2 > len){
+            this.line(out,"?");
+            this.eol(out);
+            return 0L;
+        }
+        long delay = 0L;
+        if (0 == this.protocol && (!this.detected)){
+            this.line(out,"SEARCHING...");
+            delay += this.searchLatency;
+            this.detected = true;
+        }
+        else if (0 != this.protocol && PROTOCOL != this.protocol){
+            this.line(out,"UNABLE TO CONNECT");
+            this.eol(out);
+            return delay+this.timeout*4*MS;
+        }
+        /*
+         * Mode, PIDs and the optional response count
+         */
+        final int mode = parseHex(cmd.substring(0,2));
+        int[] pids = new int[(len-2)/2];
+        for (int cc = 0; cc < pids.length; cc++){
+            pids[cc] = parseHex(cmd.substring(2+cc*2,4+cc*2));
+        }
+        int count = 0;
+        if (1 == (len & 1))
+            count = Character.digit(cmd.charAt(len-1),16);
+
+        final long now = System.nanoTime();
+        final long window = this.timeout*4*MS;
+        final int[] ecus = this.engine.getEcus();
+        long lastAnswer = -1L;
+        int answers = 0;
+        for (int ecu : ecus){
+            long latency = this.getEcuLatency(ecu);
+            if (latency > window)
+                continue;
+            else if (0 < count && answers >= count)
+                break;
+
+            int n = this.payload(ecu,mode,pids,now);
+            if (0 < n){
+                this.frames(ecu,n,out);
+                lastAnswer = Math.max(lastAnswer,latency);
+                answers += 1;
+            }
+        }
+        if (0 == answers){
+            this.line(out,"NO DATA");
+            this.eol(out);
+            return delay+window;
+        }
+        else {
+            this.eol(out);
+            if (0 < count && answers >= count)
+                return delay+lastAnswer;
+            else {
+                long wait;
+                switch(this.adaptive){
+                case 0:
+                    wait = window;
+                    break;
+                case 1:
+                    wait = Math.min(window,Math.max(20*MS,lastAnswer));
+                    break;
+                default:
+                    wait = Math.min(window,Math.max(8*MS,lastAnswer/2));
+                    break;
+                }
+                return delay+lastAnswer+wait;
+            }
+        }
+    }
+    /**
+     * @return Payload length in data, or zero for no answer
+     */
+    private int payload(int ecu, int mode, int[] pids, long now){
+        final byte[] data = this.data;
+        final EngineModel engine = this.engine;
+        int n = 0;
+        switch(mode){
+        case 0x01:
+            if (0 == pids.length || 6 < pids.length)
+                return 0;
+            else {
+                data[n++] = 0x41;
+                for (int pid : pids){
+                    int at = n+1;
+                    int r = engine.read(ecu,pid,now,data,at);
+                    if (0 < r){
+                        data[n] = (byte)pid;
+                        n = at+r;
+                    }
+                }
+                return (1 < n)?(n):(0);
+            }
+        case 0x03:{
+            int[] dtcs = engine.getDtcs(ecu);
+            data[n++] = 0x43;
+            data[n++] = (byte)dtcs.length;
+            for (int dtc : dtcs){
+                data[n++] = (byte)(dtc >>> 8);
+                data[n++] = (byte)dtc;
+            }
+            return n;
+        }
+        case 0x04:
+            if (EngineModel.ENGINE == ecu){
+                engine.clearDtcs();
+                data[n++] = 0x44;
+            }
+            return n;
+        case 0x09:
+            if (EngineModel.ENGINE != ecu || 1 != pids.length)
+                return 0;
+            else if (0x00 == pids[0]){
+                data[n++] = 0x49;
+                data[n++] = 0x00;
+                data[n++] = 0x40;
+                data[n++] = 0x00;
+                data[n++] = 0x00;
+                data[n++] = 0x00;
+                return n;
+            }
+            else if (0x02 == pids[0]){
+                String vin = engine.getVin();
+                data[n++] = 0x49;
+                data[n++] = 0x02;
+                data[n++] = 0x01;
+                for (int cc = 0; cc < 17; cc++){
+                    data[n++] = (byte)vin.charAt(cc);
+                }
+                return n;
+            }
+            else
+                return 0;
+        default:
+            return 0;
+        }
+    }
+    /**
+     * Print a payload as ISO-TP frames.
+     */
+    private void frames(int ecu, int n, StringBuilder out){
+        final byte[] data = this.data;
+        if (7 >= n){
+            if (this.headers){
+                this.header(ecu,out);
+                this.hex(n,out);
+            }
+            for (int cc = 0; cc < n; cc++){
+                this.hex(data[cc],out,(0 < cc || this.headers));
+            }
+            this.eol(out);
+        }
+        else if (this.headers){
+            this.header(ecu,out);
+            this.hex(0x10|(n >>> 8),out);
+            this.hex(n,out,true);
+            for (int cc = 0; cc < 6; cc++){
+                this.hex(data[cc],out,true);
+            }
+            this.eol(out);
+            int seq = 1;
+            for (int ofs = 6; ofs < n; ofs += 7, seq++){
+                this.header(ecu,out);
+                this.hex(0x20|(seq & 0xF),out);
+                for (int cc = 0; cc < 7; cc++){
+                    int at = ofs+cc;
+                    this.hex((at < n)?(data[at]):(0),out,true);
+                }
+                this.eol(out);
+            }
+        }
+        else {
+            out.append(HEX[(n >>> 8) & 0xF]).append(HEX[(n >>> 4) & 0xF]).append(HEX[n & 0xF]);
+            this.eol(out);
+            out.append('0').append(':');
+            for (int cc = 0; cc < 6; cc++){
+                this.hex(data[cc],out,true);
+            }
+            this.eol(out);
+            int seq = 1;
+            for (int ofs = 6; ofs < n; ofs += 7, seq++){
+                out.append(HEX[seq & 0xF]).append(':');
+                for (int cc = 0; cc < 7; cc++){
+                    int at = ofs+cc;
+                    this.hex((at < n)?(data[at]):(0),out,true);
+                }
+                this.eol(out);
+            }
+        }
+    }
+    private void header(int ecu, StringBuilder out){
+        out.append(HEX[(ecu >>> 8) & 0xF]).append(HEX[(ecu >>> 4) & 0xF]).append(HEX[ecu & 0xF]);
+    }
+    private void hex(int b, StringBuilder out){
+        this.hex(b,out,true);
+    }
+    private void hex(int b, StringBuilder out, boolean separate){
+        if (separate && this.spaces)
+            out.append(' ');
+        out.append(HEX[(b >>> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+    private void line(StringBuilder out, String text){
+        out.append(text);
+        this.eol(out);
+    }
+    private void eol(StringBuilder out){
+        out.append('\r');
+        if (this.linefeeds)
+            out.append('\n');
+    }
+
+    /**
+     * Upper case without spaces.
+     */
+    private static String normalize(String command){
+        StringBuilder cmd = new StringBuilder(command.length());
+        for (int cc = 0, len = command.length(); cc < len; cc++){
+            char ch = command.charAt(cc);
+            if (' ' < ch)
+                cmd.append(Character.toUpperCase(ch));
+        }
+        return cmd.toString();
+    }
+    private static int parseHex(String string){
+        if (0 == string.length() || 8 < string.length())
+            return -1;
+        else {
+            try {
+                return Integer.parseInt(string,16);
+            }
+            catch (NumberFormatException exc){
+                return -1;
+            }
+        }
+    }
+    private static byte[] ascii(CharSequence string){
+        int len = string.length();
+        byte[] bytes = new byte[len];
+        for (int cc = 0; cc < len; cc++){
+            bytes[cc] = (byte)string.charAt(cc);
+        }
+        return bytes;
+    }
+
+    /**
+     * Connection server.  Commands are collected as they arrive, and
+     * each response is written when it falls due on the loop.
+     */
+    private class Driver
+        extends Object
+        implements Connection.Listener,
+                   Runnable
+    {
+        private final Connection connection;
+
+        private final ConnectionLoop loop;
+
+        private final ByteBuffer input = ByteBuffer.allocate(256);
+
+        private final StringBuilder line = new StringBuilder();
+
+        private final StringBuilder response = new StringBuilder();
+
+        private ByteBuffer output;
+
+        private String pending;
+
+        private int generation;
+
+
+        Driver(Connection connection, ConnectionLoop loop){
+            super();
+            this.connection = connection;
+            this.loop = loop;
+            connection.setListener(this);
+            loop.post(this);
+        }
+
+
+        public void readable(Connection connection){
+            this.loop.post(this);
+        }
+        public void writable(Connection connection){
+            this.loop.post(this);
+        }
+        public void closed(Connection connection){
+        }
+        /**
+         * On the loop thread.
+         */
+        public void run(){
+            try {
+                int read;
+                while (0 < (read = this.connection.read(this.input))){
+                    this.input.flip();
+                    while (this.input.hasRemaining()){
+                        this.receive(this.input.get());
+                    }
+                    this.input.clear();
+                }
+                this.flush();
+            }
+            catch (IOException exc){
+                this.connection.close();
+            }
+        }
+        private void receive(byte b){
+            if (null != this.pending){
+                /*
+                 * Any byte stops a request in progress
+                 */
+                this.pending = null;
+                this.generation += 1;
+                this.response.setLength(0);
+                Elm327Simulator.this.stopped(this.response);
+                this.send(this.response);
+            }
+            if ('\r' == b){
+                final String command = this.line.toString();
+                this.line.setLength(0);
+                this.response.setLength(0);
+                Elm327Simulator.this.echo(command,this.response);
+                this.send(this.response);
+
+                this.response.setLength(0);
+                final long delay = Elm327Simulator.this.process(command,this.response);
+                final String text = this.response.toString();
+                final int generation = ++this.generation;
+                this.pending = text;
+                this.loop.schedule(new Runnable(){
+                        public void run(){
+                            Driver.this.due(generation,text);
+                        }
+                    },delay);
+            }
+            else if ('\n' != b && ' ' <= b){
+                this.line.append((char)b);
+            }
+        }
+        private void due(int generation, String text){
+            if (generation == this.generation && null != this.pending){
+                this.pending = null;
+                this.send(text);
+            }
+        }
+        private void send(CharSequence text){
+            if (0 < text.length()){
+                byte[] bytes = ascii(text);
+                ByteBuffer output = this.output;
+                if (null == output || (!output.hasRemaining()))
+                    this.output = ByteBuffer.wrap(bytes);
+                else {
+                    ByteBuffer concat = ByteBuffer.allocate(output.remaining()+bytes.length);
+                    concat.put(output);
+                    concat.put(bytes);
+                    concat.flip();
+                    this.output = concat;
+                }
+                this.flush();
+            }
+        }
+        private void flush(){
+            ByteBuffer output = this.output;
+            if (null != output && output.hasRemaining()){
+                try {
+                    this.connection.write(output);
+                }
+                catch (IOException exc){
+                    this.connection.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * Scripted vehicle for the {@link Elm327Simulator}.  A script is a
+ * looping list of phases, each ramping engine speed and road speed
+ * linearly to its targets over its duration.  Everything else (load,
+ * throttle, MAF, temperatures, fuel) is derived from those and from
+ * the time since start, and encoded per SAE J1979 mode 01.
+ *
+ * The engine ECU answers all of {@link #ENGINE_PIDS}, and the
+ * transmission ECU answers {@link #TRANSMISSION_PIDS}, so that
+ * functional requests can draw two responses.
+ */
+public class EngineModel
+    extends Object
+{
+    public final static int ENGINE = 0x7E8;
+    public final static int TRANSMISSION = 0x7E9;
+
+    public final static int[] ENGINE_PIDS = {
+        0x01, 0x04, 0x05, 0x0B, 0x0C, 0x0D, 0x0F, 0x10, 0x11, 0x1C,
+        0x1F, 0x2F, 0x33, 0x42, 0x46, 0x5C
+    };
+    public final static int[] TRANSMISSION_PIDS = {
+        0x01, 0x0D
+    };
+    /**
+     * Idle, pull away, cruise, slow down: {seconds, rpm, km/h}.
+     */
+    public final static int[][] DEFAULT_SCRIPT = {
+        {10,  800,   0},
+        { 8, 3000,  60},
+        {20, 2000,  60},
+        { 6, 3500, 100},
+        {30, 2400, 100},
+        {12,  800,   0}
+    };
+
+
+    private final int[][] script;
+
+    private final long cycle;
+
+    private final long start;
+
+    private String vin = "1G1JC5444R7252367";
+
+    private int[] engineDtcs = { 0x0300, 0x0171 };
+
+    private int[] transmissionDtcs = {};
+
+
+    public EngineModel(){
+        this(DEFAULT_SCRIPT,System.nanoTime());
+    }
+    /**
+     * @param script Phases of {seconds, rpm, km/h}
+     * @param start Origin of script time, from {@link
+     * java.lang.System#nanoTime()}
+     */
+    public EngineModel(int[][] script, long start){
+        super();
+        if (null == script || 0 == script.length)
+            throw new IllegalArgumentException();
+        else {
+            this.script = script;
+            long cycle = 0L;
+            for (int[] phase : script){
+                cycle += phase[0]*1000000000L;
+            }
+            this.cycle = cycle;
+            this.start = start;
+        }
+    }
+
+
+    public String getVin(){
+        return this.vin;
+    }
+    public void setVin(String vin){
+        if (null == vin || 17 != vin.length())
+            throw new IllegalArgumentException(vin);
+        else
+            this.vin = vin;
+    }
+    /**
+     * @param ecu Response header
+     * @return Stored trouble codes in their two byte J1979 form
+     */
+    public int[] getDtcs(int ecu){
+        if (ENGINE == ecu)
+            return this.engineDtcs;
+        else
+            return this.transmissionDtcs;
+    }
+    public void setDtcs(int ecu, int[] dtcs){
+        if (ENGINE == ecu)
+            this.engineDtcs = dtcs;
+        else
+            this.transmissionDtcs = dtcs;
+    }
+    public void clearDtcs(){
+        this.engineDtcs = new int[0];
+        this.transmissionDtcs = new int[0];
+    }
+    /**
+     * @return Response headers in ascending order
+     */
+    public int[] getEcus(){
+        return new int[]{ENGINE,TRANSMISSION};
+    }
+    public boolean isSupported(int ecu, int pid){
+        int[] list = (ENGINE == ecu)?(ENGINE_PIDS):(TRANSMISSION_PIDS);
+        if (0 == (pid & 0x1F) && pid < 0xE0){
+            /*
+             * A bitmap PID is supported when it is the first, or
+             * when the previous bitmap flags it.
+             */
+            if (0 == pid)
+                return true;
+            else {
+                for (int p : list){
+                    if (p > pid)
+                        return true;
+                }
+                return false;
+            }
+        }
+        else {
+            for (int p : list){
+                if (p == pid)
+                    return true;
+            }
+            return false;
+        }
+    }
+    /**
+     * @param ecu Response header
+     * @param pid Mode 01 PID
+     * @param nanos Time from {@link java.lang.System#nanoTime()}
+     * @param out Data bytes A, B, C, D in order
+     * @param ofs Offset into out
+     * @return Number of data bytes, or negative one for unsupported
+     */
+    public int read(int ecu, int pid, long nanos, byte[] out, int ofs){
+        if (!this.isSupported(ecu,pid))
+            return -1;
+        else if (0 == (pid & 0x1F) && pid < 0xE0){
+            int[] list = (ENGINE == ecu)?(ENGINE_PIDS):(TRANSMISSION_PIDS);
+            int bits = 0;
+            for (int p : list){
+                if (p > pid && p <= pid+0x20)
+                    bits |= (1 << (0x20-(p-pid)));
+                else if (p > pid+0x20)
+                    bits |= 1;
+            }
+            return put4(bits,out,ofs);
+        }
+        else {
+            final double t = (nanos-this.start)/1e9;
+            final double rpm = this.rpm(nanos);
+            final double speed = this.speed(nanos);
+            final double load = Math.min(100.0,15.0+(rpm-800.0)/40.0+speed/10.0);
+            switch(pid){
+            case 0x01:{
+                int[] dtcs = this.getDtcs(ecu);
+                int a = Math.min(0x7F,dtcs.length);
+                if (0 < a && ENGINE == ecu)
+                    a |= 0x80;
+                out[ofs] = (byte)a;
+                out[ofs+1] = (byte)0x07;
+                out[ofs+2] = (byte)0xE5;
+                out[ofs+3] = (byte)0x00;
+                return 4;
+            }
+            case 0x04:
+                return put1((int)Math.round(load*255.0/100.0),out,ofs);
+            case 0x05:
+                return put1((int)Math.round(this.warm(t,20.0,90.0,240.0))+40,out,ofs);
+            case 0x0B:
+                return put1((int)Math.round(25.0+load*0.75),out,ofs);
+            case 0x0C:
+                return put2((int)Math.round(rpm*4.0),out,ofs);
+            case 0x0D:
+                return put1((int)Math.round(speed),out,ofs);
+            case 0x0F:
+                return put1((int)Math.round(this.warm(t,20.0,35.0,600.0))+40,out,ofs);
+            case 0x10:
+                return put2((int)Math.round(rpm*load/4000.0*100.0),out,ofs);
+            case 0x11:
+                return put1((int)Math.round((5.0+load*0.8)*255.0/100.0),out,ofs);
+            case 0x1C:
+                return put1(0x01,out,ofs);
+            case 0x1F:
+                return put2((int)Math.min(0xFFFF,t),out,ofs);
+            case 0x2F:
+                return put1((int)Math.round(Math.max(5.0,80.0-t/120.0)*255.0/100.0),out,ofs);
+            case 0x33:
+                return put1(101,out,ofs);
+            case 0x42:
+                return put2((int)Math.round((rpm > 0.0)?(14100.0):(12600.0)),out,ofs);
+            case 0x46:
+                return put1(18+40,out,ofs);
+            case 0x5C:
+                return put1((int)Math.round(this.warm(t,20.0,105.0,420.0))+40,out,ofs);
+            default:
+                return -1;
+            }
+        }
+    }
+    public double rpm(long nanos){
+        return this.interpolate(nanos,1);
+    }
+    public double speed(long nanos){
+        return this.interpolate(nanos,2);
+    }
+    /**
+     * Linear ramp from the previous phase target to the current one.
+     */
+    private double interpolate(long nanos, int field){
+        final int[][] script = this.script;
+        long dt = (nanos-this.start) % this.cycle;
+        if (0L > dt)
+            dt += this.cycle;
+
+        int[] prev = script[script.length-1];
+        for (int[] phase : script){
+            long len = phase[0]*1000000000L;
+            if (dt < len){
+                double f = (double)dt/(double)len;
+                return prev[field]+(phase[field]-prev[field])*f;
+            }
+            else {
+                dt -= len;
+                prev = phase;
+            }
+        }
+        return prev[field];
+    }
+    /**
+     * First order approach from ambient to operating temperature.
+     */
+    private double warm(double t, double from, double to, double tau){
+        return to-(to-from)*Math.exp(-t/tau);
+    }
+
+    private static int put1(int a, byte[] out, int ofs){
+        out[ofs] = (byte)Math.max(0,Math.min(0xFF,a));
+        return 1;
+    }
+    private static int put2(int ab, byte[] out, int ofs){
+        ab = Math.max(0,Math.min(0xFFFF,ab));
+        out[ofs] = (byte)(ab >>> 8);
+        out[ofs+1] = (byte)ab;
+        return 2;
+    }
+    private static int put4(int abcd, byte[] out, int ofs){
+        out[ofs] = (byte)(abcd >>> 24);
+        out[ofs+1] = (byte)(abcd >>> 16);
+        out[ofs+2] = (byte)(abcd >>> 8);
+        out[ofs+3] = (byte)abcd;
+        return 4;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * Commands sent to the adapter one at a time before other traffic,
+ * each answer scanned through its prompt before the next command, as
+ * by {@link SessionInit} and {@link Discovery}.
+ */
+public interface Exchange {
+
+    /**
+     * Format the next command.
+     *
+     * @param out Destination with room for eight bytes
+     * @param ofs Offset into out
+     * @return Number of bytes written through the CR, or zero when
+     * complete or waiting for an answer
+     */
+    public int command(byte[] out, int ofs);
+    /**
+     * Scan the answer to the last command.
+     */
+    public void feed(byte[] buf, int ofs, int len);
+
+    public boolean isComplete();
+}
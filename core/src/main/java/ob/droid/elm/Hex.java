@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * ASCII hex tables for the adapter's byte oriented text.
+ */
+public final class Hex
+    extends Object
+{
+    /**
+     * Upper case digits by value.
+     */
+    public final static byte[] Upper = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    /**
+     * Digit values by ASCII code, negative one for non digits.
+     */
+    private final static byte[] Value = new byte[0x100];
+    static {
+        for (int cc = 0; cc < 0x100; cc++){
+            Value[cc] = -1;
+        }
+        for (int cc = 0; cc < 10; cc++){
+            Value['0'+cc] = (byte)cc;
+        }
+        for (int cc = 0; cc < 6; cc++){
+            Value['A'+cc] = (byte)(10+cc);
+            Value['a'+cc] = (byte)(10+cc);
+        }
+    }
+
+
+    /**
+     * @param b ASCII byte
+     * @return Digit value, or negative one
+     */
+    public static int value(byte b){
+        return Value[b & 0xFF];
+    }
+
+    private Hex(){
+        super();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * Reassembles ISO 15765-2 payloads from tokenized adapter lines, as
+ * the lines arrive.
+ *
+ * With headers on, each line is a CAN frame whose first byte is the
+ * protocol control information: single, first, consecutive or flow
+ * control frame.  Payloads are assembled per header in a fixed set of
+ * slots, so that answers from several ECUs may interleave.  With
+ * headers off, the adapter has already stripped the control bytes,
+ * printing a length line followed by numbered lines, and only one
+ * answer is assembled at a time.
+ *
+ * Slot buffers are allocated once, at construction.  A payload that
+ * stops arriving is dropped at the prompt, after which the adapter
+ * prints nothing more for the request, or, in monitoring without a
+ * prompt, once it has been idle for the timeout.
+ */
+public class IsoTpReassembler
+    extends Object
+    implements ResponseTokenizer.Handler
+{
+    /**
+     * Receiver of whole payloads.
+     */
+    public interface Sink {
+        /**
+         * @param header CAN identifier, or negative one with headers
+         * off
+         * @param data Buffer holding the payload, valid only for the
+         * duration of the call
+         * @param ofs Offset of the service byte in data
+         * @param len Payload length
+         */
+        public void payload(int header, byte[] data, int ofs, int len);
+    }
+
+    /**
+     * Largest ISO-TP payload.
+     */
+    public final static int MAX_PAYLOAD = 0xFFF;
+    /**
+     * Default number of ECUs assembling concurrently.
+     */
+    public final static int SLOTS = 8;
+    /**
+     * ISO 15765-2 N_Cr, the longest wait for a consecutive frame.
+     */
+    public final static long TIMEOUT = 1000000000L;
+
+    private final static int SINGLE = 0x0, FIRST = 0x1, CONSECUTIVE = 0x2;
+
+    private final static int FREE = Integer.MIN_VALUE;
+
+
+    private final Sink sink;
+
+    private final int[] header;
+
+    private final byte[][] buffer;
+
+    private final int[] expected, received, sequence;
+
+    private final long[] time;
+
+    private long timeout = TIMEOUT;
+
+    private long payloads, dropped;
+
+
+    public IsoTpReassembler(Sink sink){
+        this(sink,SLOTS);
+    }
+    /**
+     * @param sink Receiver of payloads
+     * @param slots Number of payloads to assemble concurrently
+     */
+    public IsoTpReassembler(Sink sink, int slots){
+        super();
+        if (null == sink)
+            throw new IllegalArgumentException();
+        else if (1 > slots)
+            throw new IllegalArgumentException(String.valueOf(slots));
+        else {
+            this.sink = sink;
+            this.header = new int[slots];
+            this.buffer = new byte[slots][MAX_PAYLOAD];
+            this.expected = new int[slots];
+            this.received = new int[slots];
+            this.sequence = new int[slots];
+            this.time = new long[slots];
+            for (int cc = 0; cc < slots; cc++){
+                this.header[cc] = FREE;
+            }
+        }
+    }
+
+
+    public long getTimeout(){
+        return this.timeout;
+    }
+    /**
+     * @param timeout Nanoseconds a partial payload may wait for its
+     * next frame
+     */
+    public void setTimeout(long timeout){
+        if (0L >= timeout)
+            throw new IllegalArgumentException(String.valueOf(timeout));
+        else
+            this.timeout = timeout;
+    }
+    /**
+     * @return Number of payloads delivered
+     */
+    public long getPayloads(){
+        return this.payloads;
+    }
+    /**
+     * @return Number of partial payloads dropped for a sequence
+     * error, a timeout, a full table or a prompt
+     */
+    public long getDropped(){
+        return this.dropped;
+    }
+    /**
+     * @return Number of payloads in progress
+     */
+    public int getPending(){
+        int count = 0;
+        for (int cc = 0; cc < this.header.length; cc++){
+            if (FREE != this.header[cc])
+                count += 1;
+        }
+        return count;
+    }
+    /**
+     * Drop every partial payload.
+     */
+    public void reset(){
+        for (int cc = 0; cc < this.header.length; cc++){
+            this.free(cc,true);
+        }
+    }
+    /**
+     * Drop partial payloads idle for longer than the timeout.
+     *
+     * @param now Time from {@link java.lang.System#nanoTime()}
+     */
+    public void expire(long now){
+        for (int cc = 0; cc < this.header.length; cc++){
+            if (FREE != this.header[cc] && (now-this.time[cc]) > this.timeout)
+                this.free(cc,true);
+        }
+    }
+
+    public void frame(int header, int index, byte[] data, int len){
+        if (-1 < header){
+            if (0 < len){
+                final int pci = (data[0] & 0xFF);
+                switch(pci >>> 4){
+                case SINGLE:{
+                    int size = (pci & 0xF);
+                    if (0 < size && size < len)
+                        this.deliver(header,data,1,size);
+                    break;
+                }
+                case FIRST:
+                    if (2 < len){
+                        int size = ((pci & 0xF) << 8)|(data[1] & 0xFF);
+                        /*
+                         * The first frame is number zero
+                         */
+                        int slot = this.open(header,size);
+                        this.append(slot,data,2,len-2);
+                    }
+                    break;
+                case CONSECUTIVE:{
+                    int slot = this.slot(header);
+                    if (-1 < slot){
+                        if ((pci & 0xF) == this.sequence[slot])
+                            this.append(slot,data,1,len-1);
+                        else
+                            this.free(slot,true);
+                    }
+                    break;
+                }
+                default:
+                    /*
+                     * Flow control is the adapter's business
+                     */
+                    break;
+                }
+            }
+        }
+        else if (-1 < index){
+            int slot = this.slot(header);
+            if (-1 < slot){
+                if (index == this.sequence[slot])
+                    this.append(slot,data,0,len);
+                else
+                    this.free(slot,true);
+            }
+        }
+        else
+            this.deliver(header,data,0,len);
+    }
+    public void length(int length){
+        this.open(-1,length);
+    }
+    public void text(byte[] line, int len){
+    }
+    public void prompt(){
+        this.reset();
+    }
+
+    private int slot(int header){
+        for (int cc = 0; cc < this.header.length; cc++){
+            if (header == this.header[cc])
+                return cc;
+        }
+        return -1;
+    }
+    /**
+     * Start a payload, replacing one in progress from the same header,
+     * or else taking a free slot, or else the least recently active.
+     */
+    private int open(int header, int size){
+        long now = System.nanoTime();
+        int slot = this.slot(header);
+        if (-1 < slot)
+            this.free(slot,true);
+        else {
+            this.expire(now);
+            long oldest = Long.MAX_VALUE;
+            for (int cc = 0; cc < this.header.length; cc++){
+                if (FREE == this.header[cc]){
+                    slot = cc;
+                    break;
+                }
+                else if (this.time[cc] < oldest){
+                    oldest = this.time[cc];
+                    slot = cc;
+                }
+            }
+            if (FREE != this.header[slot])
+                this.free(slot,true);
+        }
+        this.header[slot] = header;
+        this.expected[slot] = Math.min(MAX_PAYLOAD,size);
+        this.received[slot] = 0;
+        this.sequence[slot] = 0;
+        this.time[slot] = now;
+        return slot;
+    }
+    private void append(int slot, byte[] data, int ofs, int len){
+        int take = Math.min(len,this.expected[slot]-this.received[slot]);
+        if (0 < take){
+            System.arraycopy(data,ofs,this.buffer[slot],this.received[slot],take);
+            this.received[slot] += take;
+        }
+        if (this.received[slot] == this.expected[slot]){
+            int header = this.header[slot];
+            this.free(slot,false);
+            this.deliver(header,this.buffer[slot],0,this.expected[slot]);
+        }
+        else {
+            this.sequence[slot] = (this.sequence[slot]+1) & 0xF;
+            this.time[slot] = System.nanoTime();
+        }
+    }
+    private void deliver(int header, byte[] data, int ofs, int len){
+        this.payloads += 1;
+        this.sink.payload(header,data,ofs,len);
+    }
+    private void free(int slot, boolean drop){
+        if (FREE != this.header[slot]){
+            this.header[slot] = FREE;
+            if (drop)
+                this.dropped += 1;
+        }
+    }
+}
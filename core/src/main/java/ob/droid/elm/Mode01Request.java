@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.obd.Pids;
+
+/**
+ * A reusable mode 01 request for up to six PIDs, formatted in place
+ * as the adapter command line "010C0D05\r".  A PID of unknown length
+ * can only be split from a response when it comes last, so a request
+ * holds at most one, and keeps it last.
+ *
+ * {@link #pack} spreads a subscription list over as few requests as
+ * possible.
+ */
+public class Mode01Request
+    extends Object
+{
+
+    private final int[] pids = new int[Pids.MAX_PER_REQUEST];
+
+    private final int max;
+
+    private final byte[] line = new byte[2+2*Pids.MAX_PER_REQUEST+2];
+
+    private int count, length, responses;
+
+    private boolean unknown;
+
+
+    public Mode01Request(){
+        this(Pids.MAX_PER_REQUEST);
+    }
+    /**
+     * @param max PIDs per request, one for adapters or vehicles that
+     * do not accept multi-PID requests
+     */
+    public Mode01Request(int max){
+        super();
+        if (1 > max || Pids.MAX_PER_REQUEST < max)
+            throw new IllegalArgumentException(String.valueOf(max));
+        else
+            this.max = max;
+    }
+
+
+    public void clear(){
+        this.count = 0;
+        this.length = 0;
+        this.unknown = false;
+    }
+    public int size(){
+        return this.count;
+    }
+    public boolean isEmpty(){
+        return (0 == this.count);
+    }
+    public boolean isFull(){
+        return (this.max == this.count);
+    }
+    public int getPid(int index){
+        if (-1 < index && index < this.count)
+            return this.pids[index];
+        else
+            throw new ArrayIndexOutOfBoundsException(index);
+    }
+    public boolean contains(int pid){
+        for (int cc = 0; cc < this.count; cc++){
+            if (pid == this.pids[cc])
+                return true;
+        }
+        return false;
+    }
+    /**
+     * @param pid Mode 01 PID
+     * @return False when the request is full, or when a second PID of
+     * unknown length would be added
+     */
+    public boolean add(int pid){
+        if (this.max == this.count)
+            return false;
+        else if (0 > Pids.length(pid)){
+            if (this.unknown)
+                return false;
+            else {
+                this.unknown = true;
+                this.pids[this.count++] = (pid & 0xFF);
+            }
+        }
+        else if (this.unknown){
+            /*
+             * Keep the unknown length PID last
+             */
+            this.pids[this.count] = this.pids[this.count-1];
+            this.pids[this.count-1] = (pid & 0xFF);
+            this.count += 1;
+        }
+        else {
+            this.pids[this.count++] = (pid & 0xFF);
+        }
+        this.length = 0;
+        return true;
+    }
+    /**
+     * @param responses Number of ECU responses to wait for, appended
+     * as the ELM327 count suffix.  Zero waits for the timeout.
+     */
+    public void setResponses(int responses){
+        if (0 > responses || 0xF < responses)
+            throw new IllegalArgumentException(String.valueOf(responses));
+        else {
+            this.responses = responses;
+            this.length = 0;
+        }
+    }
+    public int getResponses(){
+        return this.responses;
+    }
+    /**
+     * @return Command line bytes through the CR, valid to {@link
+     * #getLength()} until the next change
+     */
+    public byte[] getLine(){
+        if (0 == this.length)
+            this.format();
+        return this.line;
+    }
+    public int getLength(){
+        if (0 == this.length)
+            this.format();
+        return this.length;
+    }
+    /**
+     * @param out Destination
+     * @param ofs Offset into out
+     * @return Number of bytes written
+     */
+    public int copy(byte[] out, int ofs){
+        int len = this.getLength();
+        System.arraycopy(this.line,0,out,ofs,len);
+        return len;
+    }
+    private void format(){
+        final byte[] line = this.line;
+        int ofs = 0;
+        line[ofs++] = '0';
+        line[ofs++] = '1';
+        for (int cc = 0; cc < this.count; cc++){
+            int pid = this.pids[cc];
+            line[ofs++] = Hex.Upper[pid >>> 4];
+            line[ofs++] = Hex.Upper[pid & 0xF];
+        }
+        if (0 < this.responses)
+            line[ofs++] = Hex.Upper[this.responses];
+        line[ofs++] = '\r';
+        this.length = ofs;
+    }
+
+    /**
+     * Pack PIDs into requests, placing each in the first request with
+     * room for it.
+     *
+     * @param pids Subscribed PIDs
+     * @param count Number of PIDs in the array
+     * @param into Requests to fill, cleared first
+     * @return Number of requests used
+     */
+    public static int pack(int[] pids, int count, Mode01Request[] into){
+        int used = 0;
+        for (int cc = 0; cc < into.length; cc++){
+            into[cc].clear();
+        }
+        for (int cc = 0; cc < count; cc++){
+            int pid = pids[cc];
+            boolean placed = false;
+            for (int rr = 0; rr < used; rr++){
+                if (into[rr].add(pid)){
+                    placed = true;
+                    break;
+                }
+            }
+            if (!placed){
+                if (used < into.length && into[used].add(pid))
+                    used += 1;
+                else
+                    throw new IllegalArgumentException("Too few requests for "+count+" PIDs");
+            }
+        }
+        return used;
+    }
+}
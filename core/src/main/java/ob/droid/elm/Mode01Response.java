@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.obd.Pids;
+
+/**
+ * Splits mode 01 responses into per-PID samples without creating
+ * objects.  The samples are handed to a {@link Mode01Response.Sink}
+ * as ranges of this parser's own buffers, which are valid only for
+ * the duration of the call.
+ *
+ * The adapter text is scanned by a {@link ResponseTokenizer} and
+ * multi-frame answers are put together by an {@link IsoTpReassembler},
+ * with headers off or on, spaces on or off.  Echo, status and error
+ * lines are passed over.
+ */
+public class Mode01Response
+    extends Object
+    implements IsoTpReassembler.Sink
+{
+    /**
+     * Receiver of split samples.
+     */
+    public interface Sink {
+        /**
+         * @param pid Mode 01 PID
+         * @param data Buffer holding the data bytes A, B, C, ...
+         * @param ofs Offset of A in data
+         * @param len Number of data bytes
+         */
+        public void sample(int pid, byte[] data, int ofs, int len);
+    }
+
+    private final static byte[] CR = {'\r'};
+
+
+    private final IsoTpReassembler reassembler = new IsoTpReassembler(this);
+
+    private final ResponseTokenizer tokenizer = new ResponseTokenizer(this.reassembler);
+
+    private Sink sink;
+
+    private int samples;
+
+
+    public Mode01Response(){
+        super();
+    }
+    public Mode01Response(Sink sink){
+        super();
+        this.sink = sink;
+    }
+
+
+    public Sink getSink(){
+        return this.sink;
+    }
+    public void setSink(Sink sink){
+        this.sink = sink;
+    }
+    public ResponseTokenizer getTokenizer(){
+        return this.tokenizer;
+    }
+    public IsoTpReassembler getReassembler(){
+        return this.reassembler;
+    }
+    /**
+     * Forget a multi-frame answer in progress.
+     */
+    public void reset(){
+        this.tokenizer.reset();
+        this.reassembler.reset();
+    }
+    /**
+     * Scan adapter output as it arrives.  Samples are delivered to the
+     * sink as the lines holding them end.
+     */
+    public void feed(byte[] buf, int ofs, int len){
+        this.tokenizer.feed(buf,ofs,len);
+    }
+    /**
+     * Parse response text.  Lines are taken whole, so pass a complete
+     * response, up to the prompt.
+     *
+     * @return Number of samples delivered
+     */
+    public int parse(byte[] buf, int ofs, int len, Sink sink){
+        this.sink = sink;
+        this.samples = 0;
+        this.reset();
+        this.tokenizer.feed(buf,ofs,len);
+        this.tokenizer.feed(CR,0,1);
+        return this.samples;
+    }
+
+    public void payload(int header, byte[] data, int ofs, int len){
+        if (null != this.sink)
+            this.samples += split(data,ofs,len,this.sink);
+    }
+
+    /**
+     * Split a mode 01 payload, "41" followed by PID and data groups.
+     * A PID of unknown length is accepted only in last place, where it
+     * takes the remainder.
+     *
+     * @return Number of samples delivered
+     */
+    public static int split(byte[] payload, int ofs, int len, Sink sink){
+        final int end = ofs+len;
+        if (2 > len || 0x41 != payload[ofs])
+            return 0;
+        else {
+            int samples = 0;
+            int cc = ofs+1;
+            while (cc < end){
+                int pid = (payload[cc] & 0xFF);
+                int data = Pids.length(pid);
+                if (0 > data)
+                    data = end-(cc+1);
+                if (0 == data || cc+1+data > end)
+                    break;
+                else {
+                    sink.sample(pid,payload,cc+1,data);
+                    samples += 1;
+                    cc += 1+data;
+                }
+            }
+            return samples;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.data.LatencyStats;
+import ob.droid.obd.Pids;
+
+/**
+ * Mode 01 polling plan for the one half-duplex adapter link.
+ *
+ * Each subscribed PID has a target rate and a priority.  A PID falls
+ * due one period after its last request was sent.  When the link is
+ * free, {@link #next} fills a request with due PIDs, highest priority
+ * first and earliest deadline first within a priority, and tops it up
+ * with PIDs that will fall due before the request can return.  At
+ * most one request is outstanding: nothing more is issued until
+ * {@link #complete}.
+ *
+ * When demand exceeds the link, low priority PIDs are the ones that
+ * slow down.  Achieved rates are tracked per PID for comparison with
+ * the requested ones.
+ */
+public class PollScheduler
+    extends Object
+{
+    public final static int MAX_PIDS = 64;
+
+    /**
+     * Time returned by {@link #next} when there is nothing to wait
+     * for.
+     */
+    public final static long IDLE = Long.MAX_VALUE;
+
+    private final static double NS = 1e9;
+
+    /**
+     * Smoothing of intervals and round trips.
+     */
+    private final static double ALPHA = 0.2;
+
+
+    private final int[] pid = new int[MAX_PIDS];
+
+    private final long[] period = new long[MAX_PIDS];
+
+    private final int[] priority = new int[MAX_PIDS];
+
+    private final long[] deadline = new long[MAX_PIDS];
+
+    private final long[] last = new long[MAX_PIDS];
+
+    private final double[] interval = new double[MAX_PIDS];
+
+    private final long[] samples = new long[MAX_PIDS];
+
+    private final boolean[] picked = new boolean[MAX_PIDS];
+
+    private int count;
+
+    private boolean busy;
+
+    private long sent;
+
+    private double roundTrip;
+
+    private long requests, busyTime, origin;
+
+    private LatencyStats stats;
+
+    private final int[] issued = new int[Pids.MAX_PER_REQUEST];
+
+
+    public PollScheduler(){
+        super();
+    }
+
+
+    /**
+     * Add or update a PID.
+     *
+     * @param pid Mode 01 PID
+     * @param hz Target rate, greater than zero
+     * @param priority Greater for more important
+     */
+    public void subscribe(int pid, double hz, int priority){
+        if (!(0.0 < hz))
+            throw new IllegalArgumentException(String.valueOf(hz));
+        else {
+            pid &= 0xFF;
+            int slot = this.slot(pid);
+            if (0 > slot){
+                if (MAX_PIDS == this.count)
+                    throw new IllegalStateException("Too many PIDs");
+                else {
+                    slot = this.count++;
+                    this.pid[slot] = pid;
+                    this.deadline[slot] = 0L;
+                    this.last[slot] = 0L;
+                    this.interval[slot] = 0.0;
+                    this.samples[slot] = 0L;
+                }
+            }
+            this.period[slot] = Math.max(1L,(long)(NS/hz));
+            this.priority[slot] = priority;
+        }
+    }
+    public void unsubscribe(int pid){
+        int slot = this.slot(pid & 0xFF);
+        if (-1 < slot){
+            int end = --this.count;
+            if (slot != end){
+                this.pid[slot] = this.pid[end];
+                this.period[slot] = this.period[end];
+                this.priority[slot] = this.priority[end];
+                this.deadline[slot] = this.deadline[end];
+                this.last[slot] = this.last[end];
+                this.interval[slot] = this.interval[end];
+                this.samples[slot] = this.samples[end];
+            }
+        }
+    }
+    public int size(){
+        return this.count;
+    }
+    /**
+     * @param stats Told of each request issued, or null
+     */
+    public void setStats(LatencyStats stats){
+        this.stats = stats;
+    }
+    public int getPid(int index){
+        return this.pid[index];
+    }
+    public boolean isBusy(){
+        return this.busy;
+    }
+    /**
+     * Fill the request when the link is free and something is due.
+     *
+     * @param now Time from {@link java.lang.System#nanoTime()}
+     * @param request Cleared and filled when this returns zero
+     * @return Zero when the request has been filled and the link is
+     * now busy, nanoseconds until the next deadline when nothing is
+     * due, or {@link #IDLE} when busy or without subscriptions
+     */
+    public long next(long now, Mode01Request request){
+        if (this.busy || 0 == this.count)
+            return IDLE;
+        else {
+            final int count = this.count;
+            long earliest = IDLE;
+            for (int cc = 0; cc < count; cc++){
+                this.picked[cc] = false;
+                earliest = Math.min(earliest,this.deadline[cc]);
+            }
+            if (earliest > now)
+                return (earliest-now);
+            else {
+                request.clear();
+                /*
+                 * Due PIDs by priority then deadline
+                 */
+                while (!request.isFull()){
+                    int best = -1;
+                    for (int cc = 0; cc < count; cc++){
+                        if ((!this.picked[cc]) && this.deadline[cc] <= now){
+                            if (0 > best
+                                || this.priority[cc] > this.priority[best]
+                                || (this.priority[cc] == this.priority[best]
+                                    && this.deadline[cc] < this.deadline[best]))
+                            {
+                                best = cc;
+                            }
+                        }
+                    }
+                    if (0 > best)
+                        break;
+                    else {
+                        this.picked[best] = true;
+                        request.add(this.pid[best]);
+                    }
+                }
+                /*
+                 * Top up with PIDs falling due within a round trip
+                 */
+                final long horizon = now+(long)this.roundTrip;
+                while (!request.isFull()){
+                    int best = -1;
+                    for (int cc = 0; cc < count; cc++){
+                        if ((!this.picked[cc]) && this.deadline[cc] <= horizon){
+                            if (0 > best || this.deadline[cc] < this.deadline[best])
+                                best = cc;
+                        }
+                    }
+                    if (0 > best)
+                        break;
+                    else {
+                        this.picked[best] = true;
+                        request.add(this.pid[best]);
+                    }
+                }
+                /*
+                 * The next deadline runs from this send
+                 */
+                for (int cc = 0, size = request.size(); cc < size; cc++){
+                    int slot = this.slot(request.getPid(cc));
+                    this.deadline[slot] = now+this.period[slot];
+                }
+                if (0L == this.origin)
+                    this.origin = now;
+                this.busy = true;
+                this.sent = now;
+                this.requests += 1;
+                if (null != this.stats){
+                    int size = request.size();
+                    for (int cc = 0; cc < size; cc++){
+                        this.issued[cc] = request.getPid(cc);
+                    }
+                    this.stats.begin(now,this.issued,size);
+                }
+                return 0L;
+            }
+        }
+    }
+    /**
+     * The outstanding request has been answered, or has failed.
+     *
+     * @param now Time the prompt was received
+     * @param request The request from {@link #next}
+     * @param answered PIDs answered, indexed as in the request.  Null
+     * when every PID was answered.
+     */
+    public void complete(long now, Mode01Request request, boolean[] answered){
+        if (this.busy){
+            this.busy = false;
+            long rtt = now-this.sent;
+            this.busyTime += rtt;
+            if (0.0 == this.roundTrip)
+                this.roundTrip = rtt;
+            else
+                this.roundTrip += ALPHA*(rtt-this.roundTrip);
+
+            for (int cc = 0, size = request.size(); cc < size; cc++){
+                if (null == answered || answered[cc]){
+                    int slot = this.slot(request.getPid(cc));
+                    if (-1 < slot){
+                        long prev = this.last[slot];
+                        if (0L != prev){
+                            double dt = (now-prev);
+                            if (0.0 == this.interval[slot])
+                                this.interval[slot] = dt;
+                            else
+                                this.interval[slot] += ALPHA*(dt-this.interval[slot]);
+                        }
+                        this.last[slot] = now;
+                        this.samples[slot] += 1;
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * @return Requested rate in Hz, or zero when not subscribed
+     */
+    public double getRequestedRate(int pid){
+        int slot = this.slot(pid & 0xFF);
+        if (-1 < slot)
+            return NS/this.period[slot];
+        else
+            return 0.0;
+    }
+    /**
+     * @param now Current time, so that a PID that has stopped
+     * answering decays toward zero
+     * @return Achieved rate in Hz
+     */
+    public double getAchievedRate(int pid, long now){
+        int slot = this.slot(pid & 0xFF);
+        if (-1 < slot && 0.0 < this.interval[slot]){
+            double interval = Math.max(this.interval[slot],(now-this.last[slot]));
+            return NS/interval;
+        }
+        else
+            return 0.0;
+    }
+    public long getSamples(int pid){
+        int slot = this.slot(pid & 0xFF);
+        if (-1 < slot)
+            return this.samples[slot];
+        else
+            return 0L;
+    }
+    /**
+     * @return Smoothed request round trip in nanoseconds
+     */
+    public double getRoundTrip(){
+        return this.roundTrip;
+    }
+    /**
+     * @return Number of requests issued
+     */
+    public long getRequests(){
+        return this.requests;
+    }
+    /**
+     * @return Fraction of time since the first request that the link
+     * has been busy
+     */
+    public double getUtilization(long now){
+        long span = now-this.origin;
+        if (0L == this.origin || 0L >= span)
+            return 0.0;
+        else {
+            long busy = this.busyTime;
+            if (this.busy)
+                busy += (now-this.sent);
+            return Math.min(1.0,(double)busy/(double)span);
+        }
+    }
+    /**
+     * Achieved against requested rates, one PID per line.
+     */
+    public String report(long now){
+        StringBuilder string = new StringBuilder();
+        for (int cc = 0; cc < this.count; cc++){
+            int pid = this.pid[cc];
+            string.append(Integer.toHexString(0x100|pid).substring(1).toUpperCase());
+            string.append(" p").append(this.priority[cc]);
+            string.append(' ').append(Math.round(this.getAchievedRate(pid,now)*100.0)/100.0);
+            string.append('/').append(Math.round(this.getRequestedRate(pid)*100.0)/100.0);
+            string.append(" Hz\n");
+        }
+        return string.toString();
+    }
+    private int slot(int pid){
+        for (int cc = 0; cc < this.count; cc++){
+            if (pid == this.pid[cc])
+                return cc;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Vehicle profiles saved as one properties file per VIN in a
+ * directory, for example the application's files directory.
+ *
+ * The VIN can only be read once the protocol is known, so the cache
+ * also names the last vehicle stored.  A connection warm starts from
+ * that profile, and {@link Discovery} falls back to a cold start when
+ * the vehicle does not answer as recorded.
+ */
+public class ProfileCache
+    extends Object
+{
+    private final static String SUFFIX = ".properties";
+
+    private final static String LAST = "last";
+
+
+    private final File dir;
+
+
+    public ProfileCache(File dir){
+        super();
+        if (null == dir)
+            throw new IllegalArgumentException();
+        else
+            this.dir = dir;
+    }
+
+
+    /**
+     * @return Profile, or null when missing or unreadable
+     */
+    public VehicleProfile load(String vin){
+        File file = this.file(vin);
+        if (null == file || !file.isFile())
+            return null;
+        else {
+            try {
+                return VehicleProfile.fromProperties(read(file));
+            }
+            catch (IOException exc){
+                return null;
+            }
+            catch (IllegalArgumentException exc){
+                return null;
+            }
+        }
+    }
+    /**
+     * @return Profile of the last vehicle stored, or null
+     */
+    public VehicleProfile last(){
+        File file = new File(this.dir,LAST+SUFFIX);
+        if (file.isFile()){
+            try {
+                return this.load(read(file).getProperty("vin"));
+            }
+            catch (IOException exc){
+                return null;
+            }
+        }
+        else
+            return null;
+    }
+    /**
+     * Save a profile and name it as the last vehicle.  Files are
+     * replaced by rename, so a failed write leaves the previous one.
+     *
+     * @exception java.lang.IllegalArgumentException Profile without
+     * a valid VIN
+     */
+    public void store(VehicleProfile profile)
+        throws IOException
+    {
+        File file = this.file(profile.getVin());
+        if (null == file)
+            throw new IllegalArgumentException(String.valueOf(profile.getVin()));
+        else {
+            if (!this.dir.isDirectory() && !this.dir.mkdirs())
+                throw new IOException(this.dir.getPath());
+            else {
+                write(profile.toProperties(),file);
+                Properties last = new Properties();
+                last.setProperty("vin",profile.getVin());
+                write(last,new File(this.dir,LAST+SUFFIX));
+            }
+        }
+    }
+    public boolean remove(String vin){
+        File file = this.file(vin);
+        return (null != file && file.delete());
+    }
+
+    /**
+     * @return File for a VIN of letters and digits, otherwise null
+     */
+    private File file(String vin){
+        if (null == vin || 0 == vin.length() || 17 < vin.length())
+            return null;
+        else {
+            for (int cc = 0, len = vin.length(); cc < len; cc++){
+                char ch = vin.charAt(cc);
+                if (!(('0' <= ch && '9' >= ch) || ('A' <= ch && 'Z' >= ch)))
+                    return null;
+            }
+            return new File(this.dir,vin+SUFFIX);
+        }
+    }
+    private static Properties read(File file)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            Properties properties = new Properties();
+            properties.load(in);
+            return properties;
+        }
+        finally {
+            in.close();
+        }
+    }
+    private static void write(Properties properties, File file)
+        throws IOException
+    {
+        File temp = new File(file.getPath()+".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out,null);
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)){
+            temp.delete();
+            throw new IOException(file.getPath());
+        }
+    }
+}
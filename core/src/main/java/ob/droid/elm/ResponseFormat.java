@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * The adapter's output settings: echo (ATE), linefeeds (ATL), spaces
+ * (ATS), headers (ATH) and CAN auto formatting (ATCAF).
+ *
+ * The adapter defaults print every command back and pad every byte
+ * with a space, about doubling the bytes on the serial link.  The
+ * compact format turns all of that off.
+ */
+public class ResponseFormat
+    extends Object
+{
+
+    private boolean echo, linefeeds, spaces, headers, caf;
+
+    private int headerDigits;
+
+    private final byte[] command = new byte[8];
+
+
+    /**
+     * Adapter defaults, as after ATZ or ATD.
+     */
+    public ResponseFormat(){
+        super();
+        this.defaults();
+    }
+    public ResponseFormat(ResponseFormat copy){
+        super();
+        this.copy(copy);
+    }
+
+
+    /**
+     * @return Echo, linefeeds and spaces off, headers off and CAN auto
+     * formatting on
+     */
+    public static ResponseFormat compact(){
+        ResponseFormat format = new ResponseFormat();
+        format.echo = false;
+        format.linefeeds = false;
+        format.spaces = false;
+        return format;
+    }
+
+    public void defaults(){
+        this.echo = true;
+        this.linefeeds = true;
+        this.spaces = true;
+        this.headers = false;
+        this.caf = true;
+        this.headerDigits = 3;
+    }
+    public void copy(ResponseFormat copy){
+        this.echo = copy.echo;
+        this.linefeeds = copy.linefeeds;
+        this.spaces = copy.spaces;
+        this.headers = copy.headers;
+        this.caf = copy.caf;
+        this.headerDigits = copy.headerDigits;
+    }
+    public boolean isEcho(){
+        return this.echo;
+    }
+    public void setEcho(boolean echo){
+        this.echo = echo;
+    }
+    public boolean isLinefeeds(){
+        return this.linefeeds;
+    }
+    public void setLinefeeds(boolean linefeeds){
+        this.linefeeds = linefeeds;
+    }
+    public boolean isSpaces(){
+        return this.spaces;
+    }
+    public void setSpaces(boolean spaces){
+        this.spaces = spaces;
+    }
+    public boolean isHeaders(){
+        return this.headers;
+    }
+    public void setHeaders(boolean headers){
+        this.headers = headers;
+    }
+    public boolean isCaf(){
+        return this.caf;
+    }
+    public void setCaf(boolean caf){
+        this.caf = caf;
+    }
+    /**
+     * @return Header digits printed with headers on, three for 11 bit
+     * and eight for 29 bit CAN
+     */
+    public int getHeaderDigits(){
+        return this.headerDigits;
+    }
+    public void setHeaderDigits(int digits){
+        if (3 != digits && 8 != digits)
+            throw new IllegalArgumentException(String.valueOf(digits));
+        else
+            this.headerDigits = digits;
+    }
+    /**
+     * Configure a tokenizer for this format.
+     */
+    public void apply(ResponseTokenizer tokenizer){
+        tokenizer.setEcho(this.echo);
+        tokenizer.setHeaderDigits(this.headers?this.headerDigits:0);
+    }
+    /**
+     * Follow a command line sent to the adapter, as typed by the user.
+     *
+     * @param line Command bytes, with or without the CR
+     * @return The command changed the format
+     */
+    public boolean observe(byte[] line, int ofs, int len){
+        /*
+         * The adapter ignores spaces and case
+         */
+        final byte[] cmd = this.command;
+        int count = 0;
+        for (int cc = ofs, end = ofs+len; cc < end; cc++){
+            byte b = line[cc];
+            if ('\r' == b)
+                break;
+            else if (' ' != b){
+                if (count == cmd.length)
+                    return false;
+                else if ('a' <= b && 'z' >= b)
+                    cmd[count++] = (byte)(b-('a'-'A'));
+                else
+                    cmd[count++] = b;
+            }
+        }
+        if (3 > count || 'A' != cmd[0] || 'T' != cmd[1])
+            return false;
+        else if ('Z' == cmd[2]
+                 || ('D' == cmd[2] && 3 == count)
+                 || (4 == count && 'W' == cmd[2] && 'S' == cmd[3]))
+        {
+            this.defaults();
+            return true;
+        }
+        else if (4 == count){
+            switch(cmd[2]){
+            case 'E':
+                return this.flag(0,cmd[3]);
+            case 'L':
+                return this.flag(1,cmd[3]);
+            case 'S':
+                return this.flag(2,cmd[3]);
+            case 'H':
+                return this.flag(3,cmd[3]);
+            default:
+                return false;
+            }
+        }
+        else if (6 == count && 'C' == cmd[2] && 'A' == cmd[3] && 'F' == cmd[4])
+            return this.flag(4,cmd[5]);
+        else
+            return false;
+    }
+    private boolean flag(int which, byte value){
+        boolean on;
+        if ('1' == value)
+            on = true;
+        else if ('0' == value)
+            on = false;
+        else
+            return false;
+
+        switch(which){
+        case 0:
+            this.echo = on;
+            break;
+        case 1:
+            this.linefeeds = on;
+            break;
+        case 2:
+            this.spaces = on;
+            break;
+        case 3:
+            this.headers = on;
+            break;
+        default:
+            this.caf = on;
+            break;
+        }
+        return true;
+    }
+    public boolean equals(Object that){
+        if (this == that)
+            return true;
+        else if (that instanceof ResponseFormat){
+            ResponseFormat format = (ResponseFormat)that;
+            return (this.echo == format.echo
+                    && this.linefeeds == format.linefeeds
+                    && this.spaces == format.spaces
+                    && this.headers == format.headers
+                    && this.caf == format.caf
+                    && this.headerDigits == format.headerDigits);
+        }
+        else
+            return false;
+    }
+    public int hashCode(){
+        int hash = this.headerDigits;
+        hash = (hash << 1)|(this.echo?1:0);
+        hash = (hash << 1)|(this.linefeeds?1:0);
+        hash = (hash << 1)|(this.spaces?1:0);
+        hash = (hash << 1)|(this.headers?1:0);
+        hash = (hash << 1)|(this.caf?1:0);
+        return hash;
+    }
+    public String toString(){
+        StringBuilder string = new StringBuilder();
+        string.append('E').append(this.echo?'1':'0');
+        string.append(" L").append(this.linefeeds?'1':'0');
+        string.append(" S").append(this.spaces?'1':'0');
+        string.append(" H").append(this.headers?'1':'0');
+        string.append(" CAF").append(this.caf?'1':'0');
+        return string.toString();
+    }
+}
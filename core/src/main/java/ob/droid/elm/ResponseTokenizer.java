@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * Streaming scanner for adapter output.  Bytes are fed in whatever
+ * chunks they arrive in, and scanned in place: hex pairs are decoded
+ * into one reusable frame buffer as they are seen, and each line is
+ * reported when its end is seen.  Nothing is allocated after
+ * construction.
+ *
+ * A line of hex is a frame, optionally preceded by a CAN header of
+ * three or eight digits when headers are on, or by a "n:" index when
+ * the adapter numbers the lines of a multi-frame answer.  A line of
+ * three digits with headers off is the length of such an answer.
+ * Anything else is text ("OK", "NO DATA", "SEARCHING...", the echo).
+ * The prompt ends the response.
+ *
+ * The handler's buffer arguments are valid only for the duration of
+ * the call.  The caller keeps its own bytes, so the same chunk can be
+ * fed here and appended to the terminal.
+ */
+public class ResponseTokenizer
+    extends Object
+{
+    /**
+     * Receiver of tokens.
+     */
+    public interface Handler {
+        /**
+         * @param header CAN identifier, or negative one with headers
+         * off
+         * @param index Line number of a multi-frame answer with
+         * headers off, otherwise negative one
+         * @param data Decoded bytes
+         * @param len Number of decoded bytes
+         */
+        public void frame(int header, int index, byte[] data, int len);
+        /**
+         * @param length Payload length of the multi-frame answer whose
+         * numbered lines follow
+         */
+        public void length(int length);
+        /**
+         * @param line Line bytes, without end of line
+         * @param len Number of line bytes, truncated to the line
+         * buffer
+         */
+        public void text(byte[] line, int len);
+        /**
+         * The adapter is ready for the next command.
+         */
+        public void prompt();
+    }
+
+    public final static int MAX_LINE = 0x100;
+
+
+    private final byte[] frame = new byte[MAX_LINE];
+
+    private final byte[] line = new byte[MAX_LINE];
+
+    private Handler handler;
+
+    private int headerDigits;
+
+    private boolean echo;
+
+    /*
+     * Line state
+     */
+    private int length, count, nibbles, hi, header, headerNibbles, index;
+
+    private boolean hex, first;
+
+
+    public ResponseTokenizer(Handler handler){
+        super();
+        this.handler = handler;
+        this.first = true;
+        this.clear();
+    }
+
+
+    public Handler getHandler(){
+        return this.handler;
+    }
+    public void setHandler(Handler handler){
+        this.handler = handler;
+    }
+    /**
+     * @param digits Zero for headers off, three for 11 bit and eight
+     * for 29 bit CAN identifiers
+     */
+    public void setHeaderDigits(int digits){
+        if (0 != digits && 3 != digits && 8 != digits)
+            throw new IllegalArgumentException(String.valueOf(digits));
+        else
+            this.headerDigits = digits;
+    }
+    public int getHeaderDigits(){
+        return this.headerDigits;
+    }
+    /**
+     * @param echo With echo on, the first line after each prompt is
+     * the command, and is reported as text
+     */
+    public void setEcho(boolean echo){
+        this.echo = echo;
+    }
+    public boolean isEcho(){
+        return this.echo;
+    }
+    /**
+     * Drop a partial line, as after a reset.
+     */
+    public void reset(){
+        this.first = true;
+        this.clear();
+    }
+    /**
+     * Scan bytes received from the adapter.
+     */
+    public void feed(byte[] buf, int ofs, int len){
+        final byte[] frame = this.frame;
+        final byte[] line = this.line;
+        final int headerDigits = this.headerDigits;
+        final int end = ofs+len;
+        for (int cc = ofs; cc < end; cc++){
+            if (this.hex && 0 == (this.nibbles & 1) && this.headerNibbles == headerDigits){
+                /*
+                 * Runs of hex pairs, the whole of a line with spaces
+                 * off
+                 */
+                int run = cc;
+                while (run+1 < end && this.count < MAX_LINE){
+                    int hi = Hex.value(buf[run]);
+                    int lo = Hex.value(buf[run+1]);
+                    if (0 > hi || 0 > lo)
+                        break;
+                    else {
+                        frame[this.count++] = (byte)((hi << 4)|lo);
+                        run += 2;
+                    }
+                }
+                if (run > cc){
+                    int n = (run-cc);
+                    int copy = Math.min(n,MAX_LINE-this.length);
+                    System.arraycopy(buf,cc,line,this.length,copy);
+                    this.length += copy;
+                    this.nibbles += n;
+                    cc = run-1;
+                    continue;
+                }
+            }
+            final byte b = buf[cc];
+            switch(b){
+            case '\r':
+            case '\n':
+                this.end();
+                break;
+            case '>':
+                this.end();
+                this.first = true;
+                if (null != this.handler)
+                    this.handler.prompt();
+                break;
+            case 0:
+                break;
+            default:
+                if (this.length < MAX_LINE)
+                    line[this.length++] = b;
+
+                if (this.hex){
+                    if (' ' == b){
+                    }
+                    else if (':' == b){
+                        if (1 == this.nibbles && 0 == this.count && -1 == this.index && 0 == headerDigits){
+                            this.index = this.hi;
+                            this.nibbles = 0;
+                        }
+                        else
+                            this.hex = false;
+                    }
+                    else {
+                        int v = Hex.value(b);
+                        if (0 > v)
+                            this.hex = false;
+                        else if (this.headerNibbles < headerDigits){
+                            this.header = (this.header << 4)|v;
+                            this.headerNibbles += 1;
+                        }
+                        else if (0 == (this.nibbles & 1)){
+                            this.hi = v;
+                            this.nibbles += 1;
+                        }
+                        else if (this.count < MAX_LINE){
+                            frame[this.count++] = (byte)((this.hi << 4)|v);
+                            this.nibbles += 1;
+                        }
+                        else
+                            this.hex = false;
+                    }
+                }
+                break;
+            }
+        }
+    }
+    /**
+     * End of line.
+     */
+    private void end(){
+        if (0 < this.length){
+            final Handler handler = this.handler;
+            if (null != handler){
+                if (this.first && this.echo)
+                    handler.text(this.line,this.length);
+                else if (this.hex && 0 == (this.nibbles & 1) && 0 < this.count){
+                    if (0 < this.headerDigits){
+                        if (this.headerNibbles == this.headerDigits)
+                            handler.frame(this.header,-1,this.frame,this.count);
+                        else
+                            handler.text(this.line,this.length);
+                    }
+                    else
+                        handler.frame(-1,this.index,this.frame,this.count);
+                }
+                else if (this.hex && 3 == this.nibbles && -1 == this.index && 0 == this.headerDigits)
+                    handler.length(((this.frame[0] & 0xFF) << 4)|this.hi);
+                else
+                    handler.text(this.line,this.length);
+            }
+            this.first = false;
+            this.clear();
+        }
+    }
+    private void clear(){
+        this.length = 0;
+        this.count = 0;
+        this.nibbles = 0;
+        this.hi = 0;
+        this.header = 0;
+        this.headerNibbles = 0;
+        this.index = -1;
+        this.hex = true;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * Session start: negotiates the response format with the adapter, one
+ * command at a time, and records the format in effect.
+ *
+ * Echo, linefeeds and spaces are always negotiated; headers and CAN
+ * auto formatting optionally, as some clones reject them.  A command
+ * takes effect when the adapter answers "OK", and is passed over when
+ * it answers "?".  Every command is sent, rather than only those that
+ * differ from the adapter defaults, as a previous session may have
+ * left the adapter in any state.
+ *
+ * The caller sends {@link #command} and feeds the answer to {@link
+ * #feed} until {@link #isComplete()}, then configures its parsers
+ * from {@link #getFormat()}.
+ */
+public class SessionInit
+    extends Object
+    implements Exchange,
+               ResponseTokenizer.Handler
+{
+    private final static int ECHO = 0, LINEFEEDS = 1, SPACES = 2, HEADERS = 3, CAF = 4;
+
+    private final static byte[][] NAME = {
+        {'A','T','E'},
+        {'A','T','L'},
+        {'A','T','S'},
+        {'A','T','H'},
+        {'A','T','C','A','F'}
+    };
+
+
+    private final ResponseFormat target;
+
+    private final ResponseFormat format = new ResponseFormat();
+
+    private final ResponseTokenizer tokenizer = new ResponseTokenizer(this);
+
+    private final int steps;
+
+    private int step, rejected;
+
+    private boolean sent, ok;
+
+
+    /**
+     * @param target Format wanted, commonly {@link
+     * ResponseFormat#compact()}
+     * @param headers Include ATH and ATCAF
+     */
+    public SessionInit(ResponseFormat target, boolean headers){
+        super();
+        if (null == target)
+            throw new IllegalArgumentException();
+        else {
+            this.target = target;
+            this.steps = (headers)?(CAF+1):(SPACES+1);
+            this.format.setHeaderDigits(target.getHeaderDigits());
+            this.format.apply(this.tokenizer);
+        }
+    }
+
+
+    public boolean isComplete(){
+        return (this.step >= this.steps);
+    }
+    /**
+     * @return Format in effect, as confirmed by the adapter
+     */
+    public ResponseFormat getFormat(){
+        return this.format;
+    }
+    /**
+     * @return Number of commands rejected by the adapter
+     */
+    public int getRejected(){
+        return this.rejected;
+    }
+    /**
+     * Format the next command, once per step.
+     *
+     * @param out Destination with room for eight bytes
+     * @param ofs Offset into out
+     * @return Number of bytes written through the CR, or zero when
+     * complete or waiting for an answer
+     */
+    public int command(byte[] out, int ofs){
+        if (this.sent || this.isComplete())
+            return 0;
+        else {
+            byte[] name = NAME[this.step];
+            System.arraycopy(name,0,out,ofs,name.length);
+            int end = ofs+name.length;
+            out[end++] = (byte)(this.wanted(this.step)?'1':'0');
+            out[end++] = '\r';
+            this.sent = true;
+            this.ok = false;
+            return (end-ofs);
+        }
+    }
+    /**
+     * Scan the answer to the last command.
+     */
+    public void feed(byte[] buf, int ofs, int len){
+        this.tokenizer.feed(buf,ofs,len);
+    }
+
+    public void frame(int header, int index, byte[] data, int len){
+    }
+    public void length(int length){
+    }
+    public void text(byte[] line, int len){
+        if (2 == len && 'O' == line[0] && 'K' == line[1])
+            this.ok = true;
+    }
+    public void prompt(){
+        if (this.sent){
+            this.sent = false;
+            if (this.ok){
+                boolean on = this.wanted(this.step);
+                switch(this.step){
+                case ECHO:
+                    this.format.setEcho(on);
+                    break;
+                case LINEFEEDS:
+                    this.format.setLinefeeds(on);
+                    break;
+                case SPACES:
+                    this.format.setSpaces(on);
+                    break;
+                case HEADERS:
+                    this.format.setHeaders(on);
+                    break;
+                default:
+                    this.format.setCaf(on);
+                    break;
+                }
+                this.format.apply(this.tokenizer);
+            }
+            else
+                this.rejected += 1;
+
+            this.step += 1;
+        }
+    }
+    private boolean wanted(int step){
+        switch(step){
+        case ECHO:
+            return this.target.isEcho();
+        case LINEFEEDS:
+            return this.target.isLinefeeds();
+        case SPACES:
+            return this.target.isSpaces();
+        case HEADERS:
+            return this.target.isHeaders();
+        default:
+            return this.target.isCaf();
+        }
+    }
+}
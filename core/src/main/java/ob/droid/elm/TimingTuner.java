@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+/**
+ * Adapter timing from measured ECU latency.
+ *
+ * At its defaults the adapter waits up to 200 ms (ST 32) for answers,
+ * and after the last answer waits again, shortened only by adaptive
+ * timing, in case another ECU answers.  When the ECUs answer in a few
+ * milliseconds most of each request is spent waiting.
+ *
+ * The adapter restarts its ST wait after each answer, so the wait
+ * that matters is the longest silence in a request: the time to the
+ * first answer, or between one answer and the next.  The tuner
+ * watches a number of requests at the current settings, recording the
+ * longest silence and the number of answers.  It then proposes the
+ * smallest ST that covers the longest silence with margin and, when
+ * the number of answers is steady, a response count suffix so that
+ * the adapter returns as soon as the last one is in.  A request that
+ * comes back short, with NO DATA or fewer answers than the suffix,
+ * doubles the timeout back toward the default, and repeated
+ * shortfalls drop the suffix.
+ *
+ * The tuner sends nothing.  The caller reports each request with
+ * {@link #sent}, {@link #received} and {@link #answered}, sends the
+ * commands from {@link #command} between requests, and applies {@link
+ * #getResponses()} to its requests.
+ */
+public class TimingTuner
+    extends Object
+{
+    /**
+     * Adapter default ST, in units of 4 ms.
+     */
+    public final static int DEFAULT_TIMEOUT = 0x32;
+    /**
+     * Adapter default adaptive timing.
+     */
+    public final static int DEFAULT_ADAPTIVE = 1;
+    /**
+     * Number of requests measured before tuning.
+     */
+    public final static int SAMPLES = 16;
+
+    private final static long MS = 1000000L;
+
+    private final static long UNIT = 4*MS;
+
+    /**
+     * Margin over the longest wait, as a ratio and a constant for
+     * scheduling jitter on the phone and adapter.
+     */
+    private final static double MARGIN = 1.5;
+
+    private final static long SLACK = 8*MS;
+
+    /**
+     * Shortfalls tolerated before the response count is dropped.
+     */
+    private final static int MISSES = 3;
+
+    private final static double ALPHA = 0.1;
+
+
+    private int timeout, adaptive, responses;
+
+    private boolean tuned, pendingTimeout, pendingAdaptive;
+
+    private int measured, answers, misses, backoffs;
+
+    private boolean steady;
+
+    private long sent, last, gap, slowest;
+
+    private double baseline, roundTrip;
+
+    private long baselineCount;
+
+
+    public TimingTuner(){
+        super();
+        this.reset();
+    }
+
+
+    /**
+     * Start over from the adapter defaults, as after a reset.
+     */
+    public void reset(){
+        this.timeout = DEFAULT_TIMEOUT;
+        this.adaptive = DEFAULT_ADAPTIVE;
+        this.responses = 0;
+        this.tuned = false;
+        this.pendingTimeout = false;
+        this.pendingAdaptive = false;
+        this.measured = 0;
+        this.answers = 0;
+        this.misses = 0;
+        this.backoffs = 0;
+        this.steady = true;
+        this.sent = 0L;
+        this.last = 0L;
+        this.gap = 0L;
+        this.slowest = 0L;
+        this.baseline = 0.0;
+        this.baselineCount = 0L;
+        this.roundTrip = 0.0;
+    }
+    /**
+     * Settings known from an earlier session.  Issues the corresponding
+     * commands and skips measurement.
+     *
+     * @param timeout ST in units of 4 ms
+     * @param adaptive AT mode zero to two
+     * @param responses Count suffix, or zero
+     */
+    public void restore(int timeout, int adaptive, int responses){
+        if (1 > timeout || 0xFF < timeout)
+            throw new IllegalArgumentException(String.valueOf(timeout));
+        else if (0 > adaptive || 2 < adaptive)
+            throw new IllegalArgumentException(String.valueOf(adaptive));
+        else if (0 > responses || 0xF < responses)
+            throw new IllegalArgumentException(String.valueOf(responses));
+        else {
+            this.timeout = timeout;
+            this.adaptive = adaptive;
+            this.responses = responses;
+            this.tuned = true;
+            this.pendingTimeout = true;
+            this.pendingAdaptive = true;
+        }
+    }
+    /**
+     * A request line has been sent.
+     */
+    public void sent(long now){
+        this.sent = now;
+        this.last = now;
+        this.gap = 0L;
+    }
+    /**
+     * An answer frame has been received.  Measures the wait since the
+     * request or the previous answer.
+     */
+    public void received(long now){
+        if (0L != this.sent){
+            this.gap = Math.max(this.gap,now-this.last);
+            this.last = now;
+        }
+    }
+    /**
+     * The prompt has been received.
+     *
+     * @param now Time of the prompt
+     * @param payloads Number of answers, zero for NO DATA
+     */
+    public void answered(long now, int payloads){
+        if (0L == this.sent)
+            return;
+        else {
+            final long sent = this.sent;
+            final long rtt = now-sent;
+            this.sent = 0L;
+            if (this.tuned){
+                if (0.0 == this.roundTrip)
+                    this.roundTrip = rtt;
+                else
+                    this.roundTrip += ALPHA*(rtt-this.roundTrip);
+
+                if (0 == payloads || payloads < this.responses)
+                    this.backoff();
+                else
+                    this.misses = 0;
+            }
+            else if (0 < payloads){
+                /*
+                 * Measure at the current settings
+                 */
+                this.baseline += rtt;
+                this.baselineCount += 1;
+                long latency = ((0L != this.gap)?(this.gap):(rtt));
+                this.slowest = Math.max(this.slowest,latency);
+                if (0 == this.measured)
+                    this.answers = payloads;
+                else if (payloads != this.answers)
+                    this.steady = false;
+                this.measured += 1;
+                if (SAMPLES <= this.measured)
+                    this.tune();
+            }
+        }
+    }
+    /**
+     * Format the next pending setting.
+     *
+     * @param out Destination with room for eight bytes
+     * @param ofs Offset into out
+     * @return Number of bytes written through the CR, or zero when
+     * nothing is pending
+     */
+    public int command(byte[] out, int ofs){
+        int start = ofs;
+        if (this.pendingTimeout){
+            this.pendingTimeout = false;
+            out[ofs++] = 'A';
+            out[ofs++] = 'T';
+            out[ofs++] = 'S';
+            out[ofs++] = 'T';
+            out[ofs++] = Hex.Upper[this.timeout >>> 4];
+            out[ofs++] = Hex.Upper[this.timeout & 0xF];
+            out[ofs++] = '\r';
+        }
+        else if (this.pendingAdaptive){
+            this.pendingAdaptive = false;
+            out[ofs++] = 'A';
+            out[ofs++] = 'T';
+            out[ofs++] = 'A';
+            out[ofs++] = 'T';
+            out[ofs++] = Hex.Upper[this.adaptive];
+            out[ofs++] = '\r';
+        }
+        return (ofs-start);
+    }
+    public boolean hasCommand(){
+        return (this.pendingTimeout || this.pendingAdaptive);
+    }
+    public boolean isTuned(){
+        return this.tuned;
+    }
+    /**
+     * @return ST in units of 4 ms
+     */
+    public int getTimeout(){
+        return this.timeout;
+    }
+    public int getAdaptive(){
+        return this.adaptive;
+    }
+    /**
+     * @return Response count suffix for requests, or zero for none
+     */
+    public int getResponses(){
+        return this.responses;
+    }
+    /**
+     * Apply the response count to a request.
+     */
+    public void configure(Mode01Request request){
+        request.setResponses(this.responses);
+    }
+    /**
+     * @return Longest wait for an answer seen while measuring, from
+     * the request or the previous answer, in nanoseconds
+     */
+    public long getLatency(){
+        return this.slowest;
+    }
+    /**
+     * @return Mean round trip before tuning, in nanoseconds
+     */
+    public double getBaselineRoundTrip(){
+        if (0L == this.baselineCount)
+            return 0.0;
+        else
+            return this.baseline/this.baselineCount;
+    }
+    /**
+     * @return Smoothed round trip since tuning, in nanoseconds
+     */
+    public double getRoundTrip(){
+        return this.roundTrip;
+    }
+    /**
+     * @return Number of times the timeout has been doubled
+     */
+    public int getBackoffs(){
+        return this.backoffs;
+    }
+    /**
+     * Before and after round trips and the settings.
+     */
+    public String report(){
+        StringBuilder string = new StringBuilder();
+        string.append("ST ").append(Integer.toHexString(0x100|this.timeout).substring(1).toUpperCase());
+        string.append(" AT").append(this.adaptive);
+        string.append(" count ").append(this.responses);
+        string.append(" latency ").append(this.slowest/MS).append(" ms");
+        string.append(" round trip ").append(Math.round(this.getBaselineRoundTrip()/MS));
+        string.append(" -> ").append(Math.round(this.roundTrip/MS)).append(" ms");
+        if (0 < this.backoffs)
+            string.append(" backoffs ").append(this.backoffs);
+        return string.toString();
+    }
+
+    private void tune(){
+        long limit = (long)(this.slowest*MARGIN)+SLACK;
+        int timeout = (int)((limit+UNIT-1)/UNIT);
+        timeout = Math.max(1,Math.min(DEFAULT_TIMEOUT,timeout));
+        int responses = 0;
+        int adaptive = 2;
+        if (this.steady && 0 < this.answers && 0xF >= this.answers){
+            /*
+             * The count ends each request, and the timeout only
+             * bounds a missing answer
+             */
+            responses = this.answers;
+            adaptive = 1;
+        }
+        this.tuned = true;
+        this.set(timeout,adaptive);
+        this.responses = responses;
+    }
+    private void backoff(){
+        this.misses += 1;
+        if (DEFAULT_TIMEOUT > this.timeout){
+            this.backoffs += 1;
+            this.set(Math.min(DEFAULT_TIMEOUT,this.timeout*2),this.adaptive);
+        }
+        if (MISSES <= this.misses && 0 != this.responses){
+            this.responses = 0;
+            this.misses = 0;
+        }
+    }
+    private void set(int timeout, int adaptive){
+        if (timeout != this.timeout){
+            this.timeout = timeout;
+            this.pendingTimeout = true;
+        }
+        if (adaptive != this.adaptive){
+            this.adaptive = adaptive;
+            this.pendingAdaptive = true;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import java.util.Properties;
+
+/**
+ * What discovery learns about a vehicle: the protocol, the answering
+ * ECUs, each ECU's mode 01 support bitmaps, and the tuned adapter
+ * timing.  Saved per VIN by {@link ProfileCache}.
+ *
+ * Support bitmaps are kept as eight 32 bit words per ECU, the answers
+ * to 0100, 0120, ... 01E0.  In each word the most significant bit is
+ * the first PID after the request PID, and the least significant bit
+ * says whether the next request is supported.
+ */
+public class VehicleProfile
+    extends Object
+{
+    public final static int MAX_ECUS = 8;
+
+    public final static int RANGES = 8;
+
+
+    private String vin;
+
+    private int protocol;
+
+    private final int[] ecus = new int[MAX_ECUS];
+
+    private final int[][] bitmaps = new int[MAX_ECUS][RANGES];
+
+    private int count;
+
+    private int timeout, adaptive, responses;
+
+
+    public VehicleProfile(){
+        super();
+    }
+
+
+    public String getVin(){
+        return this.vin;
+    }
+    public void setVin(String vin){
+        this.vin = vin;
+    }
+    /**
+     * @return Protocol number as for ATSP, zero when unknown
+     */
+    public int getProtocol(){
+        return this.protocol;
+    }
+    public void setProtocol(int protocol){
+        if (0 > protocol || 0xC < protocol)
+            throw new IllegalArgumentException(String.valueOf(protocol));
+        else
+            this.protocol = protocol;
+    }
+    public int countEcus(){
+        return this.count;
+    }
+    /**
+     * @return CAN identifier of the answering ECU, or negative one
+     * when discovered with headers off
+     */
+    public int getEcu(int index){
+        if (-1 < index && index < this.count)
+            return this.ecus[index];
+        else
+            throw new ArrayIndexOutOfBoundsException(index);
+    }
+    /**
+     * @return Index of the ECU, added when missing, or negative one
+     * when the table is full
+     */
+    public int addEcu(int header){
+        for (int cc = 0; cc < this.count; cc++){
+            if (header == this.ecus[cc])
+                return cc;
+        }
+        if (MAX_ECUS == this.count)
+            return -1;
+        else {
+            int index = this.count++;
+            this.ecus[index] = header;
+            for (int rr = 0; rr < RANGES; rr++){
+                this.bitmaps[index][rr] = 0;
+            }
+            return index;
+        }
+    }
+    public void clearEcus(){
+        this.count = 0;
+    }
+    /**
+     * @param index ECU index
+     * @param range Request PID, a multiple of 0x20
+     */
+    public int getBitmap(int index, int range){
+        return this.bitmaps[index][(range & 0xFF) >>> 5];
+    }
+    public void setBitmap(int index, int range, int bitmap){
+        this.bitmaps[index][(range & 0xFF) >>> 5] = bitmap;
+    }
+    /**
+     * @return Some ECU answers the mode 01 PID
+     */
+    public boolean isSupported(int pid){
+        pid &= 0xFF;
+        if (0 == pid)
+            return (0 < this.count);
+        /*
+         * A bitmap PID is listed as the last bit of the range before
+         */
+        int range = (pid-1) >>> 5;
+        int bit = 31-((pid-1) & 0x1F);
+        for (int cc = 0; cc < this.count; cc++){
+            if (0 != (this.bitmaps[cc][range] & (1 << bit)))
+                return true;
+        }
+        return false;
+    }
+    /**
+     * @param into Destination for supported PIDs other than the
+     * bitmaps
+     * @return Number of PIDs written
+     */
+    public int getSupported(int[] into){
+        int n = 0;
+        for (int pid = 1; pid < 0x100 && n < into.length; pid++){
+            if (0 != (pid & 0x1F) && this.isSupported(pid))
+                into[n++] = pid;
+        }
+        return n;
+    }
+    /**
+     * @return The range following this one was reported as supported
+     * by some ECU
+     */
+    public boolean hasNextRange(int range){
+        if (0xE0 <= (range & 0xFF))
+            return false;
+        else {
+            int r = (range & 0xFF) >>> 5;
+            for (int cc = 0; cc < this.count; cc++){
+                if (0 != (this.bitmaps[cc][r] & 1))
+                    return true;
+            }
+            return false;
+        }
+    }
+    /**
+     * Compare a 0100 answer with this profile.  With headers off the
+     * answers are matched by content alone.
+     *
+     * @param headers Answer headers, negative one for headers off
+     * @param bitmaps Answer bitmaps for 0100
+     * @param count Number of answers
+     */
+    public boolean matches(int[] headers, int[] bitmaps, int count){
+        if (count != this.count)
+            return false;
+        else {
+            int matched = 0;
+            for (int aa = 0; aa < count; aa++){
+                boolean found = false;
+                for (int cc = 0; cc < this.count; cc++){
+                    if (0 == (matched & (1 << cc))
+                        && bitmaps[aa] == this.bitmaps[cc][0]
+                        && (0 > headers[aa] || headers[aa] == this.ecus[cc]))
+                    {
+                        matched |= (1 << cc);
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found)
+                    return false;
+            }
+            return true;
+        }
+    }
+    /**
+     * @return ST in units of 4 ms, zero when not tuned
+     */
+    public int getTimeout(){
+        return this.timeout;
+    }
+    public int getAdaptive(){
+        return this.adaptive;
+    }
+    public int getResponses(){
+        return this.responses;
+    }
+    public boolean isTuned(){
+        return (0 != this.timeout);
+    }
+    /**
+     * @param timeout ST in units of 4 ms
+     * @param adaptive AT mode zero to two
+     * @param responses Count suffix, or zero
+     */
+    public void setTimings(int timeout, int adaptive, int responses){
+        if (1 > timeout || 0xFF < timeout)
+            throw new IllegalArgumentException(String.valueOf(timeout));
+        else if (0 > adaptive || 2 < adaptive)
+            throw new IllegalArgumentException(String.valueOf(adaptive));
+        else if (0 > responses || 0xF < responses)
+            throw new IllegalArgumentException(String.valueOf(responses));
+        else {
+            this.timeout = timeout;
+            this.adaptive = adaptive;
+            this.responses = responses;
+        }
+    }
+    /**
+     * Record the settings of a tuner.
+     */
+    public void setTimings(TimingTuner tuner){
+        if (tuner.isTuned())
+            this.setTimings(tuner.getTimeout(),tuner.getAdaptive(),tuner.getResponses());
+    }
+    /**
+     * Apply the recorded settings to a tuner.
+     */
+    public void restore(TimingTuner tuner){
+        if (this.isTuned())
+            tuner.restore(this.timeout,this.adaptive,this.responses);
+    }
+
+    public Properties toProperties(){
+        Properties properties = new Properties();
+        if (null != this.vin)
+            properties.setProperty("vin",this.vin);
+        properties.setProperty("protocol",Integer.toHexString(this.protocol));
+        StringBuilder ecus = new StringBuilder();
+        for (int cc = 0; cc < this.count; cc++){
+            String ecu = Integer.toHexString(this.ecus[cc]);
+            if (0 < cc)
+                ecus.append(',');
+            ecus.append(ecu);
+            StringBuilder bitmaps = new StringBuilder();
+            for (int rr = 0; rr < RANGES; rr++){
+                if (0 < rr)
+                    bitmaps.append(',');
+                bitmaps.append(Integer.toHexString(this.bitmaps[cc][rr]));
+            }
+            properties.setProperty("ecu."+ecu,bitmaps.toString());
+        }
+        properties.setProperty("ecus",ecus.toString());
+        if (this.isTuned()){
+            properties.setProperty("timeout",Integer.toHexString(this.timeout));
+            properties.setProperty("adaptive",String.valueOf(this.adaptive));
+            properties.setProperty("responses",String.valueOf(this.responses));
+        }
+        return properties;
+    }
+    /**
+     * @exception java.lang.IllegalArgumentException Malformed
+     * properties
+     */
+    public static VehicleProfile fromProperties(Properties properties){
+        VehicleProfile profile = new VehicleProfile();
+        profile.vin = properties.getProperty("vin");
+        profile.setProtocol(Integer.parseInt(properties.getProperty("protocol","0"),16));
+        String ecus = properties.getProperty("ecus","");
+        if (0 < ecus.length()){
+            for (String ecu : ecus.split(",")){
+                int index = profile.addEcu((int)Long.parseLong(ecu,16));
+                String bitmaps = properties.getProperty("ecu."+ecu);
+                if (0 > index || null == bitmaps)
+                    throw new IllegalArgumentException(ecu);
+                else {
+                    String[] words = bitmaps.split(",");
+                    for (int rr = 0; rr < RANGES && rr < words.length; rr++){
+                        profile.bitmaps[index][rr] = (int)Long.parseLong(words[rr],16);
+                    }
+                }
+            }
+        }
+        String timeout = properties.getProperty("timeout");
+        if (null != timeout){
+            profile.setTimings(Integer.parseInt(timeout,16),
+                               Integer.parseInt(properties.getProperty("adaptive","1")),
+                               Integer.parseInt(properties.getProperty("responses","0")));
+        }
+        return profile;
+    }
+}
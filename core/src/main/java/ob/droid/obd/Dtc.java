@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.obd;
+
+/**
+ * Diagnostic trouble codes as the sixteen bits reported in mode 03,
+ * and as text like "P0301".
+ *
+ * The top two bits are the system, P, C, B or U.  The next two are
+ * the first digit, zero to three, and the last twelve are the three
+ * hex digits after it.
+ */
+public final class Dtc
+    extends Object
+{
+    private final static char[] SYSTEM = {'P','C','B','U'};
+
+    private final static char[] HEX = {
+        '0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'
+    };
+
+
+    /**
+     * @param code Sixteen bit code
+     * @return Text like "P0301"
+     */
+    public static String toString(int code){
+        char[] text = new char[5];
+        text[0] = SYSTEM[(code >>> 14) & 3];
+        text[1] = (char)('0'+((code >>> 12) & 3));
+        text[2] = HEX[(code >>> 8) & 0xF];
+        text[3] = HEX[(code >>> 4) & 0xF];
+        text[4] = HEX[code & 0xF];
+        return new String(text);
+    }
+    /**
+     * @param text Code like "P0301", in either case
+     * @return Sixteen bit code, or negative one when malformed
+     */
+    public static int valueOf(String text){
+        if (null == text || 5 != text.length())
+            return -1;
+        else {
+            int code;
+            switch(Character.toUpperCase(text.charAt(0))){
+            case 'P':
+                code = 0;
+                break;
+            case 'C':
+                code = 1;
+                break;
+            case 'B':
+                code = 2;
+                break;
+            case 'U':
+                code = 3;
+                break;
+            default:
+                return -1;
+            }
+            int digit = (text.charAt(1)-'0');
+            if (0 > digit || 3 < digit)
+                return -1;
+            else {
+                code = (code << 2)|digit;
+                for (int cc = 2; cc < 5; cc++){
+                    int nibble = Character.digit(text.charAt(cc),16);
+                    if (0 > nibble)
+                        return -1;
+                    else
+                        code = (code << 4)|nibble;
+                }
+                return code;
+            }
+        }
+    }
+
+    private Dtc(){
+        super();
+    }
+}
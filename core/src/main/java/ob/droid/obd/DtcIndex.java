@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.obd;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Read only trouble code descriptions, searched in place in a memory
+ * mapped file.
+ *
+ * The file starts with the magic "OBDT", the version, the number of
+ * codes, and the offset of the text.  The codes follow sorted as
+ * sixteen bit {@link Dtc} values, then for each code the offset of
+ * its description in the text, and the end offset of the text.  The
+ * descriptions are UTF-8.
+ *
+ * Lookup is a binary search of the mapped codes, and only the
+ * description found is decoded.  The index is built from CSV lines
+ * of "P0301,Cylinder 1 misfire detected" by {@link Builder}, or from
+ * the command line with
+ *
+ * <pre>
+ * java ob.droid.obd.DtcIndex codes.csv [more.csv] dtc.idx
+ * </pre>
+ */
+public class DtcIndex
+    extends Object
+{
+    public final static int MAGIC = 0x4F424454;
+
+    public final static int VERSION = 1;
+
+    private final static int HEADER = 16;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+
+    /**
+     * Collects descriptions and writes an index.
+     */
+    public static class Builder
+        extends Object
+    {
+        private final TreeMap<Integer,String> codes = new TreeMap<Integer,String>();
+
+
+        public Builder(){
+            super();
+        }
+
+
+        /**
+         * Add or replace a description.
+         */
+        public void add(int code, String description){
+            if (0 > code || 0xFFFF < code)
+                throw new IllegalArgumentException(String.valueOf(code));
+            else if (null == description)
+                throw new IllegalArgumentException();
+            else
+                this.codes.put(Integer.valueOf(code),description);
+        }
+        /**
+         * Add CSV lines of code and description, skipping blank
+         * lines and lines starting with '#'.  A description may
+         * contain commas, and may be quoted.
+         *
+         * @return Number of codes added
+         * @exception java.lang.IllegalArgumentException A malformed
+         * line, with its line number
+         */
+        public int load(Reader in)
+            throws IOException
+        {
+            BufferedReader lines = new BufferedReader(in);
+            int count = 0, number = 0;
+            String line;
+            while (null != (line = lines.readLine())){
+                number += 1;
+                line = line.trim();
+                if (0 != line.length() && '#' != line.charAt(0)){
+                    int comma = line.indexOf(',');
+                    int code = (0 > comma)?(-1):(Dtc.valueOf(line.substring(0,comma).trim()));
+                    if (0 > code)
+                        throw new IllegalArgumentException("Line "+number+": expected code in \""+line+'"');
+                    else {
+                        String description = line.substring(comma+1).trim();
+                        if (2 <= description.length() && '"' == description.charAt(0)
+                            && '"' == description.charAt(description.length()-1))
+                        {
+                            description = description.substring(1,description.length()-1).replace("\"\"","\"");
+                        }
+                        this.add(code,description);
+                        count += 1;
+                    }
+                }
+            }
+            return count;
+        }
+        public int size(){
+            return this.codes.size();
+        }
+        public void write(File file)
+            throws IOException
+        {
+            final int count = this.codes.size();
+            byte[][] text = new byte[count][];
+            int textOffset = HEADER+2*count;
+            textOffset = ((textOffset+3) & ~3)+4*(count+1);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(count);
+                out.writeInt(textOffset);
+                int cc = 0;
+                for (Map.Entry<Integer,String> entry : this.codes.entrySet()){
+                    out.writeShort(entry.getKey().intValue());
+                    text[cc++] = entry.getValue().getBytes("UTF-8");
+                }
+                if (0 != (count & 1))
+                    out.writeShort(0);
+                int offset = 0;
+                for (cc = 0; cc < count; cc++){
+                    out.writeInt(offset);
+                    offset += text[cc].length;
+                }
+                out.writeInt(offset);
+                for (cc = 0; cc < count; cc++){
+                    out.write(text[cc]);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+
+    private final MappedByteBuffer map;
+
+    private final int count, offsets, text;
+
+
+    /**
+     * @exception java.io.IOException Missing or not an index
+     */
+    public DtcIndex(File file)
+        throws IOException
+    {
+        super();
+        RandomAccessFile in = new RandomAccessFile(file,"r");
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (HEADER > size || Integer.MAX_VALUE < size)
+                throw new IOException("Not an index "+file);
+            else {
+                this.map = channel.map(FileChannel.MapMode.READ_ONLY,0L,size);
+                this.count = this.map.getInt(8);
+                this.text = this.map.getInt(12);
+                /*
+                 * Check the header before reading through it
+                 */
+                final long offsets = ((HEADER+2L*this.count+3L) & ~3L);
+                if (MAGIC != this.map.getInt(0) || VERSION != this.map.getInt(4)
+                    || 0 > this.count || (offsets+4L*(this.count+1L)) != this.text
+                    || this.text > size)
+                {
+                    throw new IOException("Not an index "+file);
+                }
+                this.offsets = (int)offsets;
+                final int length = this.map.getInt(this.text-4);
+                if (0 > length || (this.text+(long)length) != size)
+                    throw new IOException("Not an index "+file);
+                /*
+                 * Descriptions in order within the text
+                 */
+                for (int cc = 0, prev = 0; cc <= this.count; cc++){
+                    int offset = this.map.getInt(this.offsets+4*cc);
+                    if (prev > offset || length < offset || (0 == cc && 0 != offset))
+                        throw new IOException("Not an index "+file);
+                    else
+                        prev = offset;
+                }
+            }
+        }
+        finally {
+            /*
+             * The mapping remains valid
+             */
+            in.close();
+        }
+    }
+
+
+    public int size(){
+        return this.count;
+    }
+    /**
+     * @return Sixteen bit code at the index, in order
+     */
+    public int getCode(int index){
+        return this.map.getChar(HEADER+2*index);
+    }
+    /**
+     * @return Index of the code, or negative one
+     */
+    public int indexOf(int code){
+        int lo = 0, hi = (this.count-1);
+        while (lo <= hi){
+            int mid = (lo+hi) >>> 1;
+            int key = this.map.getChar(HEADER+2*mid);
+            if (key < code)
+                lo = (mid+1);
+            else if (key > code)
+                hi = (mid-1);
+            else
+                return mid;
+        }
+        return -1;
+    }
+    public boolean contains(int code){
+        return (-1 < this.indexOf(code));
+    }
+    /**
+     * @param code Sixteen bit code
+     * @return Description, or null
+     */
+    public String get(int code){
+        int index = this.indexOf(code);
+        if (0 > index)
+            return null;
+        else
+            return this.getDescription(index);
+    }
+    /**
+     * @param code Text like "P0301"
+     * @return Description, or null
+     */
+    public String get(String code){
+        int value = Dtc.valueOf(code);
+        if (0 > value)
+            return null;
+        else
+            return this.get(value);
+    }
+    /**
+     * @return Description at the index, in order
+     */
+    public String getDescription(int index){
+        if (0 > index || index >= this.count)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        else {
+            int start = this.map.getInt(this.offsets+4*index);
+            int end = this.map.getInt(this.offsets+4*(index+1));
+            ByteBuffer description = this.map.duplicate();
+            description.limit(this.text+end);
+            description.position(this.text+start);
+            return UTF8.decode(description).toString();
+        }
+    }
+
+    /**
+     * Build an index from CSV files.
+     */
+    public static void main(String[] argv){
+        if (2 > argv.length){
+            System.err.println("Usage: DtcIndex codes.csv [more.csv] dtc.idx");
+            System.exit(1);
+        }
+        else {
+            try {
+                Builder builder = new Builder();
+                for (int cc = 0, last = (argv.length-1); cc < last; cc++){
+                    Reader in = new InputStreamReader(new FileInputStream(argv[cc]),"UTF-8");
+                    try {
+                        builder.load(in);
+                    }
+                    finally {
+                        in.close();
+                    }
+                }
+                File file = new File(argv[argv.length-1]);
+                builder.write(file);
+                System.out.println("Wrote "+builder.size()+" codes to "+file);
+            }
+            catch (Exception exc){
+                exc.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+}
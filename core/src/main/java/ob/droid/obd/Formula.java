@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.obd;
+
+/**
+ * Compiler of PID formulas in the notation of SAE J1979 tables, like
+ * "(256*A+B)/4" or "A*100/255".
+ *
+ * The letters A, B, C, ... are the data bytes, unsigned, and numbers,
+ * +, -, *, / and parentheses are allowed.  Formulas that are a sum of
+ * byte multiples and a constant, which are nearly all of them, compile
+ * to one multiply and add per byte.  Others compile to an expression
+ * tree.  Either way, nothing is parsed per sample.
+ */
+public final class Formula
+    extends Object
+{
+    /**
+     * Expression tree.
+     */
+    private abstract static class Node
+        extends Object
+    {
+        abstract double eval(byte[] data, int ofs);
+        /**
+         * @return Byte coefficients followed by the constant, or null
+         * when not linear
+         */
+        abstract double[] affine(int length);
+    }
+    private final static class Constant
+        extends Node
+    {
+        final double value;
+
+        Constant(double value){
+            super();
+            this.value = value;
+        }
+        double eval(byte[] data, int ofs){
+            return this.value;
+        }
+        double[] affine(int length){
+            double[] form = new double[length+1];
+            form[length] = this.value;
+            return form;
+        }
+    }
+    private final static class Data
+        extends Node
+    {
+        final int index;
+
+        Data(int index){
+            super();
+            this.index = index;
+        }
+        double eval(byte[] data, int ofs){
+            return (data[ofs+this.index] & 0xFF);
+        }
+        double[] affine(int length){
+            double[] form = new double[length+1];
+            form[this.index] = 1.0;
+            return form;
+        }
+    }
+    private final static class Binary
+        extends Node
+    {
+        final char op;
+        final Node left, right;
+
+        Binary(char op, Node left, Node right){
+            super();
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+        double eval(byte[] data, int ofs){
+            double a = this.left.eval(data,ofs), b = this.right.eval(data,ofs);
+            switch(this.op){
+            case '+':
+                return a+b;
+            case '-':
+                return a-b;
+            case '*':
+                return a*b;
+            default:
+                return a/b;
+            }
+        }
+        double[] affine(int length){
+            double[] a = this.left.affine(length), b = this.right.affine(length);
+            if (null == a || null == b)
+                return null;
+            else {
+                switch(this.op){
+                case '+':
+                case '-':
+                    for (int cc = 0; cc <= length; cc++){
+                        a[cc] = ('+' == this.op)?(a[cc]+b[cc]):(a[cc]-b[cc]);
+                    }
+                    return a;
+                case '*':
+                    if (isConstant(a,length))
+                        return scale(b,a[length],length);
+                    else if (isConstant(b,length))
+                        return scale(a,b[length],length);
+                    else
+                        return null;
+                default:
+                    if (isConstant(b,length) && 0.0 != b[length])
+                        return scale(a,1.0/b[length],length);
+                    else
+                        return null;
+                }
+            }
+        }
+    }
+    private final static class Negate
+        extends Node
+    {
+        final Node operand;
+
+        Negate(Node operand){
+            super();
+            this.operand = operand;
+        }
+        double eval(byte[] data, int ofs){
+            return -this.operand.eval(data,ofs);
+        }
+        double[] affine(int length){
+            double[] a = this.operand.affine(length);
+            if (null == a)
+                return null;
+            else
+                return scale(a,-1.0,length);
+        }
+    }
+
+    /**
+     * Compiled sum of byte multiples and a constant.
+     */
+    private final static class Affine
+        extends PidDecoder
+    {
+        private final float[] coefficient;
+        private final float constant;
+
+        Affine(int pid, String name, String unit, int length, float min, float max,
+               String formula, double[] form)
+        {
+            super(pid,name,unit,length,min,max,formula);
+            this.coefficient = new float[length];
+            for (int cc = 0; cc < length; cc++){
+                this.coefficient[cc] = (float)form[cc];
+            }
+            this.constant = (float)form[length];
+        }
+
+        public float decode(byte[] data, int ofs, int len){
+            final float[] coefficient = this.coefficient;
+            if (len < coefficient.length)
+                return Float.NaN;
+            else {
+                float value = this.constant;
+                for (int cc = 0; cc < coefficient.length; cc++){
+                    value += coefficient[cc]*(data[ofs+cc] & 0xFF);
+                }
+                return value;
+            }
+        }
+    }
+    /**
+     * Compiled expression tree.
+     */
+    private final static class Tree
+        extends PidDecoder
+    {
+        private final Node root;
+
+        Tree(int pid, String name, String unit, int length, float min, float max,
+             String formula, Node root)
+        {
+            super(pid,name,unit,length,min,max,formula);
+            this.root = root;
+        }
+
+        public float decode(byte[] data, int ofs, int len){
+            if (len < this.length)
+                return Float.NaN;
+            else
+                return (float)this.root.eval(data,ofs);
+        }
+    }
+
+
+    /**
+     * @param pid Mode 01 PID
+     * @param name Display name
+     * @param unit Display unit
+     * @param length Data byte count
+     * @param min Display minimum
+     * @param max Display maximum
+     * @param formula Formula over the bytes A, B, C, ...
+     * @exception java.lang.IllegalArgumentException Malformed
+     * formula, or a byte beyond the length
+     */
+    public static PidDecoder compile(int pid, String name, String unit, int length,
+                                     float min, float max, String formula)
+    {
+        if (null == formula)
+            throw new IllegalArgumentException();
+        else {
+            Formula parser = new Formula(formula,length);
+            Node root = parser.expression();
+            parser.space();
+            if (parser.index < formula.length())
+                throw parser.error();
+            else {
+                double[] form = root.affine(length);
+                if (null != form)
+                    return new Affine(pid,name,unit,length,min,max,formula,form);
+                else
+                    return new Tree(pid,name,unit,length,min,max,formula,root);
+            }
+        }
+    }
+
+    private static boolean isConstant(double[] form, int length){
+        for (int cc = 0; cc < length; cc++){
+            if (0.0 != form[cc])
+                return false;
+        }
+        return true;
+    }
+    private static double[] scale(double[] form, double factor, int length){
+        for (int cc = 0; cc <= length; cc++){
+            form[cc] *= factor;
+        }
+        return form;
+    }
+
+
+    private final String source;
+
+    private final int length;
+
+    private int index;
+
+
+    private Formula(String source, int length){
+        super();
+        this.source = source;
+        this.length = length;
+    }
+
+
+    private Node expression(){
+        Node node = this.term();
+        while (true){
+            char op = this.peek();
+            if ('+' == op || '-' == op){
+                this.index += 1;
+                node = new Binary(op,node,this.term());
+            }
+            else
+                return node;
+        }
+    }
+    private Node term(){
+        Node node = this.unary();
+        while (true){
+            char op = this.peek();
+            if ('*' == op || '/' == op){
+                this.index += 1;
+                node = new Binary(op,node,this.unary());
+            }
+            else
+                return node;
+        }
+    }
+    private Node unary(){
+        char ch = this.peek();
+        if ('-' == ch){
+            this.index += 1;
+            return new Negate(this.unary());
+        }
+        else if ('(' == ch){
+            this.index += 1;
+            Node node = this.expression();
+            if (')' != this.peek())
+                throw this.error();
+            else {
+                this.index += 1;
+                return node;
+            }
+        }
+        else if ('A' <= ch && 'Z' >= ch){
+            int index = (ch-'A');
+            if (index >= this.length)
+                throw new IllegalArgumentException("Byte "+ch+" beyond length "+this.length
+                                                   +" in \""+this.source+'"');
+            else {
+                this.index += 1;
+                return new Data(index);
+            }
+        }
+        else if (('0' <= ch && '9' >= ch) || '.' == ch){
+            int start = this.index;
+            while (this.index < this.source.length()){
+                ch = this.source.charAt(this.index);
+                if (('0' <= ch && '9' >= ch) || '.' == ch)
+                    this.index += 1;
+                else
+                    break;
+            }
+            try {
+                return new Constant(Double.parseDouble(this.source.substring(start,this.index)));
+            }
+            catch (NumberFormatException exc){
+                this.index = start;
+                throw this.error();
+            }
+        }
+        else
+            throw this.error();
+    }
+    /**
+     * @return Next significant char, or zero at the end
+     */
+    private char peek(){
+        this.space();
+        if (this.index < this.source.length())
+            return this.source.charAt(this.index);
+        else
+            return 0;
+    }
+    private void space(){
+        while (this.index < this.source.length() && ' ' >= this.source.charAt(this.index)){
+            this.index += 1;
+        }
+    }
+    private IllegalArgumentException error(){
+        return new IllegalArgumentException("Malformed formula at "+this.index+" in \""+this.source+'"');
+    }
+}
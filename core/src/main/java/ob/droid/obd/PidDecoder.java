@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.obd;
+
+/**
+ * Mode 01 PID value decoder, compiled from a formula by {@link
+ * Formula}.
+ */
+public abstract class PidDecoder
+    extends Object
+{
+    protected final int pid;
+
+    protected final String name, unit, formula;
+
+    protected final int length;
+
+    protected final float min, max;
+
+
+    protected PidDecoder(int pid, String name, String unit, int length, float min, float max,
+                         String formula)
+    {
+        super();
+        if (1 > length || 0x7F < length)
+            throw new IllegalArgumentException(String.valueOf(length));
+        else {
+            this.pid = (pid & 0xFF);
+            this.name = name;
+            this.unit = unit;
+            this.length = length;
+            this.min = min;
+            this.max = max;
+            this.formula = formula;
+        }
+    }
+
+
+    public final int getPid(){
+        return this.pid;
+    }
+    public final String getName(){
+        return this.name;
+    }
+    public final String getUnit(){
+        return this.unit;
+    }
+    /**
+     * @return Data byte count
+     */
+    public final int getLength(){
+        return this.length;
+    }
+    public final float getMin(){
+        return this.min;
+    }
+    public final float getMax(){
+        return this.max;
+    }
+    public final String getFormula(){
+        return this.formula;
+    }
+    /**
+     * @param data Buffer holding the data bytes A, B, C, ...
+     * @param ofs Offset of A in data
+     * @param len Number of data bytes
+     * @return Value, or NaN when there are too few bytes
+     */
+    public abstract float decode(byte[] data, int ofs, int len);
+
+    public String toString(){
+        return hex2(this.pid)+','+this.name+','+this.unit+','+this.length+','
+            +this.min+','+this.max+','+this.formula;
+    }
+
+    private static String hex2(int pid){
+        String hex = Integer.toHexString(pid).toUpperCase();
+        if (1 == hex.length())
+            return '0'+hex;
+        else
+            return hex;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.obd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Mode 01 PID decoders by PID number, with the SAE J1979 scaled
+ * values defined.
+ *
+ * Custom definitions are loaded from CSV lines of
+ *
+ * <pre>
+ * pid,name,unit,length,min,max,formula
+ * </pre>
+ *
+ * with the PID in hex, for example "0C,Engine RPM,rpm,2,0,16383.75,(256*A+B)/4".
+ * Blank lines and lines starting with '#' are skipped.  A definition
+ * replaces the decoder of its PID and defines its length in {@link
+ * Pids}.
+ */
+public final class PidDecoders
+    extends Object
+{
+    /**
+     * SAE J1979 PIDs with linear scaling, in CSV.
+     */
+    private final static String[] J1979 = {
+        "04,Engine load,%,1,0,100,A*100/255",
+        "05,Coolant temperature,C,1,-40,215,A-40",
+        "06,Short term fuel trim bank 1,%,1,-100,99.2,(A-128)*100/128",
+        "07,Long term fuel trim bank 1,%,1,-100,99.2,(A-128)*100/128",
+        "08,Short term fuel trim bank 2,%,1,-100,99.2,(A-128)*100/128",
+        "09,Long term fuel trim bank 2,%,1,-100,99.2,(A-128)*100/128",
+        "0A,Fuel pressure,kPa,1,0,765,3*A",
+        "0B,Intake manifold pressure,kPa,1,0,255,A",
+        "0C,Engine RPM,rpm,2,0,16383.75,(256*A+B)/4",
+        "0D,Vehicle speed,km/h,1,0,255,A",
+        "0E,Timing advance,deg,1,-64,63.5,A/2-64",
+        "0F,Intake air temperature,C,1,-40,215,A-40",
+        "10,MAF air flow rate,g/s,2,0,655.35,(256*A+B)/100",
+        "11,Throttle position,%,1,0,100,A*100/255",
+        "14,O2 sensor 1 voltage,V,2,0,1.275,A/200",
+        "15,O2 sensor 2 voltage,V,2,0,1.275,A/200",
+        "16,O2 sensor 3 voltage,V,2,0,1.275,A/200",
+        "17,O2 sensor 4 voltage,V,2,0,1.275,A/200",
+        "18,O2 sensor 5 voltage,V,2,0,1.275,A/200",
+        "19,O2 sensor 6 voltage,V,2,0,1.275,A/200",
+        "1A,O2 sensor 7 voltage,V,2,0,1.275,A/200",
+        "1B,O2 sensor 8 voltage,V,2,0,1.275,A/200",
+        "1F,Run time since start,s,2,0,65535,256*A+B",
+        "21,Distance with MIL on,km,2,0,65535,256*A+B",
+        "22,Fuel rail pressure,kPa,2,0,5177.265,(256*A+B)*0.079",
+        "23,Fuel rail gauge pressure,kPa,2,0,655350,(256*A+B)*10",
+        "24,O2 sensor 1 equivalence ratio,ratio,4,0,2,(256*A+B)*2/65536",
+        "25,O2 sensor 2 equivalence ratio,ratio,4,0,2,(256*A+B)*2/65536",
+        "26,O2 sensor 3 equivalence ratio,ratio,4,0,2,(256*A+B)*2/65536",
+        "27,O2 sensor 4 equivalence ratio,ratio,4,0,2,(256*A+B)*2/65536",
+        "28,O2 sensor 5 equivalence ratio,ratio,4,0,2,(256*A+B)*2/65536",
+        "29,O2 sensor 6 equivalence ratio,ratio,4,0,2,(256*A+B)*2/65536",
+        "2A,O2 sensor 7 equivalence ratio,ratio,4,0,2,(256*A+B)*2/65536",
+        "2B,O2 sensor 8 equivalence ratio,ratio,4,0,2,(256*A+B)*2/65536",
+        "2C,Commanded EGR,%,1,0,100,A*100/255",
+        "2D,EGR error,%,1,-100,99.2,(A-128)*100/128",
+        "2E,Commanded evaporative purge,%,1,0,100,A*100/255",
+        "2F,Fuel tank level,%,1,0,100,A*100/255",
+        "30,Warm-ups since codes cleared,count,1,0,255,A",
+        "31,Distance since codes cleared,km,2,0,65535,256*A+B",
+        "33,Barometric pressure,kPa,1,0,255,A",
+        "34,O2 sensor 1 equivalence ratio,ratio,4,0,2,(256*A+B)/32768",
+        "35,O2 sensor 2 equivalence ratio,ratio,4,0,2,(256*A+B)/32768",
+        "36,O2 sensor 3 equivalence ratio,ratio,4,0,2,(256*A+B)/32768",
+        "37,O2 sensor 4 equivalence ratio,ratio,4,0,2,(256*A+B)/32768",
+        "38,O2 sensor 5 equivalence ratio,ratio,4,0,2,(256*A+B)/32768",
+        "39,O2 sensor 6 equivalence ratio,ratio,4,0,2,(256*A+B)/32768",
+        "3A,O2 sensor 7 equivalence ratio,ratio,4,0,2,(256*A+B)/32768",
+        "3B,O2 sensor 8 equivalence ratio,ratio,4,0,2,(256*A+B)/32768",
+        "3C,Catalyst temperature bank 1 sensor 1,C,2,-40,6513.5,(256*A+B)/10-40",
+        "3D,Catalyst temperature bank 2 sensor 1,C,2,-40,6513.5,(256*A+B)/10-40",
+        "3E,Catalyst temperature bank 1 sensor 2,C,2,-40,6513.5,(256*A+B)/10-40",
+        "3F,Catalyst temperature bank 2 sensor 2,C,2,-40,6513.5,(256*A+B)/10-40",
+        "42,Control module voltage,V,2,0,65.535,(256*A+B)/1000",
+        "43,Absolute load,%,2,0,25700,(256*A+B)*100/255",
+        "44,Commanded equivalence ratio,ratio,2,0,2,(256*A+B)/32768",
+        "45,Relative throttle position,%,1,0,100,A*100/255",
+        "46,Ambient air temperature,C,1,-40,215,A-40",
+        "47,Absolute throttle position B,%,1,0,100,A*100/255",
+        "48,Absolute throttle position C,%,1,0,100,A*100/255",
+        "49,Accelerator pedal position D,%,1,0,100,A*100/255",
+        "4A,Accelerator pedal position E,%,1,0,100,A*100/255",
+        "4B,Accelerator pedal position F,%,1,0,100,A*100/255",
+        "4C,Commanded throttle actuator,%,1,0,100,A*100/255",
+        "4D,Time run with MIL on,min,2,0,65535,256*A+B",
+        "4E,Time since codes cleared,min,2,0,65535,256*A+B",
+        "52,Ethanol fuel,%,1,0,100,A*100/255",
+        "59,Fuel rail absolute pressure,kPa,2,0,655350,(256*A+B)*10",
+        "5A,Relative accelerator pedal position,%,1,0,100,A*100/255",
+        "5B,Hybrid battery pack remaining life,%,1,0,100,A*100/255",
+        "5C,Engine oil temperature,C,1,-40,210,A-40",
+        "5D,Fuel injection timing,deg,2,-210,301.992,(256*A+B)/128-210",
+        "5E,Engine fuel rate,L/h,2,0,3276.75,(256*A+B)/20",
+        "61,Demanded engine torque,%,1,-125,130,A-125",
+        "62,Actual engine torque,%,1,-125,130,A-125",
+        "63,Engine reference torque,Nm,2,0,65535,256*A+B"
+    };
+
+    private final static PidDecoder[] Table = new PidDecoder[0x100];
+    static {
+        for (int cc = 0; cc < J1979.length; cc++){
+            define(parse(J1979[cc]));
+        }
+    }
+
+
+    /**
+     * @param pid Mode 01 PID
+     * @return Decoder, or null when undefined
+     */
+    public static PidDecoder get(int pid){
+        return Table[pid & 0xFF];
+    }
+    /**
+     * @param pid Mode 01 PID
+     * @param data Buffer holding the data bytes A, B, C, ...
+     * @param ofs Offset of A in data
+     * @param len Number of data bytes
+     * @return Value, or NaN when undefined or short
+     */
+    public static float decode(int pid, byte[] data, int ofs, int len){
+        PidDecoder decoder = Table[pid & 0xFF];
+        if (null == decoder)
+            return Float.NaN;
+        else
+            return decoder.decode(data,ofs,len);
+    }
+    /**
+     * Replace the decoder of its PID, and define its length in {@link
+     * Pids}.
+     */
+    public static void define(PidDecoder decoder){
+        Pids.define(decoder.getPid(),decoder.getLength());
+        Table[decoder.getPid()] = decoder;
+    }
+    /**
+     * Define the PIDs in CSV lines.
+     *
+     * @return Number of PIDs defined
+     * @exception java.lang.IllegalArgumentException A malformed line,
+     * with its line number, after the lines before it are defined
+     */
+    public static int load(Reader in)
+        throws IOException
+    {
+        BufferedReader lines = new BufferedReader(in);
+        int count = 0, number = 0;
+        String line;
+        while (null != (line = lines.readLine())){
+            number += 1;
+            line = line.trim();
+            if (0 != line.length() && '#' != line.charAt(0)){
+                try {
+                    define(parse(line));
+                    count += 1;
+                }
+                catch (IllegalArgumentException exc){
+                    throw new IllegalArgumentException("Line "+number+": "+exc.getMessage(),exc);
+                }
+            }
+        }
+        return count;
+    }
+    /**
+     * @param line CSV pid,name,unit,length,min,max,formula
+     */
+    public static PidDecoder parse(String line){
+        String[] field = new String[7];
+        int start = 0;
+        for (int cc = 0; cc < 6; cc++){
+            int end = line.indexOf(',',start);
+            if (0 > end)
+                throw new IllegalArgumentException("Expected seven fields in \""+line+'"');
+            else {
+                field[cc] = line.substring(start,end).trim();
+                start = (end+1);
+            }
+        }
+        /*
+         * The formula has no commas, but be kind
+         */
+        field[6] = line.substring(start).trim();
+        try {
+            int pid = Integer.parseInt(field[0],16);
+            if (0 > pid || 0xFF < pid)
+                throw new IllegalArgumentException("PID "+field[0]);
+            else
+                return Formula.compile(pid,field[1],field[2],Integer.parseInt(field[3]),
+                                       Float.parseFloat(field[4]),Float.parseFloat(field[5]),
+                                       field[6]);
+        }
+        catch (NumberFormatException exc){
+            throw new IllegalArgumentException(exc.getMessage(),exc);
+        }
+    }
+
+    private PidDecoders(){
+        super();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.obd;
+
+/**
+ * SAE J1979 mode 01 parameter data lengths, which are what it takes
+ * to split a multi-PID response: the response is the PID number
+ * followed by that many data bytes, for each PID answered.
+ */
+public final class Pids
+    extends Object
+{
+    /**
+     * Data byte counts for PIDs 00 through 5F.
+     */
+    private final static byte[] LENGTH = {
+        /* 00 */ 4, 4, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 2, 1, 1, 1,
+        /* 10 */ 2, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2,
+        /* 20 */ 4, 2, 2, 2, 4, 4, 4, 4, 4, 4, 4, 4, 1, 1, 1, 1,
+        /* 30 */ 1, 2, 2, 1, 4, 4, 4, 4, 4, 4, 4, 4, 2, 2, 2, 2,
+        /* 40 */ 4, 4, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 4,
+        /* 50 */ 4, 1, 1, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2, 2, 1
+    };
+
+    /**
+     * Lengths are mutable so that custom definitions can extend the
+     * table.  Negative for unknown.
+     */
+    private final static byte[] Table = new byte[0x100];
+    static {
+        for (int pid = 0; pid < 0x100; pid++){
+            if (pid < LENGTH.length)
+                Table[pid] = LENGTH[pid];
+            else if (0 == (pid & 0x1F) && pid < 0xE0)
+                Table[pid] = 4;
+            else
+                Table[pid] = -1;
+        }
+        Table[0x61] = 1;
+        Table[0x62] = 1;
+        Table[0x63] = 2;
+        Table[0xA6] = 4;
+    }
+
+    /**
+     * The most PIDs an ISO 15765-4 ECU accepts in one mode 01
+     * request.
+     */
+    public final static int MAX_PER_REQUEST = 6;
+
+
+    /**
+     * @param pid Mode 01 PID
+     * @return Data byte count, or negative one when unknown
+     */
+    public static int length(int pid){
+        return Table[pid & 0xFF];
+    }
+    /**
+     * @param pid Mode 01 PID
+     * @param length Data byte count, or negative one for unknown
+     */
+    public static void define(int pid, int length){
+        if (-1 > length || 0x7F < length)
+            throw new IllegalArgumentException(String.valueOf(length));
+        else
+            Table[pid & 0xFF] = (byte)length;
+    }
+    /**
+     * @param pid Mode 01 PID
+     * @return True for the supported PIDs bitmaps 00, 20, ... C0
+     */
+    public static boolean isBitmap(int pid){
+        return (0 == (pid & 0x1F) && pid < 0xE0);
+    }
+
+    private Pids(){
+        super();
+    }
+}
@@ -40,6 +40,21 @@ interface Screen {
      */
     void set(int x, int y, byte b, int foreColor, int backColor);
 
+    /**
+     * Store a run of bytes into one row of the screen, starting at location
+     * (x, y). The run must fit within the row.
+     *
+     * @param x X coordinate of the first byte
+     * @param y Y coordinate (also known as row)
+     * @param buffer the ASCII characters to store
+     * @param offset the index of the first character in buffer
+     * @param length the number of characters to store
+     * @param foreColor the foreground color
+     * @param backColor the background color
+     */
+    void set(int x, int y, byte[] buffer, int offset, int length,
+            int foreColor, int backColor);
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
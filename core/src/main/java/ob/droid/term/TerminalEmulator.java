@@ -16,7 +16,8 @@
  */
 package ob.droid.term;
 
-import android.util.Log;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Renders text into a screen. Contains all the terminal-specific knowlege and
@@ -26,6 +27,28 @@ import android.util.Log;
  * video, color) alternate screen cursor key and keypad escape sequences.
  */
 class TerminalEmulator {
+    /**
+     * Set to true to add debugging code and logging.
+     */
+    static final boolean DEBUG = false;
+
+    /**
+     * Set to true to log each character received from the remote process to the
+     * android log, which makes it easier to debug some kinds of problems with
+     * emulating escape sequences and control codes.
+     */
+    static final boolean LOG_CHARACTERS_FLAG = DEBUG && false;
+
+    /**
+     * Set to true to log unknown escape sequences.
+     */
+    static final boolean LOG_UNKNOWN_ESCAPE_SEQUENCES = DEBUG && false;
+
+    /**
+     * Logger, named with the activity's log tag.
+     */
+    private static final Logger LOG = Logger.getLogger("Term");
+
     /**
      * The number of parameter arguments. This name comes from the ANSI standard
      * for terminal escape codes.
@@ -325,25 +348,51 @@ class TerminalEmulator {
     public void append(byte[] buffer, int base, int length) {
         for (int i = 0; i < length; i++) {
             byte b = buffer[base + i];
+            if (!LOG_CHARACTERS_FLAG && mEscapeState == ESC_NONE
+                    && isPrintable(b)) {
+                // Plain text goes to the screen a row segment at a time.
+                int end = i + 1;
+                while (end < length && isPrintable(buffer[base + end])) {
+                    end++;
+                }
+                try {
+                    emit(buffer, base + i, end - i);
+                    mProcessedCharCount += end - i;
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Exception while processing characters "
+                            + Integer.toString(mProcessedCharCount) + " to "
+                            + Integer.toString(mProcessedCharCount + end - i), e);
+                }
+                i = end - 1;
+                continue;
+            }
             try {
-                if (Term.LOG_CHARACTERS_FLAG) {
+                if (LOG_CHARACTERS_FLAG) {
                     char printableB = (char) b;
                     if (b < 32 || b > 126) {
                         printableB = ' ';
                     }
-                    Log.w(Term.LOG_TAG, "'" + Character.toString(printableB)
+                    LOG.warning("'" + Character.toString(printableB)
                             + "' (" + Integer.toString(b) + ")");
                 }
                 process(b);
                 mProcessedCharCount++;
             } catch (Exception e) {
-                Log.e(Term.LOG_TAG, "Exception while processing character "
+                LOG.log(Level.SEVERE, "Exception while processing character "
                         + Integer.toString(mProcessedCharCount) + " code "
                         + Integer.toString(b), e);
             }
         }
     }
 
+    /**
+     * @return true for the bytes that process(b) passes straight to emit(b)
+     *         when no escape sequence is in progress.
+     */
+    private static boolean isPrintable(byte b) {
+        return b >= 32;
+    }
+
     private void process(byte b) {
         switch (b) {
         case 0: // NUL
@@ -872,8 +921,8 @@ class TerminalEmulator {
             } else if (code >= 40 && code <= 47) { // background color
                 mBackColor = (mBackColor & 0x8) | (code - 40);
             } else {
-                if (Term.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-                    Log.w(Term.LOG_TAG, String.format("SGR unknown code %d", code));
+                if (LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+                    LOG.warning(String.format("SGR unknown code %d", code));
                 }
             }
         }
@@ -990,21 +1039,21 @@ class TerminalEmulator {
     }
 
     private void unimplementedSequence(byte b) {
-        if (Term.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+        if (LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             logError("unimplemented", b);
         }
         finishSequence();
     }
 
     private void unknownSequence(byte b) {
-        if (Term.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+        if (LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             logError("unknown", b);
         }
         finishSequence();
     }
 
     private void unknownParameter(int parameter) {
-        if (Term.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+        if (LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             StringBuilder buf = new StringBuilder();
             buf.append("Unknown parameter");
             buf.append(parameter);
@@ -1013,7 +1062,7 @@ class TerminalEmulator {
     }
 
     private void logError(String errorType, byte b) {
-        if (Term.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+        if (LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             StringBuilder buf = new StringBuilder();
             buf.append(errorType);
             buf.append(" sequence ");
@@ -1040,8 +1089,8 @@ class TerminalEmulator {
     }
 
     private void logError(String error) {
-        if (Term.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-            Log.e(Term.LOG_TAG, error);
+        if (LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+            LOG.severe(error);
         }
         finishSequence();
     }
@@ -1093,6 +1142,51 @@ class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + 1, mColumns - 1);
     }
 
+    /**
+     * Send a run of ASCII characters to the screen, as emit(b) would each of
+     * them, storing each row segment at once.
+     *
+     * @param buffer the ASCII characters to display.
+     * @param offset the index of the first character in buffer
+     * @param length the number of characters
+     */
+    private void emit(byte[] buffer, int offset, int length) {
+        if (mInsertMode) {
+            for (int i = 0; i < length; i++) {
+                emit(buffer[offset + i]);
+            }
+            return;
+        }
+        boolean autoWrap = autoWrapEnabled();
+        int foreColor = getForeColor();
+        int backColor = getBackColor();
+        int end = offset + length;
+        while (offset < end) {
+            if (autoWrap) {
+                if (mCursorCol == mColumns - 1 && mAboutToAutoWrap) {
+                    mScreen.setLineWrap(mCursorRow);
+                    mCursorCol = 0;
+                    if (mCursorRow + 1 < mBottomMargin) {
+                        mCursorRow++;
+                    } else {
+                        scroll();
+                    }
+                }
+            }
+
+            int count = Math.min(end - offset, mColumns - mCursorCol);
+            mScreen.set(mCursorCol, mCursorRow, buffer, offset, count,
+                    foreColor, backColor);
+            offset += count;
+
+            int last = mCursorCol + count - 1;
+            if (autoWrap) {
+                mAboutToAutoWrap = (last == mColumns - 1);
+            }
+            mCursorCol = Math.min(last + 1, mColumns - 1);
+        }
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ * Copyright (C) 2011 John Pritchard, Syntelos 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.term;
+
+/**
+ * Receives the runs of a screen row that share colors, from
+ * {@link TranscriptScreen#visitRow}. The text is only valid for the
+ * duration of the call.
+ */
+interface TextRunSink {
+
+    /**
+     * @param column the column of the first character of the run
+     * @param text the row's characters
+     * @param index the index of the run in text
+     * @param count the number of characters in the run
+     * @param cursor true when the run is the cursor
+     * @param foreColor the foreground color
+     * @param backColor the background color
+     */
+    public void textRun(int column, char[] text, int index, int count,
+                        boolean cursor, int foreColor, int backColor);
+}
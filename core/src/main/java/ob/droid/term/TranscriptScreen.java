@@ -16,21 +16,13 @@
  */
 package ob.droid.term;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
-import android.graphics.Typeface;
-
 /**
  * A TranscriptScreen is a screen that remembers data that's been scrolled. The
- * old data is stored in a ring buffer to minimize the amount of copying that
- * needs to be done. The transcript does its own drawing, to avoid having to
- * expose its internal data structures.
+ * screen and the old data share one ring buffer of rows, so scrolling the
+ * whole screen moves the top of the screen rather than the data. The
+ * transcript passes its rows out in runs of the same colors, to avoid having
+ * to expose its internal data structures; see {@link TextRunDrawer} for
+ * drawing them.
  */
 class TranscriptScreen implements Screen {
 
@@ -52,10 +44,12 @@ class TranscriptScreen implements Screen {
     private int mActiveTranscriptRows;
 
     /**
-     * Which row is currently the topmost line of the transcript. Used to
-     * implement a circular buffer.
+     * Which row of mData is currently the top line of the screen. The screen
+     * is the mScreenRows rows from here, and the transcript is the
+     * mActiveTranscriptRows rows before here, both wrapping around the end of
+     * mData.
      */
-    private int mHead;
+    private int mScreenTop;
 
     /**
      * The number of active rows, includes both the transcript and the screen.
@@ -68,8 +62,8 @@ class TranscriptScreen implements Screen {
     private int mScreenRows;
 
     /**
-     * The data for both the screen and the transcript. The first mScreenRows *
-     * mLineWidth characters are the screen, the rest are the transcript.
+     * The data for both the screen and the transcript, mTotalRows rows of
+     * mColumns characters, used as a circular buffer of rows.
      * The low byte encodes the ASCII character, the high byte encodes the
      * foreground and background colors, plus underline and bold.
      */
@@ -81,6 +75,11 @@ class TranscriptScreen implements Screen {
      */
     private char[] mRowBuffer;
 
+    /**
+     * Holds a row while the rows above a scroll region are moved.
+     */
+    private char[] mScrollBuffer;
+
     /**
      * Flags that keep track of whether the current line logically wraps to the
      * next line. This is used when resizing the screen and when copying to the
@@ -89,6 +88,23 @@ class TranscriptScreen implements Screen {
 
     private boolean[] mLineWrap;
 
+    /**
+     * Flags that keep track of which rows of the screen have changed since
+     * the last call to clearDamage, indexed by screen row. A scroll moves
+     * every row, so it is counted instead of flagged.
+     */
+    private boolean[] mDamage;
+
+    /**
+     * True when any row of mDamage is set.
+     */
+    private boolean mDamaged;
+
+    /**
+     * The number of scrolls since the last call to clearDamage.
+     */
+    private int mScrollCount;
+
     /**
      * Create a transcript screen.
      *
@@ -107,13 +123,16 @@ class TranscriptScreen implements Screen {
         mColumns = columns;
         mTotalRows = totalRows;
         mActiveTranscriptRows = 0;
-        mHead = 0;
+        mScreenTop = 0;
         mActiveRows = screenRows;
         mScreenRows = screenRows;
         int totalSize = columns * totalRows;
         mData = new char[totalSize];
+        mDamage = new boolean[screenRows];
+        mScrollCount = 0;
         blockSet(0, 0, mColumns, mScreenRows, ' ', foreColor, backColor);
         mRowBuffer = new char[columns];
+        mScrollBuffer = new char[columns];
         mLineWrap = new boolean[totalRows];
         consistencyCheck();
    }
@@ -122,9 +141,9 @@ class TranscriptScreen implements Screen {
      * Convert a row value from the public external coordinate system to our
      * internal private coordinate system. External coordinate system:
      * -mActiveTranscriptRows to mScreenRows-1, with the screen being
-     * 0..mScreenRows-1 Internal coordinate system: 0..mScreenRows-1 rows of
-     * mData are the visible rows. mScreenRows..mActiveRows - 1 are the
-     * transcript, stored as a circular buffer.
+     * 0..mScreenRows-1 Internal coordinate system: 0..mTotalRows-1 rows of
+     * mData, with the visible rows starting at mScreenTop, and the transcript
+     * before them, stored as a circular buffer.
      *
      * @param row a row in the external coordinate system.
      * @return The row corresponding to the input argument in the private
@@ -134,11 +153,15 @@ class TranscriptScreen implements Screen {
         if (row < -mActiveTranscriptRows || row >= mScreenRows) {
             throw new IllegalArgumentException();
         }
-        if (row >= 0) {
-            return row; // This is a visible row.
-        }
-        return mScreenRows
-                + ((mHead + mActiveTranscriptRows + row) % mActiveTranscriptRows);
+        return toInternalRow(row);
+    }
+
+    /**
+     * Convert a row value as externalToInternalRow does, without checking that
+     * it is active.
+     */
+    private int toInternalRow(int row) {
+        return (mScreenTop + row + mTotalRows) % mTotalRows;
     }
 
     private int getOffset(int externalLine) {
@@ -153,6 +176,59 @@ class TranscriptScreen implements Screen {
         mLineWrap[externalToInternalRow(row)] = true;
     }
 
+    /**
+     * @return true when any row has changed or the screen has scrolled since
+     *         the last call to clearDamage.
+     */
+    public boolean isDamaged() {
+        return mDamaged || mScrollCount > 0;
+    }
+
+    /**
+     * @param row a row of the screen, 0..screenRows-1
+     * @return true when the row has been stored into since the last call to
+     *         clearDamage. Rows moved by a scroll are not flagged, see
+     *         getScrollCount.
+     */
+    public boolean isRowDamaged(int row) {
+        return mDamage[row];
+    }
+
+    /**
+     * @return the number of scrolls since the last call to clearDamage, after
+     *         which every row of the screen has moved.
+     */
+    public int getScrollCount() {
+        return mScrollCount;
+    }
+
+    /**
+     * Forget the changes so far, once they have been drawn or scheduled to be.
+     */
+    public void clearDamage() {
+        if (mDamaged) {
+            boolean[] damage = mDamage;
+            for (int row = 0; row < damage.length; row++) {
+                damage[row] = false;
+            }
+            mDamaged = false;
+        }
+        mScrollCount = 0;
+    }
+
+    private void damage(int row) {
+        mDamage[row] = true;
+        mDamaged = true;
+    }
+
+    private void damage(int row, int count) {
+        boolean[] damage = mDamage;
+        for (int i = 0; i < count; i++) {
+            damage[row + i] = true;
+        }
+        mDamaged = true;
+    }
+
     /**
      * Store byte b into the screen at location (x, y)
      *
@@ -164,6 +240,33 @@ class TranscriptScreen implements Screen {
      */
     public void set(int x, int y, byte b, int foreColor, int backColor) {
         mData[getOffset(x, y)] = encode(b, foreColor, backColor);
+        damage(y);
+    }
+
+    /**
+     * Store a run of bytes into one row of the screen, starting at location
+     * (x, y). The run must fit within the row.
+     *
+     * @param x X coordinate of the first byte
+     * @param y Y coordinate (also known as row)
+     * @param buffer the ASCII characters to store
+     * @param offset the index of the first character in buffer
+     * @param length the number of characters to store
+     * @param foreColor the foreground color
+     * @param backColor the background color
+     */
+    public void set(int x, int y, byte[] buffer, int offset, int length,
+            int foreColor, int backColor) {
+        if (x < 0 || x + length > mColumns) {
+            throw new IllegalArgumentException();
+        }
+        char[] data = mData;
+        int dst = getOffset(x, y);
+        int colors = encode(0, foreColor, backColor);
+        for (int i = 0; i < length; i++) {
+            data[dst + i] = (char) (colors | buffer[offset + i]);
+        }
+        damage(y);
     }
 
     private char encode(int b, int foreColor, int backColor) {
@@ -184,55 +287,65 @@ class TranscriptScreen implements Screen {
             throw new IllegalArgumentException();
         }
 
-        // Adjust the transcript so that the last line of the transcript
-        // is ready to receive the newly scrolled data
+        // Adjust the transcript so that it gains a row, until it is full
         consistencyCheck();
         int expansionRows = Math.min(1, mTotalRows - mActiveRows);
-        int rollRows = 1 - expansionRows;
         mActiveRows += expansionRows;
         mActiveTranscriptRows += expansionRows;
-        if (mActiveTranscriptRows > 0) {
-            mHead = (mHead + rollRows) % mActiveTranscriptRows;
-        }
-        consistencyCheck();
-
-        // Block move the scroll line to the transcript
-        int topOffset = getOffset(topMargin);
-        int destOffset = getOffset(-1);
-        System.arraycopy(mData, topOffset, mData, destOffset, mColumns);
 
-        int topLine = externalToInternalRow(topMargin);
-        int destLine = externalToInternalRow(-1);
-        System.arraycopy(mLineWrap, topLine, mLineWrap, destLine, 1);
+        // Move the screen down one row of mData: the top line of the screen
+        // becomes the last line of the transcript, and the row after the
+        // screen, unused or the oldest line of the transcript, becomes the
+        // bottom line of the screen. For the whole screen that is all.
+        mScreenTop = (mScreenTop + 1) % mTotalRows;
+        mScrollCount++;
+        consistencyCheck();
 
-        // Block move the scrolled data up
-        int numScrollChars = (bottomMargin - topMargin - 1) * mColumns;
-        System.arraycopy(mData, topOffset + mColumns, mData, topOffset,
-                numScrollChars);
-        int numScrollLines = (bottomMargin - topMargin - 1);
-        System.arraycopy(mLineWrap, topLine + 1, mLineWrap, topLine,
-                numScrollLines);
+        // Otherwise put back the lines above and below the scroll region,
+        // which have moved up with the rest. The line at the top margin goes
+        // to the transcript, in the place of the line at the top of the
+        // screen. With no transcript that place is the bottom line, which is
+        // moved over below.
+        if (topMargin > 0) {
+            int top = toInternalRow(topMargin - 1);
+            System.arraycopy(mData, top * mColumns, mScrollBuffer, 0, mColumns);
+            boolean topWrap = mLineWrap[top];
+            for (int row = topMargin - 1; row >= 0; row--) {
+                moveRow(toInternalRow(row - 1), toInternalRow(row));
+            }
+            int dest = toInternalRow(-1);
+            System.arraycopy(mScrollBuffer, 0, mData, dest * mColumns,
+                    mColumns);
+            mLineWrap[dest] = topWrap;
+        }
+        for (int row = mScreenRows - 1; row >= bottomMargin; row--) {
+            moveRow(toInternalRow(row - 1), toInternalRow(row));
+        }
 
         // Erase the bottom line of the scroll region
         blockSet(0, bottomMargin - 1, mColumns, 1, ' ', foreColor, backColor);
         mLineWrap[externalToInternalRow(bottomMargin-1)] = false;
     }
 
+    private void moveRow(int srcRow, int dstRow) {
+        System.arraycopy(mData, srcRow * mColumns, mData, dstRow * mColumns,
+                mColumns);
+        mLineWrap[dstRow] = mLineWrap[srcRow];
+    }
+
     private void consistencyCheck() {
         checkPositive(mColumns);
         checkPositive(mTotalRows);
         checkRange(0, mActiveTranscriptRows, mTotalRows);
-        if (mActiveTranscriptRows == 0) {
-            checkEqual(mHead, 0);
-        } else {
-            checkRange(0, mHead, mActiveTranscriptRows-1);
-        }
+        checkRange(0, mScreenTop, mTotalRows-1);
         checkEqual(mScreenRows + mActiveTranscriptRows, mActiveRows);
         checkRange(0, mScreenRows, mTotalRows);
 
         checkEqual(mTotalRows, mLineWrap.length);
         checkEqual(mTotalRows*mColumns, mData.length);
         checkEqual(mColumns, mRowBuffer.length);
+        checkEqual(mColumns, mScrollBuffer.length);
+        checkEqual(mScreenRows, mDamage.length);
     }
 
     private void checkPositive(int n) {
@@ -288,6 +401,7 @@ class TranscriptScreen implements Screen {
                 System.arraycopy(mData, srcOffset, mData, dstOffset, w);
             }
         }
+        damage(dy, h);
     }
 
     /**
@@ -315,20 +429,18 @@ class TranscriptScreen implements Screen {
                 data[offset + x] = encodedVal;
             }
         }
+        damage(sy, h);
     }
 
     /**
-     * Draw a row of text. Out-of-bounds rows are blank, not errors.
+     * Pass a row of text to a sink in runs of the same colors.
+     * Out-of-bounds rows are blank, not errors.
      *
-     * @param row The row of text to draw.
-     * @param canvas The canvas to draw to.
-     * @param x The x coordinate origin of the drawing
-     * @param y The y coordinate origin of the drawing
-     * @param renderer The renderer to use to draw the text
-     * @param cx the cursor X coordinate, -1 means don't draw it
+     * @param row The row of text.
+     * @param cx the cursor X coordinate, -1 means no cursor
+     * @param sink The receiver of the runs
      */
-    public final void drawText(int row, Canvas canvas, float x, float y,
-            TextRenderer renderer, int cx) {
+    public final void visitRow(int row, int cx, TextRunSink sink) {
 
         // Out-of-bounds rows are blank.
         if (row < -mActiveTranscriptRows || row >= mScreenRows) {
@@ -355,7 +467,7 @@ class TranscriptScreen implements Screen {
             rowBuffer[i] = (char) (c & 0x00ff);
             if (colors != lastColors) {
                 if (lastRunStart >= 0) {
-                    renderer.drawTextRun(canvas, x, y, lastRunStart, rowBuffer,
+                    sink.textRun(lastRunStart, rowBuffer,
                             lastRunStart, i - lastRunStart,
                             (lastColors & CURSOR_MASK) != 0,
                             0xf & (lastColors >> 12), 0xf & (lastColors >> 8));
@@ -365,7 +477,7 @@ class TranscriptScreen implements Screen {
             }
         }
         if (lastRunStart >= 0) {
-            renderer.drawTextRun(canvas, x, y, lastRunStart, rowBuffer,
+            sink.textRun(lastRunStart, rowBuffer,
                     lastRunStart, columns - lastRunStart,
                     (lastColors & CURSOR_MASK) != 0,
                     0xf & (lastColors >> 12), 0xf & (lastColors >> 8));
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reading recordings, whole and damaged.
+ */
+public class RecordingConnectionTest
+    extends Object
+{
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream out = new DataOutputStream(this.bytes);
+
+
+    public RecordingConnectionTest() throws IOException {
+        super();
+        this.out.writeInt(RecordingConnection.MAGIC);
+        this.out.writeByte(RecordingConnection.VERSION);
+        this.out.writeLong(1000L);
+    }
+
+
+    private void chunk(int direction, long time, long length, int count) throws IOException {
+        this.out.writeByte(direction);
+        this.varint(time);
+        this.varint(length);
+        for (int cc = 0; cc < count; cc++){
+            this.out.writeByte('A'+cc);
+        }
+    }
+    private void varint(long value) throws IOException {
+        while (0L != (value & ~0x7FL)){
+            this.out.writeByte((int)((value & 0x7F)|0x80));
+            value >>>= 7;
+        }
+        this.out.writeByte((int)value);
+    }
+    private RecordingConnection.Reader reader() throws IOException {
+        return new RecordingConnection.Reader(new ByteArrayInputStream(this.bytes.toByteArray()));
+    }
+    private void corrupt() throws IOException {
+        RecordingConnection.Reader reader = this.reader();
+        assertTrue(reader.next());
+        try {
+            reader.next();
+            fail();
+        }
+        catch (IOException exc){
+            assertEquals("Corrupt recording", exc.getMessage());
+        }
+    }
+
+    @Test
+    public void chunks() throws IOException {
+        this.chunk(RecordingConnection.OUT,5L,4,4);
+        this.chunk(RecordingConnection.IN,7L,0x200,0x200);
+        RecordingConnection.Reader reader = this.reader();
+        assertEquals(1000L, reader.getStart());
+        assertTrue(reader.next());
+        assertEquals(RecordingConnection.OUT, reader.getDirection());
+        assertEquals(5L, reader.getTime());
+        assertEquals(4, reader.getLength());
+        assertEquals('D', reader.getData()[3]);
+        assertTrue(reader.next());
+        assertEquals(RecordingConnection.IN, reader.getDirection());
+        assertEquals(12L, reader.getTime());
+        assertEquals(0x200, reader.getLength());
+        assertFalse(reader.next());
+    }
+    @Test
+    public void truncatedHeader() throws IOException {
+        this.chunk(RecordingConnection.OUT,5L,4,4);
+        this.out.writeByte(RecordingConnection.IN);
+        RecordingConnection.Reader reader = this.reader();
+        assertTrue(reader.next());
+        assertFalse(reader.next());
+    }
+    @Test
+    public void lengthBeyondEnd() throws IOException {
+        this.chunk(RecordingConnection.OUT,5L,4,4);
+        this.chunk(RecordingConnection.IN,5L,0x7FFFFFF0L,8);
+        this.corrupt();
+    }
+    @Test
+    public void negativeLength() throws IOException {
+        this.chunk(RecordingConnection.OUT,5L,4,4);
+        this.chunk(RecordingConnection.IN,5L,-2L,8);
+        this.corrupt();
+    }
+    @Test
+    public void intOverflowLength() throws IOException {
+        this.chunk(RecordingConnection.OUT,5L,4,4);
+        this.chunk(RecordingConnection.IN,5L,0xFFFFFFFEL,8);
+        this.corrupt();
+    }
+    @Test
+    public void direction() throws IOException {
+        this.chunk(RecordingConnection.OUT,5L,4,4);
+        this.chunk(7,5L,4,4);
+        this.corrupt();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.data;
+
+import ob.droid.ConnectionLoop;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records forced to storage on the force interval.
+ */
+public class DriveLogTest
+    extends Object
+{
+    private final static long MS = 1000000L;
+
+    private final static long TIMEOUT = 5000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ConnectionLoop loop;
+
+
+    @Before
+    public void open() throws Exception {
+        this.loop = new ConnectionLoop();
+        this.loop.start();
+    }
+    @After
+    public void close(){
+        this.loop.shutdown();
+    }
+
+    /**
+     * The last records are forced, and readable, once the interval
+     * has passed without another append.
+     */
+    @Test
+    public void forcedWhenQuiet() throws Exception {
+        File dir = this.folder.newFolder("log");
+        DriveLog log = new DriveLog(dir,4,50*MS,this.loop);
+        long now = System.nanoTime();
+        log.append(0x0C,now,800.0f);
+        log.append(0x0D,now+MS,40.0f);
+        assertEquals(0L, log.getForces());
+
+        long until = System.currentTimeMillis()+TIMEOUT;
+        while (0L == log.getForces() && System.currentTimeMillis() < until){
+            Thread.sleep(10L);
+        }
+        assertEquals(1L, log.getForces());
+
+        DriveLog.Reader reader = new DriveLog.Reader(dir);
+        assertTrue(reader.next());
+        assertEquals(0x0C, reader.getPid());
+        assertTrue(reader.next());
+        assertEquals(0x0D, reader.getPid());
+        assertEquals(40.0f, reader.getValue(), 0.0f);
+        assertFalse(reader.next());
+        reader.close();
+        /*
+         * Nothing more to force
+         */
+        Thread.sleep(150L);
+        assertEquals(1L, log.getForces());
+        log.close();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import ob.droid.BufferedConnection;
+import ob.droid.ConnectionLoop;
+import ob.droid.LoopbackConnection;
+import ob.droid.data.LatencyStats;
+import ob.droid.data.SeriesStore;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Polling and typing over one simulated adapter link.
+ */
+public class AdapterSessionTest
+    extends Object
+{
+    private final static long TIMEOUT = 5000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ConnectionLoop loop;
+
+    private AdapterSession session;
+
+
+    @Before
+    public void open() throws Exception {
+        this.loop = new ConnectionLoop();
+        this.loop.start();
+        this.session = this.connect();
+    }
+    /**
+     * @return Session over a new simulated adapter
+     */
+    private AdapterSession connect(){
+        return this.connect(BufferedConnection.CAPACITY);
+    }
+    /**
+     * @param capacity Output buffer of the adapter connection
+     */
+    private AdapterSession connect(int capacity){
+        Elm327Simulator simulator = new Elm327Simulator(new EngineModel());
+        simulator.setAdapterLatency(1000000L);
+        simulator.setSearchLatency(1000000L);
+        LoopbackConnection adapter = new LoopbackConnection(0x400);
+        simulator.attach(adapter.getPeer(),this.loop);
+        BufferedConnection buffered = new BufferedConnection(adapter,this.loop,capacity);
+        return new AdapterSession(buffered,this.loop,new ResponseFormat());
+    }
+    /**
+     * Start and wait.
+     */
+    private static void start(AdapterSession session, ProfileCache cache) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        session.setStartListener(new AdapterSession.StartListener(){
+                public void started(AdapterSession session){
+                    started.countDown();
+                }
+            });
+        session.start(new SessionInit(ResponseFormat.compact(),false),cache);
+        assertTrue(started.await(TIMEOUT,TimeUnit.MILLISECONDS));
+        assertTrue(session.isStarted());
+    }
+    @After
+    public void close(){
+        this.session.close();
+        this.loop.shutdown();
+    }
+
+    @Test
+    public void polls() throws Exception {
+        this.session.subscribe(0x0C,50.0,1);
+        this.session.subscribe(0x0D,50.0,1);
+        SeriesStore store = this.session.getStore();
+        long until = System.currentTimeMillis()+TIMEOUT;
+        while ((null == store.get(0x0C) || null == store.get(0x0D))
+               && System.currentTimeMillis() < until)
+        {
+            Thread.sleep(10L);
+        }
+        assertNotNull(store.get(0x0C));
+        assertNotNull(store.get(0x0D));
+        assertTrue(0L < this.session.getRequests());
+    }
+    /**
+     * Polled requests fill the latency table, as shown by the
+     * diagnostics screen.
+     */
+    @Test
+    public void stats() throws Exception {
+        LatencyStats stats = new LatencyStats();
+        ((BufferedConnection)this.session.getConnection()).setStats(stats);
+        this.session.setStats(stats);
+        this.session.subscribe(0x0C,50.0,1);
+        long until = System.currentTimeMillis()+TIMEOUT;
+        while ((null == stats.get(0x0C,LatencyStats.DECODED)
+                || 3 > stats.get(0x0C,LatencyStats.DECODED).getCount())
+               && System.currentTimeMillis() < until)
+        {
+            Thread.sleep(10L);
+        }
+        int[] list = new int[4];
+        assertEquals(1, stats.list(list));
+        assertEquals(0x0C, list[0]);
+        for (int stage = LatencyStats.WRITE; stage <= LatencyStats.DECODED; stage++){
+            assertTrue(LatencyStats.STAGE_NAMES[stage], 0L < stats.get(0x0C,stage).getCount());
+        }
+        assertEquals(0L, stats.get(0x0C,LatencyStats.RENDERED).getCount());
+    }
+    /**
+     * Command lines longer than the output buffer go out in pieces.
+     */
+    @Test
+    public void smallBuffer() throws Exception {
+        this.session.close();
+        this.session = this.connect(4);
+        start(this.session,null);
+        assertEquals(ResponseFormat.compact(), this.session.getFormat());
+        this.session.subscribe(0x0C,50.0,1);
+        this.session.subscribe(0x0D,50.0,1);
+        SeriesStore store = this.session.getStore();
+        long until = System.currentTimeMillis()+TIMEOUT;
+        while ((null == store.get(0x0C) || null == store.get(0x0D))
+               && System.currentTimeMillis() < until)
+        {
+            Thread.sleep(10L);
+        }
+        assertNotNull(store.get(0x0C));
+        assertNotNull(store.get(0x0D));
+        String answer = this.type("ATI\r");
+        assertTrue(answer, answer.startsWith(Elm327Simulator.ID));
+    }
+    /**
+     * The tuner's settings reach the adapter, and the count suffix
+     * ends each request once the engine ECU has answered.
+     */
+    @Test
+    public void tunes() throws Exception {
+        this.session.subscribe(0x0C,50.0,1);
+        long until = System.currentTimeMillis()+TIMEOUT;
+        while (!this.session.isTuned() && System.currentTimeMillis() < until){
+            Thread.sleep(10L);
+        }
+        assertTrue(this.session.isTuned());
+        assertEquals(1, this.session.getResponses());
+        String report = this.session.reportTiming();
+        assertTrue(report, report.contains("count 1"));
+        /*
+         * Polling goes on at the new settings
+         */
+        long requests = this.session.getRequests();
+        Thread.sleep(100L);
+        assertTrue(requests < this.session.getRequests());
+    }
+    @Test
+    public void typed() throws Exception {
+        this.session.subscribe(0x0C,50.0,1);
+        Thread.sleep(100L);
+        long requests = this.session.getRequests();
+        assertTrue(0L < requests);
+
+        String answer = this.type("ATI\r");
+        assertTrue(answer, answer.contains(Elm327Simulator.ID));
+        assertFalse(answer, answer.contains("41 0C"));
+        assertEquals(answer, answer.indexOf('>'), answer.length()-1);
+        /*
+         * Polling resumes after the typed line
+         */
+        Thread.sleep(100L);
+        assertTrue(requests < this.session.getRequests());
+    }
+
+    @Test
+    public void start() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        this.session.setStartListener(new AdapterSession.StartListener(){
+                public void started(AdapterSession session){
+                    started.countDown();
+                }
+            });
+        this.session.start(new SessionInit(ResponseFormat.compact(),false));
+        assertEquals(0, this.session.write(ByteBuffer.wrap(new byte[]{'A'})));
+        assertTrue(started.await(TIMEOUT,TimeUnit.MILLISECONDS));
+        assertTrue(this.session.isStarted());
+        assertEquals(ResponseFormat.compact(), this.session.getFormat());
+        /*
+         * Compact answers decode
+         */
+        this.session.subscribe(0x0C,50.0,1);
+        SeriesStore store = this.session.getStore();
+        long until = System.currentTimeMillis()+TIMEOUT;
+        while (null == store.get(0x0C) && System.currentTimeMillis() < until){
+            Thread.sleep(10L);
+        }
+        assertNotNull(store.get(0x0C));
+        /*
+         * Nothing of the start reaches the terminal, and the echo is
+         * off
+         */
+        String answer = this.type("ATI\r");
+        assertTrue(answer, answer.startsWith(Elm327Simulator.ID));
+    }
+
+    @Test
+    public void discover() throws Exception {
+        File dir = this.folder.newFolder("profiles");
+        ProfileCache cache = new ProfileCache(dir);
+        start(this.session,cache);
+        Discovery cold = this.session.getDiscovery();
+        assertFalse(cold.isWarm());
+        VehicleProfile profile = this.session.getProfile();
+        assertNotNull(profile);
+        assertEquals(2, profile.countEcus());
+        assertNotNull(cache.last());
+        assertEquals(profile.getVin(), cache.last().getVin());
+        assertEquals(ResponseFormat.compact(), this.session.getFormat());
+        /*
+         * The reconnect skips the search
+         */
+        this.session.close();
+        this.session = this.connect();
+        start(this.session,cache);
+        Discovery warm = this.session.getDiscovery();
+        assertTrue(warm.isWarm());
+        assertEquals(2, warm.getCommands());
+        assertTrue(warm.getCommands() < cold.getCommands());
+        assertEquals(profile.getVin(), this.session.getProfile().getVin());
+    }
+    /**
+     * Tuned timing is stored with the profile, and restored by the
+     * warm start.
+     */
+    @Test
+    public void timings() throws Exception {
+        File dir = this.folder.newFolder("profiles");
+        ProfileCache cache = new ProfileCache(dir);
+        start(this.session,cache);
+        assertFalse(cache.last().isTuned());
+        this.session.subscribe(0x0C,50.0,1);
+        long until = System.currentTimeMillis()+TIMEOUT;
+        while (!cache.last().isTuned() && System.currentTimeMillis() < until){
+            Thread.sleep(10L);
+        }
+        VehicleProfile stored = cache.last();
+        assertTrue(stored.isTuned());
+        assertEquals(1, stored.getResponses());
+
+        this.session.close();
+        this.session = this.connect();
+        start(this.session,cache);
+        assertTrue(this.session.getDiscovery().isWarm());
+        assertTrue(this.session.isTuned());
+        assertEquals(1, this.session.getResponses());
+        String st = Integer.toHexString(0x100|stored.getTimeout()).substring(1).toUpperCase();
+        String report = this.session.reportTiming();
+        assertTrue(report, report.startsWith("ST "+st));
+        /*
+         * Polls answer at the restored settings
+         */
+        this.session.subscribe(0x0C,50.0,1);
+        SeriesStore store = this.session.getStore();
+        until = System.currentTimeMillis()+TIMEOUT;
+        while (null == store.get(0x0C) && System.currentTimeMillis() < until){
+            Thread.sleep(10L);
+        }
+        assertNotNull(store.get(0x0C));
+    }
+    @Test
+    public void withoutCache() throws Exception {
+        start(this.session,null);
+        assertNull(this.session.getDiscovery());
+        assertNull(this.session.getProfile());
+    }
+
+    /**
+     * @return Terminal output through the prompt
+     */
+    private String type(String line) throws Exception {
+        ByteBuffer src = ByteBuffer.wrap(line.getBytes("US-ASCII"));
+        while (src.hasRemaining()){
+            this.session.write(src);
+        }
+        StringBuilder string = new StringBuilder();
+        ByteBuffer dst = ByteBuffer.allocate(0x100);
+        long until = System.currentTimeMillis()+TIMEOUT;
+        while (0 > string.indexOf(">") && System.currentTimeMillis() < until){
+            dst.clear();
+            int read = this.session.read(dst);
+            for (int cc = 0; cc < read; cc++){
+                string.append((char)dst.get(cc));
+            }
+            if (0 == read)
+                Thread.sleep(5L);
+        }
+        return string.toString();
+    }
+}
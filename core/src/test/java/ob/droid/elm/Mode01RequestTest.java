@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Request lines and packing.
+ */
+public class Mode01RequestTest
+    extends Object
+{
+
+    @Test
+    public void line(){
+        Mode01Request request = new Mode01Request();
+        request.add(0x0C);
+        request.add(0x0D);
+        request.add(0x05);
+        assertEquals("010C0D05\r",line(request));
+        request.setResponses(2);
+        assertEquals("010C0D052\r",line(request));
+    }
+    @Test
+    public void full(){
+        Mode01Request request = new Mode01Request(2);
+        assertTrue(request.add(0x0C));
+        assertTrue(request.add(0x0D));
+        assertTrue(request.isFull());
+        assertFalse(request.add(0x05));
+        assertEquals(2,request.size());
+    }
+    @Test
+    public void unknownLast(){
+        Mode01Request request = new Mode01Request();
+        assertTrue(request.add(0xEE));
+        assertTrue(request.add(0x0C));
+        assertFalse(request.add(0xEF));
+        assertEquals(0x0C,request.getPid(0));
+        assertEquals(0xEE,request.getPid(1));
+    }
+    @Test
+    public void pack(){
+        Mode01Request[] into = {
+            new Mode01Request(), new Mode01Request(), new Mode01Request()
+        };
+        int[] pids = { 0x04, 0x05, 0x0B, 0x0C, 0x0D, 0x0F, 0x10, 0xEE, 0xEF };
+        int used = Mode01Request.pack(pids,pids.length,into);
+        /*
+         * Six known, then one known and one unknown, then the second
+         * unknown on its own
+         */
+        assertEquals(3,used);
+        int count = 0;
+        for (int cc = 0; cc < used; cc++){
+            count += into[cc].size();
+        }
+        assertEquals(pids.length,count);
+        assertEquals(6,into[0].size());
+        assertEquals(0xEE,into[1].getPid(into[1].size()-1));
+        assertEquals(0xEF,into[2].getPid(0));
+    }
+    @Test(expected=IllegalArgumentException.class)
+    public void packTooFew(){
+        Mode01Request[] into = { new Mode01Request(1) };
+        int[] pids = { 0x0C, 0x0D };
+        Mode01Request.pack(pids,pids.length,into);
+    }
+
+    static String line(Mode01Request request){
+        return new String(request.getLine(),0,request.getLength());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tokens of simulator output, whole and a byte at a time.
+ */
+public class ResponseTokenizerTest
+    extends Object
+{
+    /**
+     * Writes the tokens as text.
+     */
+    final static class Tokens
+        extends Object
+        implements ResponseTokenizer.Handler
+    {
+        final StringBuilder string = new StringBuilder();
+
+        public void frame(int header, int index, byte[] data, int len){
+            this.string.append("frame ").append(Integer.toHexString(header));
+            this.string.append(' ').append(index).append(' ');
+            for (int cc = 0; cc < len; cc++){
+                this.string.append(Integer.toHexString(0x100|(data[cc] & 0xFF)).substring(1));
+            }
+            this.string.append('\n');
+        }
+        public void length(int length){
+            this.string.append("length ").append(length).append('\n');
+        }
+        public void text(byte[] line, int len){
+            this.string.append("text ").append(new String(line,0,len)).append('\n');
+        }
+        public void prompt(){
+            this.string.append("prompt\n");
+        }
+        public String toString(){
+            return this.string.toString();
+        }
+    }
+
+
+    @Test
+    public void defaults(){
+        Elm327Simulator simulator = new Elm327Simulator(new EngineModel());
+        String out = session(simulator,"ATSP6","0100");
+        Tokens tokens = new Tokens();
+        ResponseTokenizer tokenizer = new ResponseTokenizer(tokens);
+        tokenizer.setEcho(true);
+        feed(tokenizer,out);
+        String expected =
+            "text ATSP6\ntext OK\nprompt\n"+
+            "text 0100\nframe ffffffff -1 4100";
+        assertEquals(expected,tokens.toString().substring(0,expected.length()));
+    }
+    @Test
+    public void headers(){
+        Elm327Simulator simulator = new Elm327Simulator(new EngineModel());
+        String out = session(simulator,"ATE0","ATS0","ATH1","ATSP6","0902");
+        Tokens tokens = new Tokens();
+        ResponseTokenizer tokenizer = new ResponseTokenizer(tokens);
+        tokenizer.setEcho(true);
+        feed(tokenizer,out.substring(0,out.indexOf('>')+1));
+        tokenizer.setEcho(false);
+        tokenizer.setHeaderDigits(3);
+        feed(tokenizer,out.substring(out.indexOf('>')+1));
+        String string = tokens.toString();
+        assertEquals(5,count(string,"prompt\n"));
+        assertEquals(3,count(string,"frame 7e8 -1 "));
+    }
+    @Test
+    public void chunks(){
+        Elm327Simulator simulator = new Elm327Simulator(new EngineModel());
+        String out = session(simulator,"ATE0","ATSP6","010C0D","0902","ATH1","010C0D");
+        Tokens whole = new Tokens();
+        ResponseTokenizer tokenizer = new ResponseTokenizer(whole);
+        feed(tokenizer,out);
+        Tokens bytes = new Tokens();
+        tokenizer = new ResponseTokenizer(bytes);
+        byte[] buf = out.getBytes();
+        for (int cc = 0; cc < buf.length; cc++){
+            tokenizer.feed(buf,cc,1);
+        }
+        assertEquals(whole.toString(),bytes.toString());
+    }
+
+    /**
+     * @return Adapter output for the commands, with echo as set
+     */
+    static String session(Elm327Simulator simulator, String... commands){
+        StringBuilder out = new StringBuilder();
+        for (String command : commands){
+            simulator.echo(command,out);
+            simulator.process(command,out);
+        }
+        return out.toString();
+    }
+    static void feed(ResponseTokenizer tokenizer, String out){
+        byte[] buf = out.getBytes();
+        tokenizer.feed(buf,0,buf.length);
+    }
+    static int count(String string, String of){
+        int count = 0;
+        for (int at = string.indexOf(of); -1 < at; at = string.indexOf(of,at+1)){
+            count += 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.elm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Timeouts tuned from measured answers.
+ */
+public class TimingTunerTest
+    extends Object
+{
+    private final static long MS = 1000000L;
+
+    /**
+     * Measure requests answered by ECUs at the given times after the
+     * request.
+     */
+    private static TimingTuner measure(long... answers){
+        TimingTuner tuner = new TimingTuner();
+        long now = MS;
+        for (int cc = 0; cc < TimingTuner.SAMPLES; cc++){
+            tuner.sent(now);
+            for (long answer: answers){
+                tuner.received(now+answer);
+            }
+            now += answers[answers.length-1]+(50*MS);
+            tuner.answered(now,answers.length);
+            now += MS;
+        }
+        assertTrue(tuner.isTuned());
+        return tuner;
+    }
+
+    @Test
+    public void first(){
+        TimingTuner tuner = measure(10*MS);
+        assertEquals(10*MS, tuner.getLatency());
+        assertEquals(1, tuner.getResponses());
+    }
+    @Test
+    public void slowerLater(){
+        /*
+         * The second ECU answers 60 ms after the first
+         */
+        TimingTuner tuner = measure(5*MS, 65*MS);
+        assertEquals(60*MS, tuner.getLatency());
+        assertTrue(60*MS < tuner.getTimeout()*4*MS);
+        assertEquals(2, tuner.getResponses());
+    }
+    @Test
+    public void slowerFirst(){
+        TimingTuner tuner = measure(40*MS, 45*MS);
+        assertEquals(40*MS, tuner.getLatency());
+        assertTrue(40*MS < tuner.getTimeout()*4*MS);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.obd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Index round trip, and files that are not an index.
+ */
+public class DtcIndexTest
+    extends Object
+{
+    private final static String CSV =
+        "# Test codes\n"+
+        "P0300,Random/multiple cylinder misfire detected\n"+
+        "P0301,Cylinder 1 misfire detected\n"+
+        "U0100,\"Lost communication with ECM/PCM \"\"A\"\"\"\n";
+
+    /*
+     * Header fields
+     */
+    private final static int MAGIC = 0, VERSION = 4, COUNT = 8, TEXT = 12;
+
+    /*
+     * Offsets of three codes, after the header and the padded codes
+     */
+    private final static int OFFSETS = 24;
+
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+
+    @Before
+    public void build() throws Exception {
+        DtcIndex.Builder builder = new DtcIndex.Builder();
+        assertEquals(3, builder.load(new StringReader(CSV)));
+        this.file = this.folder.newFile("dtc.idx");
+        builder.write(this.file);
+    }
+
+    @Test
+    public void read() throws Exception {
+        DtcIndex index = new DtcIndex(this.file);
+        assertEquals(3, index.size());
+        assertEquals("Cylinder 1 misfire detected", index.get("P0301"));
+        assertEquals("Lost communication with ECM/PCM \"A\"", index.get("U0100"));
+        assertNull(index.get("P0302"));
+    }
+    @Test
+    public void magic() throws Exception {
+        this.corrupt(MAGIC,0x4F424455);
+        this.rejected();
+    }
+    @Test
+    public void version() throws Exception {
+        this.corrupt(VERSION,DtcIndex.VERSION+1);
+        this.rejected();
+    }
+    @Test
+    public void negativeCount() throws Exception {
+        this.corrupt(COUNT,-1);
+        this.rejected();
+    }
+    @Test
+    public void hugeCount() throws Exception {
+        this.corrupt(COUNT,Integer.MAX_VALUE);
+        this.rejected();
+    }
+    @Test
+    public void countBeyondEnd() throws Exception {
+        /*
+         * Consistent with the text offset, both past the end
+         */
+        this.corrupt(COUNT,1000);
+        this.corrupt(TEXT,((16+2*1000+3) & ~3)+4*1001);
+        this.rejected();
+    }
+    @Test
+    public void textBeyondEnd() throws Exception {
+        this.corrupt(TEXT,(int)this.file.length()+4);
+        this.rejected();
+    }
+    @Test
+    public void textLength() throws Exception {
+        this.corrupt(OFFSETS+12,-1);
+        this.rejected();
+    }
+    @Test
+    public void offsetsOutOfOrder() throws Exception {
+        this.corrupt(OFFSETS+4,1000);
+        this.rejected();
+    }
+    @Test
+    public void truncated() throws Exception {
+        RandomAccessFile out = new RandomAccessFile(this.file,"rw");
+        try {
+            out.setLength(out.length()-1);
+        }
+        finally {
+            out.close();
+        }
+        this.rejected();
+    }
+    @Test
+    public void header() throws Exception {
+        RandomAccessFile out = new RandomAccessFile(this.file,"rw");
+        try {
+            out.setLength(15);
+        }
+        finally {
+            out.close();
+        }
+        this.rejected();
+    }
+
+    private void corrupt(int position, int value) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(this.file,"rw");
+        try {
+            out.seek(position);
+            out.writeInt(value);
+        }
+        finally {
+            out.close();
+        }
+    }
+    private void rejected(){
+        try {
+            new DtcIndex(this.file);
+            fail("Read a corrupt index");
+        }
+        catch (IOException exc){
+            assertEquals("Not an index "+this.file, exc.getMessage());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.term;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Plain text through the row segment fast path of append, against
+ * the same bytes processed one at a time.
+ */
+public class TerminalEmulatorTest {
+
+    private static final int COLUMNS = 10, ROWS = 4, TRANSCRIPT = 16;
+
+    private static final String ESC = "\033";
+
+    /**
+     * The per-byte path: process(b) emits a printable byte by itself.
+     */
+    private static final Method PROCESS;
+    static {
+        try {
+            PROCESS = TerminalEmulator.class.getDeclaredMethod("process", byte.class);
+            PROCESS.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Collects the runs of the rows visited.
+     */
+    private static final class Runs implements TextRunSink {
+        final StringBuilder mString = new StringBuilder();
+
+        public void textRun(int column, char[] text, int index, int count,
+                boolean cursor, int foreColor, int backColor) {
+            mString.append(column).append(':').append(foreColor).append('/')
+                    .append(backColor).append(cursor ? "*" : "").append('[')
+                    .append(text, index, count).append(']');
+        }
+    }
+
+    private static TranscriptScreen screen() {
+        return new TranscriptScreen(COLUMNS, TRANSCRIPT, ROWS, 7, 0);
+    }
+
+    /**
+     * @return The screen and transcript with colors, line wraps and
+     *         the cursor
+     */
+    private static String dump(TerminalEmulator emulator, TranscriptScreen screen) {
+        Runs runs = new Runs();
+        for (int row = -screen.getActiveTranscriptRows(); row < ROWS; row++) {
+            screen.visitRow(row, (row == emulator.getCursorRow()) ? emulator.getCursorCol() : -1, runs);
+            runs.mString.append('\n');
+        }
+        return screen.getTranscriptText() + "\n" + runs.mString
+                + "cursor " + emulator.getCursorRow() + ',' + emulator.getCursorCol();
+    }
+
+    private static String fast(byte[] input, int chunk) {
+        TranscriptScreen screen = screen();
+        TerminalEmulator emulator = new TerminalEmulator(screen, COLUMNS, ROWS);
+        for (int i = 0; i < input.length; i += chunk) {
+            emulator.append(input, i, Math.min(chunk, input.length - i));
+        }
+        return dump(emulator, screen);
+    }
+
+    private static String perByte(byte[] input) throws Exception {
+        TranscriptScreen screen = screen();
+        TerminalEmulator emulator = new TerminalEmulator(screen, COLUMNS, ROWS);
+        for (int i = 0; i < input.length; i++) {
+            PROCESS.invoke(emulator, Byte.valueOf(input[i]));
+        }
+        return dump(emulator, screen);
+    }
+
+    private static void same(String input) throws Exception {
+        same(input.getBytes("ISO-8859-1"));
+    }
+
+    private static void same(byte[] input) throws Exception {
+        String expected = perByte(input);
+        assertEquals(expected, fast(input, input.length));
+        assertEquals(expected, fast(input, 3));
+        assertEquals(expected, fast(input, COLUMNS));
+    }
+
+    @Test
+    public void wrapAtLastColumn() throws Exception {
+        /*
+         * A line of exactly the width, then one more character
+         */
+        same("0123456789");
+        same("0123456789X");
+        same("0123456789\r\nX");
+        same("012345678\r\n0123456789012345678901234567890123456789ABC");
+        same(ESC + "[1;8H" + "abcdefg");
+    }
+
+    @Test
+    public void autowrapOff() throws Exception {
+        same(ESC + "[?7l" + "0123456789ABCDEF\r\nGHIJKLMNOPQRSTUVWXYZ");
+        same(ESC + "[?7l" + "0123456789" + ESC + "[?7h" + "ABC");
+    }
+
+    @Test
+    public void insertMode() throws Exception {
+        same("ABCDEFGHIJ\r" + ESC + "[4h" + "xyz" + ESC + "[4l" + "!");
+        same("0123456789" + ESC + "[1;3H" + ESC + "[4h" + "insert more than a row");
+    }
+
+    @Test
+    public void colors() throws Exception {
+        same("plain " + ESC + "[31mred" + ESC + "[44m on blue" + ESC + "[0m plain");
+    }
+
+    @Test
+    public void random() throws Exception {
+        final byte[] alphabet = "abcdefghijklmnopqrstuvwxyz0123456789 \r\n\t\b".getBytes("ISO-8859-1");
+        Random random = new Random(0x0BD2);
+        for (int run = 0; run < 50; run++) {
+            byte[] input = new byte[1 + random.nextInt(400)];
+            for (int i = 0; i < input.length; i++) {
+                input[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            same(input);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.term;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrolling the ring of rows, against a list of rows moved one by one.
+ */
+public class TranscriptScreenTest {
+
+    private static final int COLUMNS = 8, ROWS = 5;
+
+    /**
+     * A row of text, and whether it wraps into the next.
+     */
+    private static final class Row {
+        final String mText;
+        final boolean mWrap;
+
+        Row(String text, boolean wrap) {
+            mText = text;
+            mWrap = wrap;
+        }
+
+        void append(StringBuilder builder) {
+            builder.append(mText);
+            if (mWrap) {
+                for (int i = mText.length(); i < COLUMNS; i++) {
+                    builder.append(' ');
+                }
+            } else {
+                builder.append('\n');
+            }
+        }
+    }
+
+    private static final Row BLANK = new Row("", false);
+
+    /**
+     * The screen and transcript as a list of rows: the line at the top
+     * margin goes to the end of the transcript, the lines below it in
+     * the region move up, and the bottom line of the region is blank.
+     */
+    private static final class Model {
+        final int mTranscriptRows;
+        final List<Row> mTranscript = new ArrayList<Row>();
+        final List<Row> mScreen = new ArrayList<Row>();
+
+        Model(int transcriptRows) {
+            mTranscriptRows = transcriptRows;
+            for (int row = 0; row < ROWS; row++) {
+                mScreen.add(BLANK);
+            }
+        }
+
+        void scroll(int topMargin, int bottomMargin) {
+            Row line = mScreen.remove(topMargin);
+            mScreen.add(bottomMargin - 1, BLANK);
+            if (mTranscriptRows > 0) {
+                if (mTranscript.size() == mTranscriptRows) {
+                    mTranscript.remove(0);
+                }
+                mTranscript.add(line);
+            }
+        }
+
+        String getTranscriptText() {
+            StringBuilder builder = new StringBuilder();
+            for (Row line : mTranscript) {
+                line.append(builder);
+            }
+            for (Row line : mScreen) {
+                line.append(builder);
+            }
+            return builder.toString();
+        }
+    }
+
+    private int mLine;
+
+    /**
+     * Number a row of the screen, and wrap every third. The wrap stays
+     * with the row until it is scrolled off the bottom of the region.
+     */
+    private void write(TranscriptScreen screen, Model model, int row) {
+        String text = "line" + mLine;
+        byte[] bytes = text.getBytes();
+        screen.blockSet(0, row, COLUMNS, 1, ' ', 7, 0);
+        screen.set(0, row, bytes, 0, bytes.length, 7, 0);
+        boolean wrap = model.mScreen.get(row).mWrap;
+        if (0 == mLine % 3) {
+            screen.setLineWrap(row);
+            wrap = true;
+        }
+        model.mScreen.set(row, new Row(text, wrap));
+        mLine++;
+    }
+
+    private void scrolls(int transcriptRows, int topMargin, int bottomMargin) {
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS,
+                ROWS + transcriptRows, ROWS, 7, 0);
+        Model model = new Model(transcriptRows);
+        for (int row = 0; row < ROWS; row++) {
+            write(screen, model, row);
+        }
+        screen.clearDamage();
+        String where = transcriptRows + " transcript rows, " + topMargin
+                + ".." + bottomMargin;
+        for (int scroll = 0; scroll < 2 * (ROWS + transcriptRows) + 1; scroll++) {
+            screen.scroll(topMargin, bottomMargin, 7, 0);
+            model.scroll(topMargin, bottomMargin);
+            assertEquals(where + ", scroll " + scroll, model.getTranscriptText(),
+                    screen.getTranscriptText());
+            assertEquals(model.mTranscript.size(), screen.getActiveTranscriptRows());
+            write(screen, model, bottomMargin - 1);
+            if (0 == scroll % 2) {
+                write(screen, model, 0);
+                write(screen, model, ROWS - 1);
+            }
+            assertEquals(where + ", write " + scroll, model.getTranscriptText(),
+                    screen.getTranscriptText());
+        }
+        assertTrue(screen.isDamaged());
+        assertEquals(2 * (ROWS + transcriptRows) + 1, screen.getScrollCount());
+    }
+
+    private void scrolls(int transcriptRows) {
+        for (int top = 0; top <= ROWS - 2; top++) {
+            for (int bottom = top + 2; bottom <= ROWS; bottom++) {
+                scrolls(transcriptRows, top, bottom);
+            }
+        }
+    }
+
+    @Test
+    public void withoutTranscript() {
+        scrolls(0);
+    }
+
+    @Test
+    public void withTranscript() {
+        scrolls(1);
+        scrolls(3);
+        scrolls(12);
+    }
+}
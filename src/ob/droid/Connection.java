@@ -1,8 +0,0 @@
-package ob.droid;
-
-/**
- * Interface from GUI to ODB2.
- */
-public interface Connection {
-
-}
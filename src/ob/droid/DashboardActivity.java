@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.widget.Toast;
+
+import ob.droid.data.LatencyStats;
+import ob.droid.elm.AdapterSession;
+import ob.droid.term.Term;
+
+/**
+ * Gauges of engine speed, vehicle speed, coolant and fuel, polled
+ * through the terminal's {@link AdapterSession} while shown.  Engine
+ * and vehicle speed are polled ten times a second ahead of the slow
+ * readings.
+ */
+public class DashboardActivity
+    extends Activity
+{
+    private final static int RPM = 0x0C, SPEED = 0x0D, COOLANT = 0x05, FUEL = 0x2F;
+
+    private final static int[] PIDS = {
+        RPM, SPEED, COOLANT, FUEL
+    };
+
+    private final static double FAST = 10.0, SLOW = 0.1;
+
+
+    private GaugeView gauges;
+
+    private AdapterSession session;
+
+
+    public DashboardActivity(){
+        super();
+    }
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState){
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.dashboard);
+        this.gauges = (GaugeView)findViewById(R.id.gauges);
+        this.gauges.addChart(RPM,getString(R.string.gauge_rpm),0.0f,8000.0f,GaugeView.SPAN);
+        this.gauges.addGauge(SPEED,getString(R.string.gauge_speed),0.0f,200.0f);
+        this.gauges.addGauge(COOLANT,getString(R.string.gauge_coolant),-40.0f,120.0f);
+        this.gauges.addGauge(FUEL,getString(R.string.gauge_fuel),0.0f,100.0f);
+    }
+    @Override
+    protected void onResume(){
+        super.onResume();
+        this.session = Term.getSession();
+        if (null == this.session)
+            Toast.makeText(this,R.string.not_connected,Toast.LENGTH_LONG).show();
+        else {
+            this.gauges.setStore(this.session.getStore());
+            this.gauges.setStats(LatencyStats.getDefault());
+            this.session.subscribe(RPM,FAST,1);
+            this.session.subscribe(SPEED,FAST,1);
+            this.session.subscribe(COOLANT,SLOW,0);
+            this.session.subscribe(FUEL,SLOW,0);
+        }
+    }
+    @Override
+    protected void onPause(){
+        super.onPause();
+        AdapterSession session = this.session;
+        this.session = null;
+        if (null != session){
+            for (int pid: PIDS){
+                session.unsubscribe(pid);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import ob.droid.data.LatencyStats;
+import ob.droid.elm.AdapterSession;
+import ob.droid.term.Term;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Request latency per PID and stage, from {@link
+ * LatencyStats#getDefault()}, under the adapter timing before and
+ * after tuning, refreshed every second while shown.
+ * Export writes the table to the application's external files
+ * directory.
+ */
+public class DiagnosticsActivity
+    extends Activity
+    implements View.OnClickListener
+{
+    private final static String LOG_TAG = "Diagnostics";
+
+    private final static long REFRESH = 1000L;
+
+
+    private final Handler handler = new Handler();
+
+    private final Runnable refresh = new Runnable(){
+            public void run(){
+                DiagnosticsActivity.this.refresh();
+            }
+        };
+
+    private TextView timing, latency;
+
+
+    public DiagnosticsActivity(){
+        super();
+    }
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState){
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+        this.timing = (TextView)findViewById(R.id.timing);
+        this.latency = (TextView)findViewById(R.id.latency);
+        Button export = (Button)findViewById(R.id.export);
+        export.setOnClickListener(this);
+    }
+    @Override
+    protected void onResume(){
+        super.onResume();
+        this.refresh();
+    }
+    @Override
+    protected void onPause(){
+        super.onPause();
+        this.handler.removeCallbacks(this.refresh);
+    }
+    public void onClick(View view){
+        this.export();
+    }
+
+    private void refresh(){
+        AdapterSession session = Term.getSession();
+        if (null == session)
+            this.timing.setText(R.string.not_connected);
+        else
+            this.timing.setText(session.reportTiming());
+        LatencyStats stats = LatencyStats.getDefault();
+        if (0 == stats.list(new int[1]))
+            this.latency.setText(R.string.no_requests);
+        else
+            this.latency.setText(stats.toString());
+        this.handler.removeCallbacks(this.refresh);
+        this.handler.postDelayed(this.refresh,REFRESH);
+    }
+    private void export(){
+        File dir = this.getExternalFilesDir(null);
+        if (null == dir)
+            dir = this.getFilesDir();
+        File file = new File(dir,"latency-"+System.currentTimeMillis()+".txt");
+        try {
+            FileWriter out = new FileWriter(file);
+            try {
+                LatencyStats.getDefault().export(out);
+            }
+            finally {
+                out.close();
+            }
+            Toast.makeText(this,getString(R.string.exported,file.getPath()),Toast.LENGTH_LONG).show();
+        }
+        catch (IOException exc){
+            Log.e(LOG_TAG,"Writing "+file,exc);
+            Toast.makeText(this,getString(R.string.export_failed,exc.getMessage()),Toast.LENGTH_LONG).show();
+        }
+    }
+}
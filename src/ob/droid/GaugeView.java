@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2011 John Pritchard, Syntelos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid;
+
+import ob.droid.data.LatencyStats;
+import ob.droid.data.Lttb;
+import ob.droid.data.SampleRing;
+import ob.droid.data.SeriesStore;
+import ob.droid.data.SeriesSummary;
+import ob.droid.data.SeriesView;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * Dial gauges and strip charts of {@link SeriesStore} PIDs, drawn on
+ * a render thread of their own.
+ *
+ * The thread wakes once per display frame, and draws only when some
+ * ring has a new sample or the layout changed, so a stationary
+ * dashboard costs no drawing.  Paths, paints, rectangles and text
+ * buffers are allocated with each gauge, not per frame.  Frame render
+ * times are kept for {@link #getFrameTime()} and friends.
+ *
+ * Platform 8 has no vertical sync callback for other threads, so the
+ * thread paces itself to {@link #PERIOD}, and {@link
+ * SurfaceHolder#lockCanvas()} holds it back when the compositor is
+ * behind.  The gauge list and size are only held under lock while the
+ * thread copies them, so the UI thread never waits on the
+ * compositor.
+ */
+public class GaugeView
+    extends SurfaceView
+    implements SurfaceHolder.Callback
+{
+    /**
+     * Frame period in nanoseconds, sixty per second.
+     */
+    public final static long PERIOD = 16666667L;
+
+    public final static int MAX_GAUGES = 32;
+    /**
+     * Default strip chart span in nanoseconds.
+     */
+    public final static long SPAN = 60000000000L;
+
+    private final static int DIAL = 0, CHART = 1;
+
+    private final static int POINTS = 256;
+
+    private final static float SWEEP = 270.0f, START = 135.0f;
+
+
+    /**
+     * One gauge, with everything it draws with.
+     */
+    private final static class Gauge
+        extends Object
+    {
+        final int kind, pid;
+
+        final String label;
+
+        final float min, max;
+
+        final long span;
+
+        final RectF bounds = new RectF();
+
+        final RectF dial = new RectF();
+
+        final Path path = new Path();
+
+        final char[] text = new char[16];
+
+        long head = -1L;
+
+        /*
+         * The ring head moved in the frame drawn last
+         */
+        boolean advanced;
+
+        /*
+         * Chart points, for the charts
+         */
+        final long[] time;
+        final float[] value, low, high;
+        final long[] outTime;
+        final float[] outValue;
+
+
+        Gauge(int kind, int pid, String label, float min, float max, long span){
+            super();
+            this.kind = kind;
+            this.pid = (pid & 0xFF);
+            this.label = label;
+            this.min = min;
+            this.max = (max > min)?(max):(min+1.0f);
+            this.span = span;
+            if (CHART == kind){
+                this.time = new long[2*POINTS];
+                this.value = new float[2*POINTS];
+                this.low = new float[2*POINTS];
+                this.high = new float[2*POINTS];
+                this.outTime = new long[POINTS];
+                this.outValue = new float[POINTS];
+            }
+            else {
+                this.time = null;
+                this.value = null;
+                this.low = null;
+                this.high = null;
+                this.outTime = null;
+                this.outValue = null;
+            }
+        }
+
+        /**
+         * Note the ring head drawn.
+         */
+        void advance(long head){
+            this.advanced = (head != this.head);
+            this.head = head;
+        }
+        float fraction(float value){
+            float f = (value-this.min)/(this.max-this.min);
+            if (0.0f > f)
+                return 0.0f;
+            else if (1.0f < f)
+                return 1.0f;
+            else
+                return f;
+        }
+    }
+
+    private final class Renderer
+        extends Thread
+    {
+        Renderer(){
+            super("GaugeView");
+        }
+
+        public void run(){
+            long next = System.nanoTime();
+            while (GaugeView.this.running){
+                GaugeView.this.frame();
+                next += PERIOD;
+                long now = System.nanoTime();
+                long wait = (next-now);
+                if (0L >= wait)
+                    next = now;
+                else {
+                    try {
+                        Thread.sleep(wait/1000000L,(int)(wait%1000000L));
+                    }
+                    catch (InterruptedException exc){
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+
+    private final Gauge[] gauges = new Gauge[MAX_GAUGES];
+
+    /*
+     * The render thread's copy of the gauges
+     */
+    private final Gauge[] drawn = new Gauge[MAX_GAUGES];
+
+    private final SeriesView view = new SeriesView();
+
+    private final Paint background = new Paint();
+
+    private final Paint track = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Paint needle = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Paint line = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Paint band = new Paint();
+
+    private final Paint label = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Paint reading = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private volatile SeriesStore store;
+
+    private volatile LatencyStats stats;
+
+    private volatile boolean running, dirty;
+
+    private Renderer renderer;
+
+    /*
+     * Gauges and size, under lock
+     */
+    private int count, width, height;
+
+    private boolean relayout;
+
+    /*
+     * Frame statistics, written by the render thread
+     */
+    private volatile long frames, skipped, late, frameTime, frameTimeMax;
+
+    private volatile float frameTimeAverage;
+
+
+    public GaugeView(Context context){
+        super(context);
+        this.init();
+    }
+    public GaugeView(Context context, AttributeSet attrs){
+        super(context,attrs);
+        this.init();
+    }
+
+
+    private void init(){
+        this.getHolder().addCallback(this);
+        this.background.setColor(Color.BLACK);
+        this.track.setColor(Color.DKGRAY);
+        this.track.setStyle(Paint.Style.STROKE);
+        this.track.setStrokeCap(Paint.Cap.ROUND);
+        this.needle.setColor(Color.GREEN);
+        this.needle.setStyle(Paint.Style.STROKE);
+        this.needle.setStrokeCap(Paint.Cap.ROUND);
+        this.line.setColor(Color.GREEN);
+        this.line.setStyle(Paint.Style.STROKE);
+        this.line.setStrokeWidth(2.0f);
+        this.band.setColor(0x4000FF00);
+        this.label.setColor(Color.LTGRAY);
+        this.label.setTextAlign(Paint.Align.CENTER);
+        this.reading.setColor(Color.WHITE);
+        this.reading.setTextAlign(Paint.Align.CENTER);
+    }
+    public void setStore(SeriesStore store){
+        this.store = store;
+        this.dirty = true;
+    }
+    public SeriesStore getStore(){
+        return this.store;
+    }
+    /**
+     * @param stats Told of each new value drawn, or null
+     */
+    public void setStats(LatencyStats stats){
+        this.stats = stats;
+    }
+    /**
+     * Add a dial.
+     */
+    public void addGauge(int pid, String label, float min, float max){
+        this.add(new Gauge(DIAL,pid,label,min,max,0L));
+    }
+    /**
+     * Add a strip chart of the latest span.
+     *
+     * @param span Nanoseconds
+     */
+    public void addChart(int pid, String label, float min, float max, long span){
+        this.add(new Gauge(CHART,pid,label,min,max,Math.max(PERIOD,span)));
+    }
+    public void clearGauges(){
+        synchronized(this.gauges){
+            for (int cc = 0; cc < this.count; cc++){
+                this.gauges[cc] = null;
+            }
+            this.count = 0;
+            this.relayout = true;
+            this.dirty = true;
+        }
+    }
+    /**
+     * @return Frames drawn
+     */
+    public long getFrames(){
+        return this.frames;
+    }
+    /**
+     * @return Frames skipped for want of change
+     */
+    public long getSkipped(){
+        return this.skipped;
+    }
+    /**
+     * @return Frames drawn in more than a frame period
+     */
+    public long getLate(){
+        return this.late;
+    }
+    /**
+     * @return Render time of the last frame drawn, in nanoseconds,
+     * from locking the canvas to posting it
+     */
+    public long getFrameTime(){
+        return this.frameTime;
+    }
+    /**
+     * @return Smoothed frame render time, in nanoseconds
+     */
+    public float getFrameTimeAverage(){
+        return this.frameTimeAverage;
+    }
+    public long getFrameTimeMax(){
+        return this.frameTimeMax;
+    }
+
+    public void surfaceCreated(SurfaceHolder holder){
+        this.running = true;
+        this.dirty = true;
+        this.renderer = new Renderer();
+        this.renderer.start();
+    }
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height){
+        synchronized(this.gauges){
+            this.width = width;
+            this.height = height;
+            this.relayout = true;
+            this.dirty = true;
+        }
+    }
+    public void surfaceDestroyed(SurfaceHolder holder){
+        this.running = false;
+        Renderer renderer = this.renderer;
+        this.renderer = null;
+        if (null != renderer){
+            renderer.interrupt();
+            try {
+                renderer.join();
+            }
+            catch (InterruptedException exc){
+            }
+        }
+    }
+
+    private void add(Gauge gauge){
+        synchronized(this.gauges){
+            if (MAX_GAUGES == this.count)
+                throw new IllegalStateException("Too many gauges");
+            else {
+                this.gauges[this.count++] = gauge;
+                this.relayout = true;
+                this.dirty = true;
+            }
+        }
+    }
+    /**
+     * Grid of cells, on the render thread.
+     */
+    private void layout(Gauge[] gauges, int count, int width, int height){
+        if (0 < count && 0 < width && 0 < height){
+            int columns = (int)Math.ceil(Math.sqrt(count*(double)width/height));
+            columns = Math.max(1,Math.min(count,columns));
+            int rows = (count+columns-1)/columns;
+            float cw = (float)width/columns, ch = (float)height/rows;
+            float size = Math.min(cw,ch);
+            float stroke = Math.max(2.0f,size/16.0f);
+            this.track.setStrokeWidth(stroke);
+            this.needle.setStrokeWidth(stroke);
+            this.label.setTextSize(Math.max(8.0f,size/10.0f));
+            this.reading.setTextSize(Math.max(10.0f,size/6.0f));
+            for (int cc = 0; cc < count; cc++){
+                Gauge gauge = gauges[cc];
+                float x = (cc % columns)*cw, y = (cc / columns)*ch;
+                gauge.bounds.set(x,y,x+cw,y+ch);
+                float r = (size/2.0f)-stroke, cx = x+cw/2.0f, cy = y+ch/2.0f;
+                gauge.dial.set(cx-r,cy-r,cx+r,cy+r);
+            }
+        }
+    }
+    /**
+     * Draw when changed, on the render thread.
+     */
+    private void frame(){
+        final Gauge[] gauges = this.drawn;
+        final int count, width, height;
+        boolean relayout, changed;
+        synchronized(this.gauges){
+            count = this.count;
+            System.arraycopy(this.gauges,0,gauges,0,MAX_GAUGES);
+            width = this.width;
+            height = this.height;
+            relayout = this.relayout;
+            this.relayout = false;
+            changed = this.dirty;
+            this.dirty = false;
+        }
+        final SeriesStore store = this.store;
+        if (relayout)
+            this.layout(gauges,count,width,height);
+
+        if (!changed && null != store){
+            for (int cc = 0; cc < count; cc++){
+                Gauge gauge = gauges[cc];
+                SampleRing ring = store.get(gauge.pid);
+                if (null != ring && ring.head() != gauge.head){
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (!changed){
+            this.skipped += 1;
+            return;
+        }
+        else {
+            final SurfaceHolder holder = this.getHolder();
+            final long start = System.nanoTime();
+            Canvas canvas = holder.lockCanvas();
+            if (null != canvas){
+                try {
+                    canvas.drawRect(0,0,width,height,this.background);
+                    for (int cc = 0; cc < count; cc++){
+                        Gauge gauge = gauges[cc];
+                        SampleRing ring = (null != store)?(store.get(gauge.pid)):(null);
+                        if (DIAL == gauge.kind)
+                            this.drawDial(canvas,gauge,ring);
+                        else
+                            this.drawChart(canvas,gauge,ring,store);
+                    }
+                }
+                finally {
+                    holder.unlockCanvasAndPost(canvas);
+                }
+                final long end = System.nanoTime();
+                final LatencyStats stats = this.stats;
+                if (null != stats && null != store){
+                    for (int cc = 0; cc < count; cc++){
+                        Gauge gauge = gauges[cc];
+                        if (gauge.advanced)
+                            stats.rendered(gauge.pid,end);
+                    }
+                }
+                long time = (end-start);
+                this.frameTime = time;
+                if (time > this.frameTimeMax)
+                    this.frameTimeMax = time;
+                if (time > PERIOD)
+                    this.late += 1;
+                if (0L == this.frames)
+                    this.frameTimeAverage = time;
+                else
+                    this.frameTimeAverage += 0.05f*(time-this.frameTimeAverage);
+                this.frames += 1;
+            }
+            else
+                this.dirty = true;
+        }
+    }
+    private void drawDial(Canvas canvas, Gauge gauge, SampleRing ring){
+        final RectF dial = gauge.dial;
+        canvas.drawArc(dial,START,SWEEP,false,this.track);
+        float textY = dial.centerY()+this.reading.getTextSize()/3.0f;
+        gauge.advanced = false;
+        if (null != ring){
+            gauge.advance(ring.head());
+            float value = ring.getLatestValue();
+            if (value == value){
+                canvas.drawArc(dial,START,SWEEP*gauge.fraction(value),false,this.needle);
+                int len = format(value,gauge.text);
+                canvas.drawText(gauge.text,0,len,dial.centerX(),textY,this.reading);
+            }
+        }
+        canvas.drawText(gauge.label,dial.centerX(),dial.bottom-this.label.getTextSize(),this.label);
+    }
+    private void drawChart(Canvas canvas, Gauge gauge, SampleRing ring, SeriesStore store){
+        final RectF bounds = gauge.bounds;
+        final float inset = this.label.getTextSize();
+        final float left = bounds.left+inset, right = bounds.right-inset;
+        final float top = bounds.top+inset, bottom = bounds.bottom-inset;
+        canvas.drawRect(left,top,right,bottom,this.track);
+        canvas.drawText(gauge.label,bounds.centerX(),bounds.bottom-inset/4.0f,this.label);
+        gauge.advanced = false;
+        if (null != ring){
+            gauge.advance(ring.head());
+            final long to = System.nanoTime(), from = (to-gauge.span);
+            final int points = Math.max(3,Math.min(POINTS,(int)(right-left)/2));
+            int n;
+            SeriesSummary summary = store.getSummary(gauge.pid);
+            if (null != summary){
+                int level = summary.level(from,to,points);
+                n = summary.read(level,from,to,gauge.time,gauge.low,gauge.high,gauge.value,0);
+                /*
+                 * Min to max band behind the line
+                 */
+                final float bw = Math.max(1.0f,(right-left)*summary.getWidth(level)/gauge.span);
+                for (int cc = 0; cc < n; cc++){
+                    float x = left+(right-left)*(gauge.time[cc]-from)/gauge.span;
+                    if (x >= left){
+                        float y0 = bottom-(bottom-top)*gauge.fraction(gauge.high[cc]);
+                        float y1 = bottom-(bottom-top)*gauge.fraction(gauge.low[cc]);
+                        canvas.drawRect(x,y0,Math.min(right,x+bw),Math.max(y1,y0+1.0f),this.band);
+                    }
+                }
+            }
+            else {
+                do {
+                    this.view.select(ring,from,to);
+                    n = this.view.copy(gauge.time,gauge.value,0);
+                }
+                while (0 > n);
+            }
+            n = Lttb.downsample(gauge.time,gauge.value,0,n,points,gauge.outTime,gauge.outValue,0);
+            final Path path = gauge.path;
+            path.rewind();
+            for (int cc = 0; cc < n; cc++){
+                float x = Math.max(left,left+(right-left)*(gauge.outTime[cc]-from)/gauge.span);
+                float y = bottom-(bottom-top)*gauge.fraction(gauge.outValue[cc]);
+                if (0 == cc)
+                    path.moveTo(x,y);
+                else
+                    path.lineTo(x,y);
+            }
+            canvas.drawPath(path,this.line);
+        }
+    }
+    /**
+     * Format a reading without allocation, to one decimal below one
+     * hundred.
+     *
+     * @return Number of chars
+     */
+    private static int format(float value, char[] text){
+        int len = 0;
+        if (0.0f > value){
+            text[len++] = '-';
+            value = -value;
+        }
+        final boolean tenths = (100.0f > value);
+        long n = (tenths)?(Math.round(value*10.0)):(Math.round(value));
+        if (9999999L < n)
+            n = 9999999L;
+        int start = len;
+        do {
+            if (tenths && len-start == 1)
+                text[len++] = '.';
+            text[len++] = (char)('0'+(n % 10));
+            n /= 10;
+        }
+        while (0L != n || (tenths && len-start < 3));
+        /*
+         * Reverse the digits
+         */
+        for (int a = start, b = len-1; a < b; a++, b--){
+            char t = text[a];
+            text[a] = text[b];
+            text[b] = t;
+        }
+        return len;
+    }
+}
@@ -21,6 +21,13 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.os.Bundle;
+import android.util.Log;
+
+import ob.droid.obd.PidDecoders;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 
 /**
  * 
@@ -28,6 +35,11 @@ import android.os.Bundle;
 public class OBDroid 
     extends ob.droid.term.Term
 {
+    /**
+     * Custom PID definitions in the files directory, see {@link
+     * PidDecoders}.
+     */
+    public final static String PIDS = "pids.csv";
 
 
     public OBDroid(){
@@ -40,10 +52,53 @@ public class OBDroid
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
+        this.loadPids();
+    }
+    @Override
+    protected Connection createConnection(){
+        try {
+            TcpConnection connection =
+                new TcpConnection(TcpConnection.DEFAULT_HOST,TcpConnection.DEFAULT_PORT);
+            connection.open();
+            return connection;
+        }
+        catch (IOException exc){
+            Log.e(LOG_TAG,"Adapter connection failed",exc);
+            return null;
+        }
+    }
+    protected void loadPids(){
+        File file = new File(this.getFilesDir(),PIDS);
+        if (file.isFile()){
+            try {
+                FileReader in = new FileReader(file);
+                try {
+                    int count = PidDecoders.load(in);
+                    Log.i(LOG_TAG,"Loaded "+count+" PID definitions from "+file);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException exc){
+                Log.e(LOG_TAG,"Reading "+file,exc);
+            }
+            catch (IllegalArgumentException exc){
+                Log.e(LOG_TAG,"Reading "+file,exc);
+            }
+        }
     }
     @Override
     protected void doPreferences(){
         startActivity(new Intent(this, OBDroidPreferences.class));
     }
+    @Override
+    protected void doDashboard(){
+        startActivity(new Intent(this, DashboardActivity.class));
+    }
+    @Override
+    protected void doDiagnostics(){
+        startActivity(new Intent(this, DiagnosticsActivity.class));
+    }
 
 }
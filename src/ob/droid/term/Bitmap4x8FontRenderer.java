@@ -21,7 +21,6 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
@@ -30,14 +29,44 @@ import android.graphics.Typeface;
 
 import ob.droid.R;
 
+/**
+ * Draws from copies of the atari_small font tinted for each pair of
+ * fore and back colors, so that a glyph is one drawBitmap with no color
+ * filter. The copies are kept least recently used first, within
+ * kAtlasCacheBytes; on a miss past the limit the oldest copy is
+ * repainted for the new pair.
+ */
 class Bitmap4x8FontRenderer extends BaseTextRenderer {
     private final static int kCharacterWidth = 4;
     private final static int kCharacterHeight = 8;
+    /**
+     * The most memory to spend on tinted copies of the font.
+     */
+    private final static int kAtlasCacheBytes = 256 * 1024;
+    /**
+     * Back color index of the cursor, after the eight back paints.
+     */
+    private final static int kCursorBackIndex = 8;
     private Bitmap mFont;
-    private int mCurrentForeColor;
-    private int mCurrentBackColor;
-    private float[] mColorMatrix;
+    /**
+     * The font's pixels, and a buffer to tint them into.
+     */
+    private int[] mFontPixels;
+    private int[] mTintPixels;
     private Paint mPaint;
+    /**
+     * Cached atlases by fore * 9 + back color index.
+     */
+    private Atlas[] mAtlasByColors = new Atlas[8 * (kCursorBackIndex + 1)];
+    /**
+     * Most and least recently used ends of the cached atlases.
+     */
+    private Atlas mNewest;
+    private Atlas mOldest;
+    private int mAtlasCount;
+    private int mMaxAtlasCount;
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDestRect = new Rect();
     private static final float BYTE_SCALE = 1.0f / 255.0f;
 
     public Bitmap4x8FontRenderer(Resources resources,
@@ -45,6 +74,12 @@ class Bitmap4x8FontRenderer extends BaseTextRenderer {
         super(forePaintColor, backPaintColor);
         mFont = BitmapFactory.decodeResource(resources,
                 R.drawable.atari_small);
+        int size = mFont.getWidth() * mFont.getHeight();
+        mFontPixels = new int[size];
+        mTintPixels = new int[size];
+        mFont.getPixels(mFontPixels, 0, mFont.getWidth(), 0, 0,
+                mFont.getWidth(), mFont.getHeight());
+        mMaxAtlasCount = Math.max(1, kAtlasCacheBytes / (4 * size));
         mPaint = new Paint();
         mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
     }
@@ -60,12 +95,12 @@ class Bitmap4x8FontRenderer extends BaseTextRenderer {
     public void drawTextRun(Canvas canvas, float x, float y,
             int lineOffset, char[] text, int index, int count,
             boolean cursor, int foreColor, int backColor) {
-        setColorMatrix(mForePaint[foreColor & 7],
-                cursor ? mCursorPaint : mBackPaint[backColor & 7]);
+        Bitmap atlas = getAtlas(foreColor & 7,
+                cursor ? kCursorBackIndex : backColor & 7);
         int destX = (int) x + kCharacterWidth * lineOffset;
         int destY = (int) y;
-        Rect srcRect = new Rect();
-        Rect destRect = new Rect();
+        Rect srcRect = mSrcRect;
+        Rect destRect = mDestRect;
         destRect.top = (destY - kCharacterHeight);
         destRect.bottom = destY;
         for(int i = 0; i < count; i++) {
@@ -79,31 +114,99 @@ class Bitmap4x8FontRenderer extends BaseTextRenderer {
                         srcX + kCharacterWidth, srcY + kCharacterHeight);
                 destRect.left = destX;
                 destRect.right = destX + kCharacterWidth;
-                canvas.drawBitmap(mFont, srcRect, destRect, mPaint);
+                canvas.drawBitmap(atlas, srcRect, destRect, mPaint);
             }
             destX += kCharacterWidth;
         }
     }
 
-    private void setColorMatrix(int foreColor, int backColor) {
-        if ((foreColor != mCurrentForeColor)
-                || (backColor != mCurrentBackColor)
-                || (mColorMatrix == null)) {
-            mCurrentForeColor = foreColor;
-            mCurrentBackColor = backColor;
-            if (mColorMatrix == null) {
-                mColorMatrix = new float[20];
-                mColorMatrix[18] = 1.0f; // Just copy Alpha
+    /**
+     * @return the font tinted for the pair of color indexes, made the most
+     *         recently used.
+     */
+    private Bitmap getAtlas(int fore, int back) {
+        int key = fore * (kCursorBackIndex + 1) + back;
+        Atlas atlas = mAtlasByColors[key];
+        if (atlas == null) {
+            if (mAtlasCount < mMaxAtlasCount) {
+                atlas = new Atlas(Bitmap.createBitmap(mFont.getWidth(),
+                        mFont.getHeight(), Bitmap.Config.ARGB_8888));
+                mAtlasCount++;
+            } else {
+                atlas = mOldest;
+                unlink(atlas);
+                mAtlasByColors[atlas.mKey] = null;
             }
+            atlas.mKey = key;
+            tint(atlas.mBitmap, mForePaint[fore],
+                    (back == kCursorBackIndex) ? mCursorPaint : mBackPaint[back]);
+            mAtlasByColors[key] = atlas;
+        } else if (atlas == mNewest) {
+            return atlas.mBitmap;
+        } else {
+            unlink(atlas);
+        }
+        atlas.mNext = mNewest;
+        if (mNewest != null) {
+            mNewest.mPrevious = atlas;
+        } else {
+            mOldest = atlas;
+        }
+        mNewest = atlas;
+        return atlas.mBitmap;
+    }
+
+    private void unlink(Atlas atlas) {
+        if (atlas.mPrevious != null) {
+            atlas.mPrevious.mNext = atlas.mNext;
+        } else {
+            mNewest = atlas.mNext;
+        }
+        if (atlas.mNext != null) {
+            atlas.mNext.mPrevious = atlas.mPrevious;
+        } else {
+            mOldest = atlas.mPrevious;
+        }
+        atlas.mPrevious = null;
+        atlas.mNext = null;
+    }
+
+    /**
+     * Paint the font into the bitmap as the color matrix filter did: each
+     * component from the fore color at zero to the back color at full, and
+     * alpha copied.
+     */
+    private void tint(Bitmap bitmap, int foreColor, int backColor) {
+        int[] src = mFontPixels;
+        int[] dst = mTintPixels;
+        for (int i = 0; i < src.length; i++) {
+            int pixel = src[i];
+            int tinted = pixel & 0xff000000;
             for (int component = 0; component < 3; component++) {
                 int rightShift = (2 - component) << 3;
                 int fore = 0xff & (foreColor >> rightShift);
                 int back = 0xff & (backColor >> rightShift);
-                int delta = back - fore;
-                mColorMatrix[component * 6] = delta * BYTE_SCALE;
-                mColorMatrix[component * 5 + 4] = fore;
+                int value = 0xff & (pixel >> rightShift);
+                int c = (int) (fore + (back - fore) * value * BYTE_SCALE + 0.5f);
+                tinted |= c << rightShift;
             }
-            mPaint.setColorFilter(new ColorMatrixColorFilter(mColorMatrix));
+            dst[i] = tinted;
+        }
+        bitmap.setPixels(dst, 0, bitmap.getWidth(), 0, 0,
+                bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    /**
+     * A tinted copy of the font, linked in order of use.
+     */
+    private static class Atlas {
+        final Bitmap mBitmap;
+        int mKey;
+        Atlas mPrevious;
+        Atlas mNext;
+
+        Atlas(Bitmap bitmap) {
+            mBitmap = bitmap;
         }
     }
 }
@@ -51,8 +51,13 @@ import android.view.inputmethod.ExtractedText;
 import android.view.inputmethod.ExtractedTextRequest;
 import android.view.inputmethod.InputConnection;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import ob.droid.Connection;
 import ob.droid.R;
+import ob.droid.elm.DisplayFormatter;
+import ob.droid.elm.ResponseFormat;
 
 /**
  * A view on a transcript and a terminal emulator. Displays the text of the
@@ -71,6 +76,11 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
      */
     private TranscriptScreen mTranscriptScreen;
 
+    /**
+     * Draws the rows of the transcript.
+     */
+    private final TextRunDrawer mTextRunDrawer = new TextRunDrawer();
+
     /**
      * Number of rows in the transcript.
      */
@@ -141,22 +151,60 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
 
     private int mLeftColumn;
 
-    private FileDescriptor mTermFd;
     /**
-     * Used to receive data from the remote process.
+     * The view offset and cursor as of the last onDraw, against which
+     * append decides how much of the view to invalidate.
      */
-    private FileInputStream mTermIn;
+    private int mDrawnTopRow;
+
+    private int mDrawnLeftColumn;
+
+    private int mDrawnCursorRow = -1;
 
-    private FileOutputStream mTermOut;
+    private int mDrawnCursorCol = -1;
 
-    private ByteQueue mByteQueue;
+    /**
+     * Used by onDraw to find the rows within the clip.
+     */
+    private final Rect mClipRect = new Rect();
+
+    /**
+     * Used to exchange data with the adapter.
+     */
+    private Connection connection;
 
     /**
-     * Used to temporarily hold data received from the remote process. Allocated
+     * Used to temporarily hold data received from the adapter. Allocated
      * once and used permanently to minimize heap thrashing.
      */
     private byte[] mReceiveBuffer;
 
+    /**
+     * Wraps mReceiveBuffer for Connection.read.
+     */
+    private ByteBuffer mReceive;
+
+    /**
+     * Holds keyboard bytes for Connection.write.
+     */
+    private byte[] mSendBuffer;
+
+    /**
+     * Wraps mSendBuffer for Connection.write.
+     */
+    private ByteBuffer mSend;
+
+    /**
+     * Bytes typed while the connection was full, sent when it is
+     * writable again.  Filled from position zero.
+     */
+    private ByteBuffer mPending;
+
+    /**
+     * Optional rendering of compact adapter output for display.
+     */
+    private DisplayFormatter mFormatter;
+
     /**
      * Our private message id, which we use to receive new input from the
      * remote process.
@@ -164,10 +212,34 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
     private static final int UPDATE = 1;
 
     /**
-     * Thread that polls for input from the remote process
+     * Our private message id, which we use to send bytes held while the
+     * connection was full.
+     */
+    private static final int WRITABLE = 2;
+
+    /**
+     * Posts an UPDATE when the connection becomes readable. Called on the
+     * connection's thread.
      */
+    private final Connection.Listener mConnectionListener =
+            new Connection.Listener() {
+
+        public void readable(Connection connection) {
+            if (!mHandler.hasMessages(UPDATE)) {
+                mHandler.sendMessage(mHandler.obtainMessage(UPDATE));
+            }
+        }
 
-    private Thread mPollingThread;
+        public void writable(Connection connection) {
+            if (!mHandler.hasMessages(WRITABLE)) {
+                mHandler.sendMessage(mHandler.obtainMessage(WRITABLE));
+            }
+        }
+
+        public void closed(Connection connection) {
+            mHandler.sendMessage(mHandler.obtainMessage(UPDATE));
+        }
+    };
 
     private GestureDetector mGestureDetector;
     private float mScrollRemainder;
@@ -187,6 +259,8 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
         public void handleMessage(Message msg) {
             if (msg.what == UPDATE) {
                 update();
+            } else if (msg.what == WRITABLE) {
+                writePending();
             }
         }
     };
@@ -224,8 +298,7 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
     /**
      * Call this to initialize the view.
      *
-     * @param termFd the file descriptor
-     * @param termOut the output stream for the pseudo-teletype
+     * @param connection the adapter connection
      */
     public void init(Connection connection) {
 
@@ -237,13 +310,33 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
         updateText();
 
         mReceiveBuffer = new byte[4 * 1024];
-        mByteQueue = new ByteQueue(4 * 1024);
+        mReceive = ByteBuffer.wrap(mReceiveBuffer);
+        mSendBuffer = new byte[64];
+        mSend = ByteBuffer.wrap(mSendBuffer);
+        mPending = ByteBuffer.allocate(1024);
     }
 
     public void register(TermKeyListener listener) {
         mKeyListener = listener;
     }
 
+    /**
+     * Show compact adapter output in the adapter's default form, or
+     * null to show it as received.  The formatter also echoes typed
+     * bytes when the adapter does not, and follows format commands
+     * typed by hand.
+     */
+    public void setFormatter(DisplayFormatter formatter) {
+        mFormatter = formatter;
+    }
+
+    /**
+     * @return a formatter sized for the receive buffer
+     */
+    public DisplayFormatter createFormatter(ResponseFormat format) {
+        return new DisplayFormatter(format, mReceiveBuffer.length);
+    }
+
     public void setColors(int foreground, int background) {
         mForeground = foreground;
         mBackground = background;
@@ -377,21 +470,93 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
             private void sendText(CharSequence text) {
                 int n = text.length();
                 try {
+                    int count = 0;
                     for(int i = 0; i < n; i++) {
-                        char c = text.charAt(i);
-                        mapAndSend(c);
+                        if (count == mSendBuffer.length) {
+                            send(mSendBuffer, 0, count);
+                            count = 0;
+                        }
+                        mSendBuffer[count++] = (byte) mKeyListener.mapControlChar(text.charAt(i));
                     }
+                    send(mSendBuffer, 0, count);
                 } catch (IOException e) {
                 }
             }
 
             private void mapAndSend(int c) throws IOException {
-                mTermOut.write(
-                        mKeyListener.mapControlChar(c));
+                send(mKeyListener.mapControlChar(c));
             }
         };
     }
 
+    /**
+     * Write one byte to the adapter.
+     *
+     * @param b the byte to write
+     */
+    void send(int b) throws IOException {
+        mSendBuffer[0] = (byte) b;
+        send(mSendBuffer, 0, 1);
+    }
+
+    /**
+     * Write bytes to the adapter in one call, so that the connection
+     * can send them together.  What the connection does not take is
+     * held, in order, until it is writable again.
+     */
+    void send(byte[] data, int offset, int count) throws IOException {
+        if (connection != null) {
+            ByteBuffer src = (data == mSendBuffer) ? mSend : ByteBuffer.wrap(data);
+            src.limit(offset + count);
+            src.position(offset);
+            if (mPending.position() == 0) {
+                write(src);
+            }
+            if (src.hasRemaining()) {
+                int room = mPending.remaining();
+                if (src.remaining() > room) {
+                    Log.w(Term.LOG_TAG, "Adapter output full, dropped "
+                            + (src.remaining() - room));
+                    src.limit(src.position() + room);
+                }
+                mPending.put(src);
+            }
+        }
+    }
+
+    /**
+     * Send bytes held while the connection was full.
+     */
+    private void writePending() {
+        if (connection != null && mPending.position() > 0) {
+            mPending.flip();
+            try {
+                write(mPending);
+            } catch (IOException e) {
+                Log.e(Term.LOG_TAG, "Exception writing to adapter", e);
+                mPending.position(mPending.limit());
+            }
+            mPending.compact();
+        }
+    }
+
+    /**
+     * Write to the connection, and echo the bytes it takes when the
+     * adapter does not.
+     */
+    private void write(ByteBuffer src) throws IOException {
+        int start = src.position();
+        connection.write(src);
+        if (mFormatter != null) {
+            for (int i = start, end = src.position(); i < end; i++) {
+                int n = mFormatter.typed(src.get(i));
+                if (n > 0) {
+                    append(mFormatter.getBuffer(), 0, n);
+                }
+            }
+        }
+    }
+
     public boolean getKeypadApplicationMode() {
         return mEmulator.getKeypadApplicationMode();
     }
@@ -423,7 +588,7 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
     public void append(byte[] buffer, int base, int length) {
         mEmulator.append(buffer, base, length);
         ensureCursorVisible();
-        invalidate();
+        invalidateDamage();
     }
 
     /**
@@ -548,27 +713,13 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
         if (!mKnownSize) {
             mKnownSize = true;
 
-            // Set up a thread to read input from the
-            // pseudo-teletype:
-
-            mPollingThread = new Thread(new Runnable() {
+            // Start listening to the adapter, and pick up anything
+            // that arrived before we had a screen:
 
-                public void run() {
-                    try {
-                        while(true) {
-                            int read = mTermIn.read(mBuffer);
-                            mByteQueue.write(mBuffer, 0, read);
-                            mHandler.sendMessage(
-                                    mHandler.obtainMessage(UPDATE));
-                        }
-                    } catch (IOException e) {
-                    } catch (InterruptedException e) {
-                    }
-                }
-                private byte[] mBuffer = new byte[4096];
-            });
-            mPollingThread.setName("Input reader");
-            mPollingThread.start();
+            if (connection != null) {
+                connection.setListener(mConnectionListener);
+                update();
+            }
         }
     }
 
@@ -603,15 +754,31 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
     }
 
     /**
-     * Look for new input from the ptty, send it to the terminal emulator.
+     * Drain new input from the adapter, send it to the terminal emulator.
+     * Reads until the connection comes up empty, which re-arms its
+     * readable callback.
      */
     private void update() {
-        int bytesAvailable = mByteQueue.getBytesAvailable();
-        int bytesToRead = Math.min(bytesAvailable, mReceiveBuffer.length);
+        if (connection == null) {
+            return;
+        }
         try {
-            int bytesRead = mByteQueue.read(mReceiveBuffer, 0, bytesToRead);
-            append(mReceiveBuffer, 0, bytesRead);
-        } catch (InterruptedException e) {
+            while (true) {
+                mReceive.clear();
+                int bytesRead = connection.read(mReceive);
+                if (bytesRead <= 0) {
+                    break;
+                }
+                if (mFormatter != null) {
+                    int n = mFormatter.format(mReceiveBuffer, 0, bytesRead);
+                    append(mFormatter.getBuffer(), 0, n);
+                } else {
+                    append(mReceiveBuffer, 0, bytesRead);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(Term.LOG_TAG, "Exception reading from adapter", e);
+            connection.close();
         }
     }
 
@@ -621,21 +788,68 @@ class EmulatorView extends View implements GestureDetector.OnGestureListener {
         int h = getHeight();
         canvas.drawRect(0, 0, w, h, mBackgroundPaint);
         mVisibleColumns = w / mCharacterWidth;
+        // Glyphs hang below their row by the descent, so take in one
+        // row either side of the clip.
+        canvas.getClipBounds(mClipRect);
+        int firstRow = Math.max(0, mClipRect.top / mCharacterHeight - 1);
+        int lastRow = Math.min(mRows, mClipRect.bottom / mCharacterHeight + 1);
         float x = -mLeftColumn * mCharacterWidth;
-        float y = mCharacterHeight;
-        int endLine = mTopRow + mRows;
+        float y = mCharacterHeight * (firstRow + 1);
+        int endLine = mTopRow + lastRow;
         int cx = mEmulator.getCursorCol();
         int cy = mEmulator.getCursorRow();
-        for (int i = mTopRow; i < endLine; i++) {
+        mDrawnTopRow = mTopRow;
+        mDrawnLeftColumn = mLeftColumn;
+        mDrawnCursorRow = cy;
+        mDrawnCursorCol = cx;
+        for (int i = mTopRow + firstRow; i < endLine; i++) {
             int cursorX = -1;
             if (i == cy) {
                 cursorX = cx;
             }
-            mTranscriptScreen.drawText(i, canvas, x, y, mTextRenderer, cursorX);
+            mTextRunDrawer.drawText(mTranscriptScreen, i, canvas, x, y,
+                    mTextRenderer, cursorX);
             y += mCharacterHeight;
         }
     }
 
+    /**
+     * Invalidate the rows changed by the last append, and the rows the cursor
+     * has left and entered. A scroll of the screen, or of the view, moves
+     * every row and invalidates the whole view. Nothing is invalidated when
+     * nothing has changed, as while the adapter waits at its prompt.
+     */
+    private void invalidateDamage() {
+        TranscriptScreen screen = mTranscriptScreen;
+        int cx = mEmulator.getCursorCol();
+        int cy = mEmulator.getCursorRow();
+        boolean cursorMoved = (cx != mDrawnCursorCol || cy != mDrawnCursorRow);
+        if (screen.getScrollCount() > 0 || mTopRow != mDrawnTopRow
+                || mLeftColumn != mDrawnLeftColumn) {
+            invalidate();
+        } else if (screen.isDamaged() || cursorMoved) {
+            int first = mRows;
+            int last = -1;
+            for (int row = 0; row < mRows; row++) {
+                if (screen.isRowDamaged(row)) {
+                    first = Math.min(first, row);
+                    last = row;
+                }
+            }
+            if (cursorMoved) {
+                first = Math.min(first, Math.min(cy, mDrawnCursorRow));
+                last = Math.max(last, Math.max(cy, mDrawnCursorRow));
+                first = Math.max(first, 0);
+            }
+            if (last >= first) {
+                // As in onDraw, a row's glyphs reach into the row below
+                invalidate(0, (first - mTopRow) * mCharacterHeight, getWidth(),
+                        (last - mTopRow + 2) * mCharacterHeight);
+            }
+        }
+        screen.clearDamage();
+    }
+
     private void ensureCursorVisible() {
         mTopRow = 0;
         if (mVisibleColumns > 0) {
@@ -43,10 +43,18 @@ import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
+import ob.droid.BufferedConnection;
 import ob.droid.Connection;
 import ob.droid.R;
+import ob.droid.data.LatencyStats;
+import ob.droid.elm.AdapterSession;
+import ob.droid.elm.ProfileCache;
+import ob.droid.elm.ResponseFormat;
+import ob.droid.elm.SessionInit;
 
 /**
  * A terminal emulator activity.
@@ -54,22 +62,6 @@ import ob.droid.R;
 public abstract class Term 
     extends Activity
 {
-    /**
-     * Set to true to add debugging code and logging.
-     */
-    public static final boolean DEBUG = false;
-
-    /**
-     * Set to true to log each character received from the remote process to the
-     * android log, which makes it easier to debug some kinds of problems with
-     * emulating escape sequences and control codes.
-     */
-    public static final boolean LOG_CHARACTERS_FLAG = DEBUG && false;
-
-    /**
-     * Set to true to log unknown escape sequences.
-     */
-    public static final boolean LOG_UNKNOWN_ESCAPE_SEQUENCES = DEBUG && false;
     /**
      * The name of our emulator view in the view resource.
      */
@@ -129,6 +121,44 @@ public abstract class Term
 
     private SharedPreferences prefs;
 
+    /**
+     * The adapter connection, shared with the emulator view.
+     */
+    private Connection connection;
+
+    /**
+     * The session over the adapter connection, polling for other
+     * activities while the terminal is idle.
+     */
+    private static AdapterSession session;
+
+    /**
+     * @return The session of the terminal activity, or null when not
+     * connected
+     */
+    public static AdapterSession getSession() {
+        return session;
+    }
+
+    /**
+     * Shows adapter output in the format negotiated by the session,
+     * then sends the initial command.  Called on the loop thread.
+     */
+    private final AdapterSession.StartListener started =
+            new AdapterSession.StartListener() {
+
+        public void started(final AdapterSession session) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    if (emulatorView != null) {
+                        emulatorView.setFormatter(
+                                emulatorView.createFormatter(session.getFormat()));
+                        sendInitialCommand();
+                    }
+                }
+            });
+        }
+    };
 
     protected abstract Connection createConnection();
 
@@ -144,10 +174,23 @@ public abstract class Term
         this.emulatorView = (EmulatorView) findViewById(EMULATOR_VIEW);
 
         this.connection = this.createConnection();
+        if (this.connection != null) {
+            BufferedConnection buffered = new BufferedConnection(this.connection);
+            buffered.setStats(LatencyStats.getDefault());
+            session = new AdapterSession(buffered);
+            session.setStats(LatencyStats.getDefault());
+            session.setStartListener(this.started);
+            this.connection = session;
+        }
 
         this.emulatorView.init(this.connection);
 
-        this.sendInitialCommand();
+        if (session != null && this.connection == session) {
+            session.start(new SessionInit(ResponseFormat.compact(), false),
+                    new ProfileCache(new File(getFilesDir(), "profiles")));
+        } else {
+            this.sendInitialCommand();
+        }
 
         this.keyListener = new TermKeyListener();
 
@@ -162,11 +205,12 @@ public abstract class Term
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mTermFd != null) {
-            /****************************************************
-             *            Exec.close(mTermFd);                  *
-             ****************************************************/
-            mTermFd = null;
+        if (this.connection != null) {
+            if (this.connection == session) {
+                session = null;
+            }
+            this.connection.close();
+            this.connection = null;
         }
     }
 
@@ -187,7 +231,12 @@ public abstract class Term
     }
 
     private void send(String data) {
-
+        byte[] bytes = data.getBytes();
+        try {
+            this.emulatorView.send(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            // Ignore
+        }
     }
 
     private ArrayList<String> parse(String cmd) {
@@ -311,7 +360,7 @@ public abstract class Term
 
         if (letter >= 0) {
             try {
-                mTermOut.write(letter);
+                this.emulatorView.send(letter);
             } catch (IOException e) {
                 // Ignore I/O exceptions
             }
@@ -357,7 +406,7 @@ public abstract class Term
         if (down) {
             try {
                 if (keyCode == KeyEvent.KEYCODE_DPAD_CENTER) {
-                    mTermOut.write('\r');
+                    this.emulatorView.send('\r');
                 } else {
                     char code;
                     switch (keyCode) {
@@ -375,13 +424,14 @@ public abstract class Term
                         code = 'C';
                         break;
                     }
-                    mTermOut.write(27); // ESC
-                    if (mEmulatorView.getKeypadApplicationMode()) {
-                        mTermOut.write('O');
+                    mDPadSequence[0] = 27; // ESC
+                    if (this.emulatorView.getKeypadApplicationMode()) {
+                        mDPadSequence[1] = 'O';
                     } else {
-                        mTermOut.write('[');
+                        mDPadSequence[1] = '[';
                     }
-                    mTermOut.write(code);
+                    mDPadSequence[2] = (byte) code;
+                    this.emulatorView.send(mDPadSequence, 0, 3);
                 }
             } catch (IOException e) {
                 // Ignore
@@ -390,6 +440,11 @@ public abstract class Term
         return true;
     }
 
+    /**
+     * Holds a dpad escape sequence, sent as one write.
+     */
+    private final byte[] mDPadSequence = new byte[3];
+
     private boolean isSystemKey(int keyCode, KeyEvent event) {
         return event.isSystem();
     }
@@ -409,11 +464,21 @@ public abstract class Term
         else if (id == R.id.menu_reset) {
             doResetTerminal();
         }
+        else if (id == R.id.menu_dashboard) {
+            doDashboard();
+        }
+        else if (id == R.id.menu_diagnostics) {
+            doDiagnostics();
+        }
         return super.onOptionsItemSelected(item);
     }
 
     protected abstract void doPreferences();
 
+    protected abstract void doDashboard();
+
+    protected abstract void doDiagnostics();
+
     protected void doResetTerminal() {
         restart();
     }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ * Copyright (C) 2011 John Pritchard, Syntelos 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ob.droid.term;
+
+import android.graphics.Canvas;
+
+/**
+ * Draws the rows of a {@link TranscriptScreen} with a
+ * {@link TextRenderer}. One instance is reused for every row.
+ */
+class TextRunDrawer implements TextRunSink {
+
+    private Canvas mCanvas;
+    private float mX;
+    private float mY;
+    private TextRenderer mRenderer;
+
+    /**
+     * Draw a row of text. Out-of-bounds rows are blank, not errors.
+     *
+     * @param screen The screen holding the text.
+     * @param row The row of text to draw.
+     * @param canvas The canvas to draw to.
+     * @param x The x coordinate origin of the drawing
+     * @param y The y coordinate origin of the drawing
+     * @param renderer The renderer to use to draw the text
+     * @param cx the cursor X coordinate, -1 means don't draw it
+     */
+    public void drawText(TranscriptScreen screen, int row, Canvas canvas,
+            float x, float y, TextRenderer renderer, int cx) {
+        mCanvas = canvas;
+        mX = x;
+        mY = y;
+        mRenderer = renderer;
+        try {
+            screen.visitRow(row, cx, this);
+        } finally {
+            mCanvas = null;
+            mRenderer = null;
+        }
+    }
+
+    public void textRun(int column, char[] text, int index, int count,
+            boolean cursor, int foreColor, int backColor) {
+        mRenderer.drawTextRun(mCanvas, mX, mY, column, text, index, count,
+                cursor, foreColor, backColor);
+    }
+}